@@ -15,7 +15,7 @@ import nl.metaphoric.scorefollower.lib.RunningAverage;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
 import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
 import nl.metaphoric.scorefollower.lib.file.ScoreReader;
-import nl.metaphoric.scorefollower.lib.matcher.PositionMatcher;
+import nl.metaphoric.scorefollower.lib.matcher.Matcher;
 import nl.metaphoric.scorefollower.utils.MicrophoneReader;
 import android.app.Activity;
 import android.os.Bundle;
@@ -41,7 +41,7 @@ import android.widget.TextView;
  */
 public class BenchmarkActivity extends Activity implements AnalyzeListener {
 	private static final String TAG = "SF_BenchmarkActivity";
-	private PositionMatcher matcher;
+	private Matcher matcher;
 	private MicrophoneReader micReader;
 	private AudioAnalyzer analyzer;
 	private int sampleRate;
@@ -7,15 +7,18 @@ package nl.metaphoric.scorefollower;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import nl.metaphoric.scorefollower.file_dialog.FileDialog;
 import nl.metaphoric.scorefollower.file_dialog.SelectionMode;
 import nl.metaphoric.scorefollower.lib.AnalyzeListener;
 import nl.metaphoric.scorefollower.lib.AudioAnalyzer;
 import nl.metaphoric.scorefollower.lib.Position;
+import nl.metaphoric.scorefollower.lib.feature.AnalysisConfig;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.file.ScoreBundle;
 import nl.metaphoric.scorefollower.lib.file.ScoreReader;
-import nl.metaphoric.scorefollower.lib.matcher.PositionMatcher;
+import nl.metaphoric.scorefollower.lib.matcher.Matcher;
 import nl.metaphoric.scorefollower.lib.matcher.PositionPager;
 import nl.metaphoric.scorefollower.utils.AndroidLogger;
 import nl.metaphoric.scorefollower.utils.AudioInput;
@@ -75,7 +78,7 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 	/**
 	 * Matches new audio signal.
 	 */
-	private PositionMatcher matcher = null;
+	private Matcher matcher = null;
 	
 	/**
 	 * The position pager, matches estimated
@@ -83,6 +86,11 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 	 */
 	private PositionPager pager = null;
 	
+	/**
+	 * The loaded score, closed when another one is loaded
+	 */
+	private ScoreReader score = null;
+	
 	/**
 	 * Draws image pages and handles events on them
 	 */
@@ -182,13 +190,25 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 			
 			activeTraining = filename;
 			
+			if (score != null) {
+				score.close();
+				score = null;
+			}
+			
 			ScoreReader file = new ScoreReader(filename);
+			score = file;
 			matcher = file.getMatcher();
 			pager = file.getPager();
 			
 			Log.d(TAG, "Number of pages: "+file.getPages().size());
+			// Bundled page images are loaded in the background
+			ScoreBundle bundle = file.getBundle();
 			for (String s : file.getPages()) {
-				pages.addPage(s);
+				if (bundle != null) {
+					pages.addPage(bundle, s);
+				} else {
+					pages.addPage(s);
+				}
 			}
 			
 			// Set listener for when a marker is touched
@@ -206,6 +226,14 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 			// Load the AudioAnalyzer
 			analyzer = new AudioAnalyzer(this, sampleRate, matcher.windowSize(), matcher.hopSize());
 			
+			// Following works poorly with a reference from a different analysis
+			List<String> problems = file.checkConfig(new AnalysisConfig(sampleRate, 
+					matcher.windowSize(), matcher.hopSize()));
+			if (!problems.isEmpty()) {
+				Toast.makeText(this, "This score was trained with different analysis settings ("+
+						problems.get(0)+"), following may be inaccurate.", Toast.LENGTH_LONG).show();
+			}
+			
 			if (activityMenu != null) {
 				activityMenu.findItem(R.id.edit_train).setVisible(true);
 				activityMenu.findItem(R.id.play_reload).setVisible(true);
@@ -257,7 +285,7 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 	private void pickFile(int type) {
 		String[] ext;
 		if (type == REQUEST_PICK_TRAINING) {
-			ext = new String[] {"sft"};
+			ext = new String[] {"sft", "sftb", "sfz"};
 		} else {
 			ext = new String[] {"wav"};
 		}
@@ -366,7 +394,8 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 			positionGraph.setData(matcher.getTransitionProbabilities(), position);
 		}
 		
-		pager.setEstimate(position);
+		// Page by where the performer is now, rather than where the analyzed window started
+		pager.setEstimate(matcher.predictPosition(System.nanoTime()));
 		
 		if (pager.hasChanged()) {
 			final Position p = pager.getPosition();
@@ -386,7 +415,7 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 		}
 		
 		// Create new boolean for thread safety
-		final boolean playing = matcher.playing;
+		final boolean playing = matcher.isPlaying();
 		runOnUiThread(new Runnable() {
 			public void run() {
 				startedIndicator.setActivated(playing);
@@ -472,4 +501,12 @@ public class PlayActivity extends Activity implements AnalyzeListener {
 		stop();
 		super.onPause();
 	}
+	
+	@Override
+	public void onDestroy() {
+		if (score != null) {
+			score.close();
+		}
+		super.onDestroy();
+	}
 }
@@ -9,7 +9,9 @@ import nl.metaphoric.scorefollower.lib.AnalyzeListener;
 import nl.metaphoric.scorefollower.lib.AudioAnalyzer;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
 import nl.metaphoric.scorefollower.lib.file.PositionRecorder;
+import nl.metaphoric.scorefollower.lib.file.ScoreBundle;
 import nl.metaphoric.scorefollower.lib.file.ScoreReader;
+import nl.metaphoric.scorefollower.lib.file.ScoreWriter;
 import nl.metaphoric.scorefollower.utils.AndroidLogger;
 import nl.metaphoric.scorefollower.utils.AudioInput;
 import nl.metaphoric.scorefollower.utils.MicrophoneReader;
@@ -51,6 +53,17 @@ public class TrainActivity extends Activity implements AnalyzeListener {
 							 REQUEST_ADD_PAGE = 1, 
 							 REQUEST_PICK_WAV = 2;
 	
+	/**
+	 * Recording journal filename, in the app's private files directory
+	 */
+	private static final String JOURNAL_FILE = "recording.sfj";
+	
+	/**
+	 * A crash journal is moved here when a score is opened for
+	 * editing, and recovered from here by the next new recording.
+	 */
+	private static final String UNSAVED_JOURNAL_FILE = "unsaved.sfj";
+	
 	/**
 	 * Mic/wav, active audio input instances
 	 */
@@ -141,6 +154,60 @@ public class TrainActivity extends Activity implements AnalyzeListener {
 		if (existing != null) {
 			loadTrainingFile(existing);
 		}
+		
+		startJournal(existing == null);
+	}
+	
+	/**
+	 * Makes the recorder write to a journal, so long recordings
+	 * don't fill up memory and survive a crash.
+	 * @param recover Whether to continue a journal left behind by
+	 * 				  a previous session that didn't finish. If not, such
+	 * 				  a journal is moved to UNSAVED_JOURNAL_FILE rather
+	 * 				  than replaced, replacing an older one there.
+	 */
+	private void startJournal(boolean recover) {
+		File journal = new File(getFilesDir(), JOURNAL_FILE),
+			 unsaved = new File(getFilesDir(), UNSAVED_JOURNAL_FILE);
+		if (recover && !journal.exists() && unsaved.exists()) {
+			// Pick up the recording moved aside while editing a score
+			unsaved.renameTo(journal);
+		} else if (!recover && journal.exists()) {
+			// Don't replace an unsaved recording, keep it for the next new one
+			unsaved.delete();
+			if (journal.renameTo(unsaved)) {
+				Toast.makeText(this, "An unsaved recording was kept, start a new "+
+						"recording to recover it.", Toast.LENGTH_LONG).show();
+			} else {
+				// Journaling would replace it, record in memory instead
+				Log.e(TAG, "Could not move the unsaved recording aside.");
+				return;
+			}
+		}
+		
+		try {
+			if (recover && journal.exists()) {
+				recorder.recoverJournal(journal);
+				if (recorder.size() > 0) {
+					Toast.makeText(this, "Recovered an unsaved recording of "+recorder.size()+
+							" frames, add its pages to save it.", Toast.LENGTH_LONG).show();
+				}
+			} else {
+				recorder.startJournal(journal, analyzer);
+			}
+		} catch (IOException e) {
+			// Record in memory instead
+			Log.e(TAG, "Could not open recording journal: "+e.getMessage());
+		}
+	}
+	
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (isFinishing()) {
+			// Leaving on purpose, the journal is only kept after a crash.
+			recorder.deleteJournal();
+		}
 	}
 	
 	/**
@@ -152,12 +219,24 @@ public class TrainActivity extends Activity implements AnalyzeListener {
 			lastPath = filename;
 			
 			ScoreReader file = new ScoreReader(filename);
+			// Bundled page images are loaded in the background
+			ScoreBundle bundle = file.getBundle();
 			for (String s : file.getPages()) {
-				pages.addPage(s);
+				if (bundle != null) {
+					pages.addPage(bundle, s);
+				} else {
+					pages.addPage(s);
+				}
 			}
 			
-			// Draw visual markers
+			// Draw visual markers, and make them editable. Saving
+			// without recording only rewrites the markers.
 			pages.addVisualMarkers(file.getPager().getPositions());
+			recorder.editScore(filename, file);
+			file.close();
+			
+			// A new recording replaces the loaded one
+			stopped = true;
 			
 			if (activityMenu != null) {
 				checkPages();
@@ -260,8 +339,8 @@ public class TrainActivity extends Activity implements AnalyzeListener {
 			lastPath = (new File(filePath[0])).getParent();
 			switch (requestCode) {
 			case REQUEST_SAVE_FILENAME:
-				// Force the .sft extension
-				if (!filePath[0].endsWith(".sft")) {
+				// Force the .sft extension, unless binary output was asked for
+				if (!filePath[0].endsWith(".sft") && !ScoreWriter.isBinaryName(filePath[0])) {
 					filePath[0] = filePath[0] + ".sft";
 				}
 				writeToFile(filePath[0]);
@@ -368,7 +447,7 @@ public class TrainActivity extends Activity implements AnalyzeListener {
 		intent.putExtra(FileDialog.START_PATH, 
 				Environment.getExternalStorageDirectory().getAbsolutePath());
 		intent.putExtra(FileDialog.SELECTION_MODE, SelectionMode.MODE_CREATE);
-		intent.putExtra(FileDialog.FORMAT_FILTER, new String[] {"sft"});
+		intent.putExtra(FileDialog.FORMAT_FILTER, new String[] {"sft", "sftb"});
 		
 		startActivityForResult(intent, REQUEST_SAVE_FILENAME);
 	}
@@ -1,17 +1,23 @@
 package nl.metaphoric.scorefollower.utils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import nl.metaphoric.scorefollower.R;
 import nl.metaphoric.scorefollower.TrainActivity;
 import nl.metaphoric.scorefollower.lib.Position;
 import nl.metaphoric.scorefollower.lib.file.PositionRecorder;
+import nl.metaphoric.scorefollower.lib.file.ScoreBundle;
 import nl.metaphoric.scorefollower.view.MarkerView;
 import android.app.Activity;
 import android.content.Context;
@@ -74,7 +80,6 @@ public class PageManager implements OnTouchListener {
 		 */
 		public Page(String filename) {
 			Log.d(TAG, "Adding page with file name "+filename);
-			Bitmap bm;
 
 			File file = new File(filename);
 			filePath= file.getAbsolutePath();
@@ -84,11 +89,75 @@ public class PageManager implements OnTouchListener {
 			options.inJustDecodeBounds = true;
 			BitmapFactory.decodeFile(file.getAbsolutePath(), options);
 			
+			int originalWidth = options.outWidth;
+			scale(options);
+			
+			// Now load the actual data using the new sample size
+			Bitmap bm = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+			
+			Log.d(TAG, "Actual sample size: "+((double)originalWidth / bm.getWidth()));
+			
+			createLayout(limit(bm));
+		}
+		
+		/**
+		 * Creates a page from an image in a score bundle. Only the size of
+		 * the image and its thumbnail, if the bundle has one, are read here.
+		 * The full image is decoded on the page loader thread and replaces
+		 * the thumbnail when it is ready, so that following can start
+		 * before the pages are loaded.
+		 * @param bundle
+		 * @param entry
+		 * @throws IOException
+		 */
+		public Page(final ScoreBundle bundle, final String entry) throws IOException {
+			Log.d(TAG, "Adding page "+entry+" from "+bundle.getFilename());
+			filePath = entry;
+			
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			decode(bundle, entry, options);
+			if (options.outWidth <= 0) {
+				throw new IOException("Could not decode page "+entry);
+			}
+			scale(options);
+			
+			Bitmap thumb = null;
+			String thumbEntry = bundle.thumbnail(entry);
+			if (thumbEntry != null) {
+				thumb = decode(bundle, thumbEntry, new BitmapFactory.Options());
+			}
+			createLayout(thumb);
+			
+			pageLoader.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final Bitmap bm = limit(decode(bundle, entry, options));
+						image.post(new Runnable() {
+							@Override
+							public void run() {
+								image.setImageBitmap(bm);
+							}
+						});
+					} catch (IOException e) {
+						Log.e(TAG, "Could not load page "+entry+": "+e.getMessage());
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Sets the display size of this page from the image bounds in
+		 * the given options, and prepares the options for decoding the
+		 * image at that size.
+		 * @param options
+		 */
+		private void scale(BitmapFactory.Options options) {
 			// Determine the scale factor; scale up to the screen width
 			double scale = maxWidth / (double)options.outWidth;
 			
 			// Set the new width and height according to this scale factor
-			int originalWidth = options.outWidth;
 			width = (int)(options.outWidth * scale);
 			height = (int)(options.outHeight * scale);			
 			
@@ -101,12 +170,15 @@ public class PageManager implements OnTouchListener {
 				options.inSampleSize = (int)(1/scale);
 				Log.d(TAG, "Setting sample size to "+options.inSampleSize);
 			}
-			
-			// Now load the actual data using the new sample size
-			bm = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-			
-			Log.d(TAG, "Actual sample size: "+((double)originalWidth / bm.getWidth()));
-			
+		}
+		
+		/**
+		 * Resizes a decoded bitmap to the page size if it
+		 * doesn't fit within the texture limits.
+		 * @param bm
+		 * @return
+		 */
+		private Bitmap limit(Bitmap bm) {
 			// If this file is still larger than the texture limits, we have to resize it.
 			if (bm.getWidth() > 2048 || bm.getHeight() > 2048) {
 				// Resize the bitmap
@@ -116,7 +188,14 @@ public class PageManager implements OnTouchListener {
 				bm.recycle();
 				bm = nbm;
 			}
-			
+			return bm;
+		}
+		
+		/**
+		 * Creates the page layout showing the given bitmap
+		 * @param bm The bitmap, can be null
+		 */
+		private void createLayout(Bitmap bm) {
 			layout = (RelativeLayout)inflater.inflate(R.layout.page, null);
 			image = (ImageView)layout.findViewById(R.id.page_image);
 			// Set width and height for correct scaling
@@ -161,6 +240,9 @@ public class PageManager implements OnTouchListener {
 				Marker marker = values.next();
 				if (marker.pageRemoved(pageIndex)) {
 					values.remove();
+					if (recorder != null) {
+						recorder.removePosition(marker.index);
+					}
 				}
 			}
 			
@@ -239,6 +321,7 @@ public class PageManager implements OnTouchListener {
 	private class Marker {
 		private MarkerView im;
 		private Position p;
+		private int index;
 		private boolean drawn = false;
 		
 		/**
@@ -255,6 +338,7 @@ public class PageManager implements OnTouchListener {
 						
 			im.setOnTouchListener(PageManager.this);
 			this.p = p;
+			this.index = index;
 		}
 		
 		/**
@@ -414,6 +498,9 @@ public class PageManager implements OnTouchListener {
 				Marker m = markers.get(activeMarker);
 				m.remove();
 				markers.remove(activeMarker);
+				if (recorder != null) {
+					recorder.removePosition(activeMarker);
+				}
 				updateMarkerCounts();
 				activeMarker = -1;
 				actionMode.finish();
@@ -499,6 +586,11 @@ public class PageManager implements OnTouchListener {
 	
 	private LayoutInflater inflater;
 	
+	/**
+	 * Decodes the images of bundled pages in the background
+	 */
+	private ExecutorService pageLoader = Executors.newSingleThreadExecutor();
+	
 	/**
 	 * Initializes a new page manager
 	 */
@@ -627,6 +719,37 @@ public class PageManager implements OnTouchListener {
 		p.draw();
 	}
 	
+	/**
+	 * Adds a page from a score bundle, of which the image
+	 * is loaded in the background.
+	 * @param bundle
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void addPage(ScoreBundle bundle, String entry) throws IOException {
+		Page p = new Page(bundle, entry);
+		pages.add(p);
+		p.draw();
+	}
+	
+	/**
+	 * Decodes an image from a score bundle
+	 * @param bundle
+	 * @param entry
+	 * @param options
+	 * @return
+	 * @throws IOException
+	 */
+	private static Bitmap decode(ScoreBundle bundle, String entry, BitmapFactory.Options options)
+			throws IOException {
+		InputStream in = new BufferedInputStream(bundle.openEntry(entry));
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			in.close();
+		}
+	}
+	
 	/**
 	 * Returns a Position object from the
 	 * given coordinates, or null if the coordinates
@@ -1,7 +1,11 @@
 package nl.metaphoric.scorefollower.experiment;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -74,9 +78,7 @@ public class AudioFileAnalyzer {
 		// Read data as if it's coming from the microphone, but average
 		// over the number of channels.
 		int bytesRead = 0, framesToRead = analyzer.getDataSize(),
-				frameSize = decode.getFrameSize(), 
-				nchannels = decode.getChannels(),
-				bufSize = framesToRead * frameSize;
+				bufSize = framesToRead * decode.getFrameSize();
 		
 		// Need two bytes for each channel
 		byte[] dataIn = new byte[bufSize];
@@ -89,18 +91,7 @@ public class AudioFileAnalyzer {
 		 * in real life.
 		 */
 		while (din.read(dataIn) == bufSize) {
-			// Convert bytes to integers and create frame
-			// averages.
-			int index = 0;
-			for (int i = 0; i < bufSize; i += frameSize) {
-				int avg = 0;
-				
-				for (int offset = 0; offset < nchannels; offset += 2) {
-					avg += toShort(dataIn, i + offset);
-				}
-				data[index] = (short)Math.round(avg / (double)nchannels);
-				index++;
-			}
+			toMono(dataIn, data);
 			
 			// The frame is filled; pass on to the analyzer
 			analyzer.onNewData(data);
@@ -119,6 +110,60 @@ public class AudioFileAnalyzer {
 		in.close();
 	}
 	
+	/**
+	 * Reads the entire file at once, for offline analysis. Like
+	 * start(), this reads in blocks of the analyzer's hop size
+	 * and discards the last block if it is incomplete, so the
+	 * BatchAnalyzer produces exactly the same windows.
+	 * @return The mono PCM data
+	 * @throws IOException
+	 */
+	public short[] readAll() throws IOException {
+		int framesToRead = analyzer.getDataSize(),
+			bufSize = framesToRead * decode.getFrameSize();
+		
+		byte[] dataIn = new byte[bufSize];
+		short[] data = new short[framesToRead];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		while (din.read(dataIn) == bufSize) {
+			toMono(dataIn, data);
+			for (short s : data) {
+				out.writeShort(s);
+			}
+		}
+		
+		din.close();
+		in.close();
+		
+		ShortBuffer samples = ByteBuffer.wrap(bytes.toByteArray()).asShortBuffer();
+		short[] pcm = new short[samples.remaining()];
+		samples.get(pcm);
+		return pcm;
+	}
+	
+	/**
+	 * Converts a block of decoded bytes into frame averages.
+	 * @param dataIn The decoded bytes
+	 * @param data Output, one value for each frame in dataIn
+	 */
+	private void toMono(byte[] dataIn, short[] data) {
+		int frameSize = decode.getFrameSize(), 
+			nchannels = decode.getChannels(),
+			index = 0;
+		
+		for (int i = 0; i < dataIn.length; i += frameSize) {
+			int avg = 0;
+			
+			for (int offset = 0; offset < nchannels; offset += 2) {
+				avg += toShort(dataIn, i + offset);
+			}
+			data[index] = (short)Math.round(avg / (double)nchannels);
+			index++;
+		}
+	}
+	
 	/**
 	 * Shows info about the opened file. 
 	 */
@@ -0,0 +1,213 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nl.metaphoric.scorefollower.lib.AnalyzeListener;
+import nl.metaphoric.scorefollower.lib.AudioAnalyzer;
+import nl.metaphoric.scorefollower.lib.AudioBuffer;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+import edu.emory.mathcs.utils.ConcurrencyUtils;
+
+/**
+ * Creates the FrameVectors of an entire audio file at once. Offline,
+ * every analysis window is independent of the others, so the windows
+ * are divided over the threads of a fork-join pool, each with its own
+ * FFT transformer.
+ * 
+ * The windows are exactly the ones the AudioAnalyzer would produce
+ * if the data was fed to it one hop at a time, so the result can be
+ * used in place of the AudioAnalyzer's output.
+ * 
+ * @author Elte Hupkes
+ */
+public class BatchAnalyzer {
+	/**
+	 * The number of windows below which a task is no
+	 * longer split.
+	 */
+	private static final int MIN_TASK_SIZE = 32;
+	
+	/**
+	 * Pool shared by all analyzers that don't specify one
+	 */
+	private static final ForkJoinPool SHARED_POOL = new ForkJoinPool();
+	
+	/**
+	 * The pool to analyze in
+	 */
+	private ForkJoinPool pool;
+	
+	/**
+	 * The analysis window and hop size in samples
+	 */
+	private int frameSize, hopFrameSize;
+	
+	/**
+	 * The sample rate
+	 */
+	private float sampleRate;
+	
+	/**
+	 * The FrameVector type, fixed when the analyzer is created
+	 * so all threads use the same one.
+	 */
+	private int type;
+	
+	/**
+	 * One transformer for every worker thread
+	 */
+	private ThreadLocal<DoubleFFT_1D> transformers = new ThreadLocal<DoubleFFT_1D>() {
+		@Override
+		protected DoubleFFT_1D initialValue() {
+			return new DoubleFFT_1D(frameSize);
+		}
+	};
+	
+	/**
+	 * Creates a batch analyzer with the same settings as
+	 * the given AudioAnalyzer.
+	 * @param analyzer
+	 */
+	public BatchAnalyzer(AudioAnalyzer analyzer) {
+		this(analyzer, SHARED_POOL);
+	}
+	
+	/**
+	 * Creates a batch analyzer with the same settings as
+	 * the given AudioAnalyzer, which runs in the given pool.
+	 * @param analyzer
+	 * @param pool
+	 */
+	public BatchAnalyzer(AudioAnalyzer analyzer, ForkJoinPool pool) {
+		this.pool = pool;
+		frameSize = analyzer.getFrameSize();
+		hopFrameSize = analyzer.getDataSize();
+		sampleRate = analyzer.getSampleRate();
+		type = Parameters.frameVectorType;
+	}
+	
+	/**
+	 * Analyzes the given mono PCM data.
+	 * @param pcm
+	 * @return The FrameVectors, in order
+	 */
+	public List<FrameVector> analyze(short[] pcm) {
+		/*
+		 * The AudioAnalyzer receives hops of data, and creates a vector
+		 * as soon as it has received a full window. Incomplete hops at
+		 * the end are never received.
+		 */
+		int hops = pcm.length / hopFrameSize,
+			first = (frameSize + hopFrameSize - 1) / hopFrameSize,
+			count = Math.max(0, hops - first + 1);
+		FrameVector[] vectors = new FrameVector[count];
+		pool.invoke(new AnalyzeTask(pcm, vectors, first, 0, count));
+		return Arrays.asList(vectors);
+	}
+	
+	/**
+	 * Analyzes the given PCM data and passes the vectors
+	 * to the listener, in order.
+	 * @param pcm
+	 * @param listener
+	 */
+	public void analyze(short[] pcm, AnalyzeListener listener) {
+		for (FrameVector v : analyze(pcm)) {
+			listener.onNewAnalysisData(v);
+		}
+	}
+	
+	/**
+	 * Creates the vectors of a range of windows, splitting
+	 * the range while it is large.
+	 */
+	private class AnalyzeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private short[] pcm;
+		private FrameVector[] vectors;
+		private int first, from, to;
+		
+		/**
+		 * @param pcm The data
+		 * @param vectors The result array
+		 * @param first The number of hops that make up the first window
+		 * @param from The first window (including)
+		 * @param to The last window (excluding)
+		 */
+		AnalyzeTask(short[] pcm, FrameVector[] vectors, int first, int from, int to) {
+			this.pcm = pcm;
+			this.vectors = vectors;
+			this.first = first;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from > MIN_TASK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new AnalyzeTask(pcm, vectors, first, from, mid),
+						new AnalyzeTask(pcm, vectors, first, mid, to));
+				return;
+			}
+			
+			AudioBuffer buffer = new AudioBuffer(frameSize);
+			if (FrameVectorFactory.isFixedPoint(type)) {
+				// Fixed point vectors do their own transform
+				for (int i = from; i < to; i++) {
+					fill(buffer, i);
+					vectors[i] = FrameVectorFactory.getVector(type, buffer, sampleRate, null);
+				}
+				return;
+			}
+			
+			/*
+			 * Window all data first, transform all windows in one batch, and
+			 * only then create the vectors. This keeps the FFT tables in cache
+			 * during the transforms.
+			 */
+			int m = to - from;
+			double[] data = new double[m * frameSize], rms = new double[m];
+			for (int i = 0; i < m; i++) {
+				fill(buffer, from + i);
+				rms[i] = FrameVector.window(buffer, data, i * frameSize);
+			}
+			
+			/*
+			 * The transformer uses threads of its own for large windows,
+			 * which only gets in the way here. Only limit this worker, so
+			 * other analyzers and transforms are not affected.
+			 */
+			ConcurrencyUtils.setLocalNumberOfThreads(1);
+			try {
+				transformers.get().realForwardBatch(data, 0, m);
+			} finally {
+				ConcurrencyUtils.setLocalNumberOfThreads(0);
+			}
+			
+			for (int i = 0; i < m; i++) {
+				vectors[from + i] = FrameVectorFactory.getVector(type, data, i * frameSize, 
+						frameSize, rms[i], sampleRate);
+			}
+		}
+		
+		/**
+		 * Fills the buffer with the samples of the given window.
+		 * @param buffer
+		 * @param window
+		 */
+		private void fill(AudioBuffer buffer, int window) {
+			// Window i ends after hop first + i
+			int end = (first + window) * hopFrameSize;
+			buffer.clear();
+			buffer.put(pcm, end - frameSize, frameSize);
+		}
+	}
+}
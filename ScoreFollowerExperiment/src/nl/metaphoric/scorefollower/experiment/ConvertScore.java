@@ -0,0 +1,55 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.io.IOException;
+
+import nl.metaphoric.scorefollower.lib.file.ScoreReader;
+import nl.metaphoric.scorefollower.lib.file.ScoreWriter;
+
+/**
+ * Converts score files between the text format and the
+ * binary SFT-B format. The output format is chosen by the
+ * extension of the output file (".sftb" is binary). Also
+ * reports how long loading takes from either file.
+ * 
+ * Binary output can be quantized to 8 or 16 bits per chroma value,
+ * see BinaryScore.
+ * 
+ * Usage: ConvertScore input output [bits]
+ * 
+ * @author Elte Hupkes
+ */
+public class ConvertScore {
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: ConvertScore input output [bits]");
+			return;
+		}
+		
+		int bits = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		ScoreWriter.convert(args[0], args[1], bits);
+		System.out.println("Wrote "+args[1]);
+		
+		System.out.println(String.format("Load %s: %.2f ms", args[0], loadTime(args[0])));
+		System.out.println(String.format("Load %s: %.2f ms", args[1], loadTime(args[1])));
+	}
+	
+	/**
+	 * Returns the mean time to load the given score in ms,
+	 * after a few warm up loads.
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	private static double loadTime(String filename) throws IOException {
+		int rounds = 20;
+		for (int i = 0; i < 5; i++) {
+			new ScoreReader(filename);
+		}
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			new ScoreReader(filename);
+		}
+		return (System.nanoTime() - start) / (rounds * 1000000.0);
+	}
+}
@@ -0,0 +1,86 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import nl.metaphoric.scorefollower.lib.file.ScoreBundle;
+import nl.metaphoric.scorefollower.lib.file.ScoreHeader;
+import nl.metaphoric.scorefollower.lib.file.ScoreReader;
+
+/**
+ * Packs a score and its page images into a single ScoreBundle
+ * (".sfz"), with a JPEG thumbnail of every page. When the input
+ * is a bundle itself, its pages and thumbnails are copied.
+ *
+ * Usage: CreateBundle score output.sfz [thumbnail width]
+ *
+ * @author Elte Hupkes
+ */
+public class CreateBundle {
+	/**
+	 * Default thumbnail width in pixels
+	 */
+	public static final int THUMBNAIL_WIDTH = 256;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: CreateBundle score output.sfz [thumbnail width]");
+			return;
+		}
+
+		int width = args.length > 2 ? Integer.parseInt(args[2]) : THUMBNAIL_WIDTH;
+		List<byte[]> thumbnails = new ArrayList<byte[]>();
+		for (String page : new ScoreHeader(args[0]).getPages()) {
+			thumbnails.add(new File(page).isFile() ? thumbnail(page, width) : null);
+		}
+
+		ScoreBundle.write(args[1], args[0], thumbnails, null);
+
+		ScoreBundle bundle = new ScoreBundle(args[1]);
+		for (String entry : bundle.getEntries()) {
+			System.out.println(String.format("%-24s %10d bytes at %d", entry,
+					bundle.size(entry), bundle.offset(entry)));
+		}
+
+		long start = System.nanoTime();
+		ScoreReader reader = new ScoreReader(args[1]);
+		System.out.println(String.format("Loaded %d frames from %s in %.2f ms",
+				reader.getReference().size(), args[1], (System.nanoTime() - start) / 1e6));
+		reader.close();
+	}
+
+	/**
+	 * Returns a JPEG thumbnail of the given image
+	 * @param filename
+	 * @param width
+	 * @return The encoded thumbnail, or null if the image can't be read
+	 * @throws IOException
+	 */
+	private static byte[] thumbnail(String filename, int width) throws IOException {
+		BufferedImage image = ImageIO.read(new File(filename));
+		if (image == null) {
+			System.out.println("Can't read "+filename+", leaving out its thumbnail.");
+			return null;
+		}
+
+		int height = Math.max(1, image.getHeight() * width / image.getWidth());
+		BufferedImage thumb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = thumb.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+		g.dispose();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(thumb, "jpg", out);
+		return out.toByteArray();
+	}
+}
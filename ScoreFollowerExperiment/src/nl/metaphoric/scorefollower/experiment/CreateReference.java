@@ -1,12 +1,20 @@
 package nl.metaphoric.scorefollower.experiment;
 
+import java.io.File;
+import java.io.IOException;
+
 import nl.metaphoric.scorefollower.lib.AnalyzeListener;
+import nl.metaphoric.scorefollower.lib.AudioAnalyzer;
 import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.feature.AnalysisConfig;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
 import nl.metaphoric.scorefollower.lib.file.PositionRecorder;
+import nl.metaphoric.scorefollower.lib.file.ScoreHeader;
 
 /**
- * Creates a ScoreReader readable file from a wav file.
+ * Creates a ScoreReader readable file from a wav file. An existing
+ * output file that is newer than the input and was created with the
+ * same analysis configuration is kept, unless "force" is given.
  * 
  * @author Elte Hupkes
  */
@@ -29,7 +37,9 @@ public class CreateReference implements AnalyzeListener {
 		double windowSize = Double.parseDouble(args[2]),
 				hopSize = Double.parseDouble(args[3]);
 		
-		new CreateReference(input, output, windowSize, hopSize);
+		boolean force = args.length > 4 && args[4].equals("force");
+		
+		new CreateReference(input, output, windowSize, hopSize, force);
 	}
 
 	/**
@@ -37,7 +47,7 @@ public class CreateReference implements AnalyzeListener {
 	 */
 	public static void usage() {
 		System.out.println("Usage: ");
-		System.out.println("java CreateReference input output_sft window_size hop_size");
+		System.out.println("java CreateReference input output_sft window_size hop_size [force]");
 	}	
 	
 	/**
@@ -51,17 +61,27 @@ public class CreateReference implements AnalyzeListener {
 	 * @param output
 	 * @param windowSize
 	 * @param hopSize
+	 * @param force Analyze even if the output is up to date
 	 */
-	public CreateReference(String input, String output, double windowSize, double hopSize) {
+	public CreateReference(String input, String output, double windowSize, double hopSize, boolean force) {
 		Log.d(TAG, "Creating reference file from file "+input);
 		recorder = new PositionRecorder();
 		
 		try {
-			// Create the wave analyzer, and start it.
+			// Create the wave analyzer, and analyze the whole file at once.
+			// Compare with the sizes the analyzer rounded to whole samples,
+			// as those are the ones the output is written with.
 			AudioFileAnalyzer w = new AudioFileAnalyzer(input, windowSize, hopSize, this);
+			AudioAnalyzer analyzer = w.getAnalyzer();
+			if (!force && isUpToDate(input, output, new AnalysisConfig(analyzer.getSampleRate(),
+					analyzer.windowSize(), analyzer.hopSize()))) {
+				Log.i(TAG, "Output file "+output+" is up to date.");
+				return;
+			}
+			
 			recorder.recordTimes();
 			//recorder.getPlaybackAnalyzer().forceStart();
-			w.start();
+			new BatchAnalyzer(w.getAnalyzer()).analyze(w.readAll(), this);
 			
 			Log.d(TAG, "Writing to output file "+output+"...");
 			recorder.write(output, new String[] {}, w.getAnalyzer());
@@ -71,6 +91,27 @@ public class CreateReference implements AnalyzeListener {
 		}
 	}
 	
+	/**
+	 * @param input
+	 * @param output
+	 * @param config The configuration the output would be created with
+	 * @return True if the output exists, is newer than the input and has
+	 * 			the fingerprint of the given configuration.
+	 */
+	private static boolean isUpToDate(String input, String output, AnalysisConfig config) {
+		File out = new File(output);
+		if (!out.isFile() || out.lastModified() < new File(input).lastModified()) {
+			return false;
+		}
+		
+		try {
+			String fingerprint = new ScoreHeader(output).getFingerprint();
+			return fingerprint != null && fingerprint.equals(config.fingerprint());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
 	@Override
 	public void onNewAnalysisData(FrameVector v) {
 		recorder.addData(v);
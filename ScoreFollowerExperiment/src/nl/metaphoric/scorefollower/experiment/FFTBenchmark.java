@@ -0,0 +1,93 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.util.Random;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+import edu.emory.mathcs.utils.ConcurrencyUtils;
+
+/**
+ * Compares transforming analysis windows one by one through
+ * DoubleFFT_1D.realForward with transforming them in batches
+ * through realForwardBatch, as the BatchAnalyzer does.
+ * 
+ * Both run on a single thread, as they would in every worker
+ * of the BatchAnalyzer.
+ * 
+ * @author Elte Hupkes
+ */
+public class FFTBenchmark {
+	public static void main(String[] args) {
+		int frameSize = args.length > 0 ? Integer.parseInt(args[0]) : 11025,
+			nWindows = args.length > 1 ? Integer.parseInt(args[1]) : 32,
+			nRounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		
+		ConcurrencyUtils.setNumberOfThreads(1);
+		DoubleFFT_1D transformer = new DoubleFFT_1D(frameSize);
+		
+		Random random = new Random(42);
+		double[] source = new double[nWindows * frameSize];
+		for (int i = 0; i < source.length; i++) {
+			source[i] = random.nextDouble() * 2 - 1;
+		}
+		
+		double[] single = new double[frameSize], 
+				batch = new double[source.length];
+		
+		// Warm up, then measure.
+		double sum = 0;
+		for (int r = 0; r < 3; r++) {
+			sum += perWindow(transformer, source, single, nWindows);
+			sum += batched(transformer, source, batch, nWindows);
+		}
+		
+		long start = System.nanoTime();
+		for (int r = 0; r < nRounds; r++) {
+			sum += perWindow(transformer, source, single, nWindows);
+		}
+		long perWindow = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int r = 0; r < nRounds; r++) {
+			sum += batched(transformer, source, batch, nWindows);
+		}
+		long batched = System.nanoTime() - start;
+		
+		double n = nRounds * nWindows * 1000000.0;
+		System.out.println("Frame size "+frameSize+", "+nWindows+" windows per batch");
+		System.out.println(String.format("Per window: %.3f ms / window", perWindow / n));
+		System.out.println(String.format("Batched:    %.3f ms / window", batched / n));
+		System.out.println("Checksum: "+sum);
+	}
+	
+	/**
+	 * Transforms all windows one by one, each in a fresh
+	 * array like the FrameVectors do.
+	 */
+	private static double perWindow(DoubleFFT_1D transformer, double[] source, 
+			double[] data, int nWindows) {
+		int frameSize = data.length;
+		double sum = 0;
+		for (int i = 0; i < nWindows; i++) {
+			System.arraycopy(source, i * frameSize, data, 0, frameSize);
+			transformer.realForward(data);
+			sum += data[2];
+		}
+		return sum;
+	}
+	
+	/**
+	 * Transforms all windows in one batch
+	 */
+	private static double batched(DoubleFFT_1D transformer, double[] source, 
+			double[] data, int nWindows) {
+		int frameSize = source.length / nWindows;
+		System.arraycopy(source, 0, data, 0, source.length);
+		transformer.realForwardBatch(data, 0, nWindows);
+		
+		double sum = 0;
+		for (int i = 0; i < nWindows; i++) {
+			sum += data[i * frameSize + 2];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,85 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import nl.metaphoric.scorefollower.lib.AudioBuffer;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.feature.FixedChromaVector;
+import nl.metaphoric.scorefollower.lib.window.HannWindow;
+
+/**
+ * Checks that the FixedChromaVector gives the exact same results
+ * on this JVM as on the one the stored digest was made with.
+ *
+ * A synthetic signal of square waves and noise is generated with
+ * integer arithmetic only, analyzed frame by frame, and the MD5 of
+ * all quantized chroma values and RMS values is compared with
+ * DIGEST. Exits with status 1 when they differ.
+ *
+ * Usage: FixedPointCheck
+ *
+ * @author Elte Hupkes
+ */
+public class FixedPointCheck {
+	/**
+	 * The digest of the output for the signal below
+	 */
+	private static final String DIGEST = "6bf29f3f7a29686085e62604cc871ee4";
+
+	private static final float SAMPLE_RATE = 44100;
+	private static final int FRAME_SIZE = 4410,
+							HOP_SIZE = 2205,
+							FRAMES = 200;
+
+	/**
+	 * Square wave periods in samples, roughly A3, C#4, E4 and A4
+	 */
+	private static final int[] PERIODS = {200, 159, 134, 100};
+
+	public static void main(String[] args) throws Exception {
+		Parameters.window = new HannWindow();
+
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		AudioBuffer buffer = new AudioBuffer(FRAME_SIZE);
+		Random random = new Random(42);
+		short[] hop = new short[HOP_SIZE];
+		long sample = 0;
+		int frames = 0;
+
+		while (frames < FRAMES) {
+			for (int i = 0; i < HOP_SIZE; i++, sample++) {
+				// Change the chord every second
+				int chord = (int)(sample / (int)SAMPLE_RATE), v = 0;
+				for (int k = 0; k < PERIODS.length; k++) {
+					if (((chord >> k) & 1) == 0) {
+						v += (sample % PERIODS[k]) < PERIODS[k] / 2 ? 4000 : -4000;
+					}
+				}
+				hop[i] = (short)(v + random.nextInt(2001) - 1000);
+			}
+
+			buffer.put(hop);
+			if (buffer.full()) {
+				FixedChromaVector vector = new FixedChromaVector(buffer, SAMPLE_RATE);
+				for (int q : vector.getQuantized()) {
+					md5.update((byte)q);
+				}
+				long rms = Double.doubleToLongBits(vector.rms);
+				for (int i = 0; i < 8; i++) {
+					md5.update((byte)(rms >>> (8 * i)));
+				}
+				frames++;
+			}
+		}
+
+		String digest = String.format("%032x", new BigInteger(1, md5.digest()));
+		if (digest.equals(DIGEST)) {
+			System.out.println("OK, "+frames+" frames match "+DIGEST);
+		} else {
+			System.out.println("MISMATCH: got "+digest+", expected "+DIGEST);
+			System.exit(1);
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package nl.metaphoric.scorefollower.experiment;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 import nl.metaphoric.scorefollower.lib.AnalyzeListener;
 import nl.metaphoric.scorefollower.lib.RunningAverage;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
 import nl.metaphoric.scorefollower.lib.file.ScoreReader;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.matcher.Matcher;
+import nl.metaphoric.scorefollower.lib.matcher.MatcherFactory;
 import nl.metaphoric.scorefollower.lib.matcher.PositionMatcher;
 
 /**
@@ -19,6 +24,10 @@ import nl.metaphoric.scorefollower.lib.matcher.PositionMatcher;
  * SFT, feeds it to a ScoreReader, and then performs
  * the testing.
  * 
+ * Matching engines can be compared by passing a matcher
+ * name (see MatcherFactory), or "all" to run the test with
+ * every engine, as the last argument.
+ * 
  * @author Elte Hupkes
  *
  */
@@ -37,13 +46,25 @@ public class FollowTester implements AnalyzeListener {
 				annotation = args.length > 5 ? args[5] : null;
 		double windowSize = Double.parseDouble(args[3]),
 				hopSize = Double.parseDouble(args[4]);
-		new FollowTester(args[0], 
-				reference, performance, annotation, windowSize, hopSize, System.out);
+		
+		String engine = args.length > 6 ? args[6] : null;
+		for (int type = 0; type < MatcherFactory.types(); type++) {
+			if (engine == null && type != Parameters.matcherType ||
+					engine != null && !engine.equals("all") && type != MatcherFactory.type(engine)) {
+				continue;
+			}
+			
+			System.out.println("Matcher: "+MatcherFactory.name(type));
+			Parameters.matcherType = type;
+			new FollowTester(args[0], 
+					reference, performance, annotation, windowSize, hopSize, System.out);
+		}
 	}
 	
 	public static void usage() {
 		System.out.println("Usage: ");
-		System.out.println("FollowTester testDataDir name window_size hop_size[ annotation]");
+		System.out.println("FollowTester testDataDir reference performance window_size hop_size "+
+				"[annotation [matcher|all]]");
 	}
 	
 	/**
@@ -53,9 +74,19 @@ public class FollowTester implements AnalyzeListener {
 	private static final double FOLLOW_THRESHOLD = 0.5;
 	
 	/**
-	 * The PositionMatcher used for the comparison
+	 * The Matcher used for the comparison
 	 */
-	private PositionMatcher matcher;
+	private Matcher matcher;
+	
+	/**
+	 * Total time spent matching, in nanoseconds
+	 */
+	private long matchTime = 0;
+	
+	/**
+	 * Sum of the PositionMatcher's search window over all frames
+	 */
+	private double searchTotal = 0;
 	
 	/**
 	 * Expected value getter
@@ -90,12 +121,15 @@ public class FollowTester implements AnalyzeListener {
 	 */
 	public FollowTester(String baseDir, String reference, String performance, String annotation, 
 			double windowSize, double hopSize, OutputStream detailWriter) {
-		String tmpFile = baseDir + "last_test.sft";
+		// One analyzed reference per reference file, reused as long as the
+		// analysis configuration (including window / hop size) is the same.
+		new File(baseDir + "cache").mkdirs();
+		String tmpFile = baseDir + "cache/" + reference + ".sft";
 		
 		out = detailWriter;
 		
 		// Create the reference file
-		new CreateReference(baseDir+"reference/"+reference, tmpFile, windowSize, hopSize);
+		new CreateReference(baseDir+"reference/"+reference, tmpFile, windowSize, hopSize, false);
 		
 		String input = baseDir+"performance/"+performance;
 		error = new RunningAverage();
@@ -116,7 +150,10 @@ public class FollowTester implements AnalyzeListener {
 //				out.write(String.format("%10s \t\t %10s \t\t %10s \t\t %10s \t\t %10s\n",
 //						"Time", "Pos.", "Est.", "Exp.", "Err.").getBytes());
 //			}
-			w.start();
+			
+			// Analysis is independent of the following, so create all
+			// vectors up front and follow them in order afterwards.
+			new BatchAnalyzer(w.getAnalyzer()).analyze(w.readAll(), this);
 			
 			if (out != null) {				
 				out.write(new byte[]{'\n'});
@@ -128,6 +165,15 @@ public class FollowTester implements AnalyzeListener {
 			System.out.println("Max error: "+maxError);
 			System.out.println("Min error: "+minError);
 			System.out.println("[Avg 1:1 error: "+ooError.getMean()+"]");
+			System.out.println(String.format("Matching time per frame: %.4f ms", 
+					matchTime / (nData * 1e6)));
+			if (matcher instanceof PositionMatcher) {
+				System.out.println(String.format("Vectors evaluated per frame: %.1f", 
+						((PositionMatcher)matcher).getEvaluated() / (double)nData));
+				System.out.println(String.format("Average search window: %.2f s", searchTotal / nData));
+				System.out.println(String.format("Frames dead reckoned: %.1f%%", 
+						100 * ((PositionMatcher)matcher).getReckoned() / (double)nData));
+			}
 		} catch (Exception e) {
 			System.out.println("ERROR: "+e.getMessage());
 			e.printStackTrace();
@@ -137,7 +183,12 @@ public class FollowTester implements AnalyzeListener {
 	@Override
 	public void onNewAnalysisData(FrameVector v) {
 		// Get the estimated position
+		long start = System.nanoTime();
 		int position = matcher.getPosition(v);
+		matchTime += System.nanoTime() - start;
+		if (matcher instanceof PositionMatcher) {
+			searchTotal += ((PositionMatcher)matcher).getSearchWindow();
+		}
 		
 		/*
 		 * Current time: Number of frames * frame hop in time
@@ -153,7 +204,7 @@ public class FollowTester implements AnalyzeListener {
 		 * would've run 1:1 in time, oo = one-one).
 		 */
 		double current	   = nData * matcher.hopSize(),
-			   estimate	   = reader.getTimes().get(position),
+			   estimate	   = getTime(matcher.getFractionalPosition()),
 			   expected	   = annotator.getExpectedPosition(current),
 			   err		   = Math.abs(estimate - expected),
 			   ooErr	   = Math.abs(current - expected);
@@ -186,4 +237,20 @@ public class FollowTester implements AnalyzeListener {
 		}
 		nData++;
 	}
+	
+	/**
+	 * Returns the reference time of the given fractional
+	 * position, interpolated between reference vectors.
+	 * @param position
+	 * @return
+	 */
+	private double getTime(double position) {
+		List<Double> times = reader.getTimes();
+		int i = Math.min(times.size() - 2, Math.max(0, (int)Math.floor(position)));
+		if (i < 0) {
+			return times.get(0);
+		}
+		double fraction = Math.max(0, Math.min(1, position - i));
+		return times.get(i) + fraction * (times.get(i + 1) - times.get(i));
+	}
 }
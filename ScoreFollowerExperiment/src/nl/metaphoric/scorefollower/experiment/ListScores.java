@@ -0,0 +1,33 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.io.File;
+import java.util.List;
+
+import nl.metaphoric.scorefollower.lib.file.ScoreHeader;
+
+/**
+ * Lists the score files in a directory with their length, pages
+ * and analysis fingerprint, reading only the score headers.
+ * 
+ * Usage: ListScores directory
+ * 
+ * @author Elte Hupkes
+ */
+public class ListScores {
+	public static void main(String[] args) {
+		File dir = new File(args.length > 0 ? args[0] : ".");
+		
+		long start = System.nanoTime();
+		List<ScoreHeader> headers = ScoreHeader.scan(dir);
+		double ms = (System.nanoTime() - start) / 1000000.0;
+		
+		for (ScoreHeader h : headers) {
+			double duration = h.getDuration();
+			String fingerprint = h.getFingerprint();
+			System.out.println(String.format("%-40s %8s %3d pages  %s", new File(h.getFilename()).getName(),
+					duration < 0 ? "?" : String.format("%.1f s", duration), h.getPages().size(),
+					fingerprint == null ? "-" : fingerprint));
+		}
+		System.out.println(String.format("Read %d headers in %.1f ms", headers.size(), ms));
+	}
+}
@@ -0,0 +1,115 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.util.Random;
+
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+
+/**
+ * Benchmarks the matchProbability implementations of the
+ * different FrameVector types, using random vectors.
+ * 
+ * Besides the time per match it shows how often the type
+ * ranks a pair of reference vectors in the same order as
+ * the log sum chroma vector (the default type) does, as
+ * an indication of how much the matching behavior changes.
+ * 
+ * @author Elte Hupkes
+ */
+public class MatchBenchmark {
+	public static void main(String[] args) {
+		int nReference = args.length > 0 ? Integer.parseInt(args[0]) : 10000,
+			nRounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		
+		int[] types = {
+			FrameVectorFactory.TYPE_LOG_SUM_CHROMA,
+			FrameVectorFactory.TYPE_COSINE_CHROMA,
+			FrameVectorFactory.TYPE_CENS_CHROMA,
+			FrameVectorFactory.TYPE_DCT_CHROMA,
+			FrameVectorFactory.TYPE_FIXED_CHROMA
+		};
+		
+		// Random [0, 1] chroma vectors, the range of the sum chroma vectors.
+		Random random = new Random(42);
+		double[][] data = new double[nReference + 1][];
+		for (int i = 0; i <= nReference; i++) {
+			data[i] = new double[13];
+			for (int j = 0; j < 13; j++) {
+				data[i][j] = random.nextDouble();
+			}
+		}
+		
+		FrameVector[][] references = new FrameVector[types.length][nReference];
+		FrameVector[] vectors = new FrameVector[types.length];
+		for (int t = 0; t < types.length; t++) {
+			for (int i = 0; i < nReference; i++) {
+				references[t][i] = FrameVectorFactory.getVector(types[t], data[i].clone());
+				
+				// Mimic the ScoreReader, which normalizes up front.
+				if (FrameVectorFactory.usesUnitChroma(types[t])) {
+					references[t][i].unitChroma();
+				}
+			}
+			vectors[t] = FrameVectorFactory.getVector(types[t], data[nReference].clone());
+		}
+		
+		// Warm up all types first, so they're all measured with the
+		// same (compiled) matching loop.
+		double[] p = new double[nReference];
+		double sum = 0;
+		for (int r = 0; r < 20; r++) {
+			for (int t = 0; t < types.length; t++) {
+				sum += match(vectors[t], references[t], p);
+			}
+		}
+		
+		double[] baseline = null;
+		for (int t = 0; t < types.length; t++) {
+			long start = System.nanoTime();
+			for (int r = 0; r < nRounds; r++) {
+				sum += match(vectors[t], references[t], p);
+			}
+			long time = System.nanoTime() - start;
+			
+			System.out.println(String.format("Type %d: %.2f ns / match", types[t],
+					time / (double)(nRounds * nReference)));
+			
+			if (baseline == null) {
+				baseline = p.clone();
+			} else {
+				System.out.println(String.format("        %.2f%% rank agreement with type %d", 
+						100 * agreement(baseline, p), types[0]));
+			}
+		}
+		
+		// Print the checksum so the matching can't be optimized away.
+		System.out.println("Checksum: "+sum);
+	}
+	
+	/**
+	 * Matches v against all reference vectors
+	 * @return The sum of all probabilities
+	 */
+	private static double match(FrameVector v, FrameVector[] reference, double[] p) {
+		double sum = 0;
+		for (int i = 0; i < reference.length; i++) {
+			p[i] = v.matchProbability(reference[i]);
+			sum += p[i];
+		}
+		return sum;
+	}
+	
+	/**
+	 * Returns the fraction of consecutive pairs that are
+	 * ordered the same way in both probability arrays.
+	 */
+	private static double agreement(double[] a, double[] b) {
+		int same = 0;
+		for (int i = 1; i < a.length; i++) {
+			if ((a[i] > a[i - 1]) == (b[i] > b[i - 1])) {
+				same++;
+			}
+		}
+		return same / (double)(a.length - 1);
+	}
+}
@@ -0,0 +1,144 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+import nl.metaphoric.scorefollower.lib.file.ScoreReader;
+import nl.metaphoric.scorefollower.lib.file.ScoreWriter;
+import nl.metaphoric.scorefollower.lib.matcher.Matcher;
+
+/**
+ * Measures the effect of quantized reference data on following.
+ * The given performance is followed with full precision reference
+ * data and with 16 and 8 bit quantized reference data, and the
+ * estimated positions of the quantized runs are compared with the
+ * full precision run. Also reports the time per getPosition() call
+ * and the size of the reference in the binary formats.
+ * 
+ * Without a performance file, the reference vectors themselves are
+ * followed with some noise added to them.
+ * 
+ * Usage: QuantizationTester score [performance]
+ * 
+ * @author Elte Hupkes
+ */
+public class QuantizationTester {
+	/**
+	 * Standard deviation of the noise added to the chroma values
+	 * when following the reference itself.
+	 */
+	private static final double NOISE = 0.05;
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: QuantizationTester score [performance]");
+			return;
+		}
+		
+		ExperimentLogger logger = new ExperimentLogger();
+		logger.debug = false;
+		nl.metaphoric.scorefollower.lib.Log.setLogger(logger);
+		
+		if (!FrameVectorFactory.isQuantizable(Parameters.frameVectorType)) {
+			System.out.println("FrameVector type "+Parameters.frameVectorType+" cannot be quantized.");
+			return;
+		}
+		
+		String score = args[0];
+		Parameters.referenceBits = 0;
+		ScoreReader full = new ScoreReader(score);
+		
+		List<FrameVector> input;
+		if (args.length > 1) {
+			AudioFileAnalyzer w = new AudioFileAnalyzer(args[1], full.getMatcher().windowSize(),
+					full.getMatcher().hopSize(), null);
+			input = new BatchAnalyzer(w.getAnalyzer()).analyze(w.readAll());
+		} else {
+			input = noisy(full.getReference());
+		}
+		
+		int[] expected = follow(full.getMatcher(), input, "Full precision");
+		for (int bits : new int[] {16, 8}) {
+			Parameters.referenceBits = bits;
+			int[] positions = follow(new ScoreReader(score).getMatcher(), input, bits+" bit");
+			compare(expected, positions, full.getMatcher().hopSize());
+		}
+		Parameters.referenceBits = 0;
+		
+		// File sizes
+		File tmp = File.createTempFile("quantized", ScoreWriter.BINARY_EXTENSION);
+		for (int bits : new int[] {0, 16, 8}) {
+			ScoreWriter.convert(score, tmp.getPath(), bits);
+			System.out.println(String.format("SFT-B size, %s: %d bytes", 
+					bits == 0 ? "floats" : bits+" bit", tmp.length()));
+		}
+		tmp.delete();
+		System.out.println("Text size: "+new File(score).length()+" bytes");
+	}
+	
+	/**
+	 * Follows the input vectors
+	 * @param matcher
+	 * @param input
+	 * @param name Printed with the timing
+	 * @return The estimated position for every input vector
+	 */
+	private static int[] follow(Matcher matcher, List<FrameVector> input, String name) {
+		// Warm up, so both runs are measured compiled
+		for (FrameVector v : input) {
+			matcher.getPosition(v);
+		}
+		matcher.restart();
+		
+		int[] positions = new int[input.size()];
+		long start = System.nanoTime();
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = matcher.getPosition(input.get(i));
+		}
+		long time = System.nanoTime() - start;
+		System.out.println(String.format("%-15s %8.1f us / frame", name, 
+				time / (1000.0 * positions.length)));
+		return positions;
+	}
+	
+	/**
+	 * Prints how often the positions equal the expected positions,
+	 * and the mean / maximum difference.
+	 */
+	private static void compare(int[] expected, int[] positions, double hopSize) {
+		int same = 0, max = 0;
+		double sum = 0;
+		for (int i = 0; i < expected.length; i++) {
+			int d = Math.abs(expected[i] - positions[i]);
+			if (d == 0) {
+				same++;
+			}
+			max = Math.max(max, d);
+			sum += d;
+		}
+		System.out.println(String.format("                %.2f%% identical positions, mean difference %.3fs, max %.2fs",
+				100.0 * same / expected.length, sum * hopSize / expected.length, max * hopSize));
+	}
+	
+	/**
+	 * Returns copies of the given vectors with gaussian noise added
+	 */
+	private static List<FrameVector> noisy(List<FrameVector> reference) {
+		Random random = new Random(42);
+		List<FrameVector> input = new ArrayList<FrameVector>(reference.size());
+		for (FrameVector v : reference) {
+			double[] parts = new double[13];
+			for (int j = 0; j < 12; j++) {
+				parts[j] = Math.min(1, Math.max(0, v.getChroma()[j] + NOISE * random.nextGaussian()));
+			}
+			parts[12] = v.rms;
+			input.add(FrameVectorFactory.getVector(parts));
+		}
+		return input;
+	}
+}
@@ -101,10 +101,21 @@ public class TestRunner {
 			//FrameVectorFactory.TYPE_LINEAR_CHROMA,
 			//FrameVectorFactory.TYPE_LOG_CHROMA,
 			//FrameVectorFactory.TYPE_LINEAR_SUM_CHROMA,
-			//FrameVectorFactory.TYPE_LOG_SUM_CHROMA
+			//FrameVectorFactory.TYPE_LOG_SUM_CHROMA,
+			//FrameVectorFactory.TYPE_CENS_CHROMA,
+			//FrameVectorFactory.TYPE_DCT_CHROMA,
+			//FrameVectorFactory.TYPE_COSINE_CHROMA,
+			//FrameVectorFactory.TYPE_FIXED_CHROMA
 			Parameters.frameVectorType
 		};
 		
+		// Bits per quantized reference value, 0 is full precision
+		int[] referenceBits = {
+//			16,
+//			8
+			Parameters.referenceBits
+		};
+		
 		// All possible window combinations
 		double[][] windowSizes = {
 //			{0.30, 0.30},
@@ -153,26 +164,29 @@ public class TestRunner {
 		// This is some of the ugliest code I've written, ever :). 
 		// Does the job quite easily though.
 		for (int vector : vectors) {			
-			for (double[] windowSize : windowSizes) {
-				for (double dBTreshold : dBTresholds) {
-					for (double startStdDev : startStdDevs) {
-						for (double minStdDev : minStdDevs) {
-							for (float searchWindow : searchWindows) {
-								for (WindowFunction windowFunction : windowFunctions) {
-									System.out.println("FrameVector type: "+vector);
-									System.out.println("Parameters: ");
-									System.out.println("windowFunction: "+windowFunction);
-									System.out.println("dBTreshold: "+dBTreshold);
-									System.out.println("startStdDev: "+startStdDev);
-									System.out.println("minStdDev: "+minStdDev);
-									System.out.println("searchWindow: "+searchWindow);
-									System.out.println();
+			for (int bits : referenceBits) {
+				for (double[] windowSize : windowSizes) {
+					for (double dBTreshold : dBTresholds) {
+						for (double startStdDev : startStdDevs) {
+							for (double minStdDev : minStdDevs) {
+								for (float searchWindow : searchWindows) {
+									for (WindowFunction windowFunction : windowFunctions) {
+										System.out.println("FrameVector type: "+vector);
+										System.out.println("Reference bits: "+bits);
+										System.out.println("Parameters: ");
+										System.out.println("windowFunction: "+windowFunction);
+										System.out.println("dBTreshold: "+dBTreshold);
+										System.out.println("startStdDev: "+startStdDev);
+										System.out.println("minStdDev: "+minStdDev);
+										System.out.println("searchWindow: "+searchWindow);
+										System.out.println();
 									
-									for (String[] test : tests) {
-										String outFile = test.length > 3 ? outDir + test[3] : null;
-										runTest(args[0], vector, test, windowSize, dBTreshold, 
-												startStdDev, minStdDev, 
-												searchWindow, windowFunction, outFile);
+										for (String[] test : tests) {
+											String outFile = test.length > 3 ? outDir + test[3] : null;
+											runTest(args[0], vector, bits, test, windowSize, dBTreshold, 
+													startStdDev, minStdDev, 
+													searchWindow, windowFunction, outFile);
+										}
 									}
 								}
 							}
@@ -193,6 +207,7 @@ public class TestRunner {
 	
 	/**
 	 * Runs a test and outputs the results
+	 * @param bits
 	 * @param test
 	 * @param windowSize
 	 * @param dBTreshold
@@ -201,13 +216,14 @@ public class TestRunner {
 	 * @param searchWindow
 	 * @param windowFunction
 	 */
-	private static void runTest(String baseDir, int vector, String[] test, double[] windowSize, 
+	private static void runTest(String baseDir, int vector, int bits, String[] test, double[] windowSize, 
 			double dBTreshold, double startStdDev, double minStdDev, float searchWindow,
 			WindowFunction windowFunction, String outFile) {
 		
 		System.out.println(test[0]+":"+test[1]);
 
 		Parameters.frameVectorType = vector;
+		Parameters.referenceBits = bits;
 		Parameters.window = windowFunction;
 		Parameters.dBTreshold = dBTreshold;
 		Parameters.startStdDev = startStdDev;
@@ -0,0 +1,210 @@
+package nl.metaphoric.scorefollower.experiment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import nl.metaphoric.scorefollower.lib.Position;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+import nl.metaphoric.scorefollower.lib.file.TextScore;
+
+/**
+ * Compares the TextScore codec with the String based reading and
+ * writing it replaced (String.split / Double.parseDouble and
+ * FrameVector.toString), on a generated reference of the given
+ * number of frames. Both run in memory, so only the codec is timed.
+ *
+ * Usage: TextCodecBenchmark [frames] [rounds]
+ *
+ * @author Elte Hupkes
+ */
+public class TextCodecBenchmark {
+	public static void main(String[] args) throws IOException {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 50000,
+			rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		settings.put("windowSize", "0.1");
+		settings.put("hopSize", "0.05");
+		settings.put("framerate", "44100.0");
+		List<String> pages = new ArrayList<String>();
+		pages.add("/sdcard/score/page1.png");
+		List<FrameVector> reference = new ArrayList<FrameVector>(frames);
+		Map<Integer, Position> positions = new HashMap<Integer, Position>();
+		List<Double> times = new ArrayList<Double>(frames);
+
+		Random random = new Random(42);
+		for (int i = 0; i < frames; i++) {
+			double[] parts = new double[13];
+			for (int j = 0; j < 12; j++) {
+				parts[j] = Math.log(1 + 1000 * random.nextDouble());
+			}
+			parts[12] = random.nextDouble() * 0.1;
+			reference.add(FrameVectorFactory.getVector(parts));
+			times.add(i * 0.05);
+			if (i % 100 == 0) {
+				positions.put(i, new Position(0, random.nextDouble(), random.nextDouble()));
+			}
+		}
+
+		// Output of both writers
+		CharArrayWriter legacyOut = new CharArrayWriter(), fastOut = new CharArrayWriter();
+		legacyWrite(legacyOut, settings, pages, reference, positions, times);
+		TextScore.write(fastOut, settings, pages, reference, positions, times);
+		char[] legacyText = legacyOut.toCharArray(), fastText = fastOut.toCharArray();
+		System.out.println(String.format("%d frames, %.1f MB text", frames,
+				legacyText.length / (1024.0 * 1024.0)));
+
+		// Both readers must give the same values for both files
+		List<FrameVector> a = new ArrayList<FrameVector>(), b = new ArrayList<FrameVector>();
+		legacyRead(new CharArrayReader(legacyText), a, new ArrayList<Double>());
+		TextScore.read(new CharArrayReader(fastText), new HashMap<String, String>(),
+				new ArrayList<String>(), b, new TreeMap<Integer, Position>(), new ArrayList<Double>());
+		System.out.println("Identical values: "+(equal(reference, a) && equal(reference, b)));
+
+		// Warm up, then measure
+		for (int r = 0; r < 2; r++) {
+			legacyWrite(new CharArrayWriter(legacyText.length), settings, pages, reference, positions, times);
+			TextScore.write(new CharArrayWriter(legacyText.length), settings, pages, reference, positions, times);
+			legacyRead(new CharArrayReader(legacyText), new ArrayList<FrameVector>(), null);
+			TextScore.read(new CharArrayReader(legacyText), new HashMap<String, String>(),
+					new ArrayList<String>(), new ArrayList<FrameVector>(), new TreeMap<Integer, Position>(), null);
+		}
+
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			legacyWrite(new CharArrayWriter(legacyText.length), settings, pages, reference, positions, times);
+		}
+		report("Write, legacy", start, rounds, legacyText.length);
+
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			TextScore.write(new CharArrayWriter(legacyText.length), settings, pages, reference, positions, times);
+		}
+		report("Write, TextScore", start, rounds, legacyText.length);
+
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			legacyRead(new CharArrayReader(legacyText), new ArrayList<FrameVector>(), null);
+		}
+		report("Read, legacy", start, rounds, legacyText.length);
+
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			TextScore.read(new CharArrayReader(legacyText), new HashMap<String, String>(),
+					new ArrayList<String>(), new ArrayList<FrameVector>(), new TreeMap<Integer, Position>(), null);
+		}
+		report("Read, TextScore", start, rounds, legacyText.length);
+	}
+
+	/**
+	 * Prints time per round and throughput
+	 */
+	private static void report(String name, long start, int rounds, int chars) {
+		double ms = (System.nanoTime() - start) / (rounds * 1000000.0);
+		System.out.println(String.format("%-18s %8.1f ms  %6.1f MB/s", name, ms,
+				chars / (1024.0 * 1024.0) / (ms / 1000)));
+	}
+
+	/**
+	 * Compares the values of two lists of vectors bit by bit
+	 */
+	private static boolean equal(List<FrameVector> a, List<FrameVector> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			double[] ca = a.get(i).getChroma(), cb = b.get(i).getChroma();
+			for (int j = 0; j < 12; j++) {
+				if (Double.doubleToLongBits(ca[j]) != Double.doubleToLongBits(cb[j])) {
+					return false;
+				}
+			}
+			if (Double.doubleToLongBits(a.get(i).rms) != Double.doubleToLongBits(b.get(i).rms)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The vector writing previously done by PositionRecorder
+	 */
+	private static void legacyWrite(Writer writer, Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times)
+			throws IOException {
+		BufferedWriter out = new BufferedWriter(writer);
+		for (Map.Entry<String, String> e : settings.entrySet()) {
+			out.write(e.getKey()+"="+e.getValue());
+			out.newLine();
+		}
+		out.newLine();
+		for (String page : pages) {
+			out.write("page="+page);
+			out.newLine();
+		}
+		out.newLine();
+		out.newLine();
+
+		int i = 0;
+		for (FrameVector v : reference) {
+			out.write(times.get(i) +":");
+			out.write(v.toString());
+			if (positions.containsKey(i)) {
+				out.write(" "+positions.get(i).toString());
+			}
+			out.newLine();
+			i++;
+		}
+		out.close();
+	}
+
+	/**
+	 * The vector parsing previously done by ScoreReader
+	 */
+	private static void legacyRead(Reader file, List<FrameVector> reference, List<Double> times)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(file);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#' || line.indexOf('=') > 0) {
+				continue;
+			}
+
+			double time;
+			if (line.indexOf(':') > 0) {
+				String[] tv = line.split(":");
+				line = tv[1].trim();
+				time = Double.parseDouble(tv[0]);
+			} else {
+				time = -1;
+			}
+
+			String[] items = line.split("\\s+");
+			if (items.length >= 13) {
+				double[] chroma = new double[items.length];
+				for (int i = 0; i < items.length; i++) {
+					chroma[i] = Double.parseDouble(items[i]);
+				}
+				reference.add(FrameVectorFactory.getVector(chroma));
+				if (times != null) {
+					times.add(time);
+				}
+			}
+		}
+		reader.close();
+	}
+}
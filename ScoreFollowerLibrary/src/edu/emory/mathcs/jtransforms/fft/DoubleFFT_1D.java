@@ -34,6 +34,7 @@
 
 package edu.emory.mathcs.jtransforms.fft;
 
+import java.util.Arrays;
 import java.util.concurrent.Future;
 
 import edu.emory.mathcs.utils.ConcurrencyUtils;
@@ -348,6 +349,41 @@ public class DoubleFFT_1D {
         }
     }
 
+    /**
+     * Computes 1D forward DFT of <code>m</code> blocks of real data, stored one
+     * after the other in <code>a</code>. Every block of <code>n</code> elements
+     * is transformed in place, with the same output layout as
+     * <code>realForward</code>.
+     * 
+     * Transforming many blocks in one call keeps the twiddle tables in cache,
+     * and the Bluestein plan reuses a single work array for all blocks instead
+     * of allocating one per transform. Blocks are transformed one after the
+     * other on the calling thread; to use more threads, transform several
+     * batches in parallel.
+     * 
+     * @param a
+     *            data to transform, at least <code>offa + m * n</code> elements
+     * @param offa
+     *            index of the first element of the first block
+     * @param m
+     *            the number of blocks
+     */
+    public void realForwardBatch(double[] a, int offa, int m) {
+        if (plan == Plans.BLUESTEIN && n > 1) {
+            final double[] ak = new double[2 * nBluestein];
+            for (int i = 0; i < m; i++) {
+                if (i > 0) {
+                    Arrays.fill(ak, 2 * n, 2 * nBluestein, 0);
+                }
+                bluestein_real_forward_convolve(a, offa + i * n, ak);
+            }
+        } else {
+            for (int i = 0; i < m; i++) {
+                realForward(a, offa + i * n);
+            }
+        }
+    }
+
     /**
      * Computes 1D forward DFT of real data leaving the result in <code>a</code>
      * . This method computes the full real forward transform, i.e. you will get
@@ -1467,28 +1503,43 @@ public class DoubleFFT_1D {
             ConcurrencyUtils.waitForCompletion(futures);
 
         } else {
+            bluestein_real_forward_convolve(a, offa, ak);
+            return;
+        }
 
-            for (int i = 0; i < n; i++) {
-                int idx1 = 2 * i;
-                int idx2 = idx1 + 1;
-                int idx3 = offa + i;
-                ak[idx1] = a[idx3] * bk1[idx1];
-                ak[idx2] = -a[idx3] * bk1[idx2];
-            }
+        cftfsub(2 * nBluestein, ak, 0, ip, nw, w);
+        bluestein_real_forward_unpack(a, offa, ak);
+    }
 
-            cftbsub(2 * nBluestein, ak, 0, ip, nw, w);
+    /*
+     * Single threaded Bluestein convolution of one block, followed by the
+     * unpacking into a. The first 2 * n elements of ak are overwritten, the
+     * rest must be zero.
+     */
+    private void bluestein_real_forward_convolve(final double[] a, final int offa, final double[] ak) {
+        for (int i = 0; i < n; i++) {
+            int idx1 = 2 * i;
+            int idx2 = idx1 + 1;
+            int idx3 = offa + i;
+            ak[idx1] = a[idx3] * bk1[idx1];
+            ak[idx2] = -a[idx3] * bk1[idx2];
+        }
 
-            for (int i = 0; i < nBluestein; i++) {
-                int idx1 = 2 * i;
-                int idx2 = idx1 + 1;
-                double im = ak[idx1] * bk2[idx2] + ak[idx2] * bk2[idx1];
-                ak[idx1] = ak[idx1] * bk2[idx1] - ak[idx2] * bk2[idx2];
-                ak[idx2] = im;
-            }
+        cftbsub(2 * nBluestein, ak, 0, ip, nw, w);
+
+        for (int i = 0; i < nBluestein; i++) {
+            int idx1 = 2 * i;
+            int idx2 = idx1 + 1;
+            double im = ak[idx1] * bk2[idx2] + ak[idx2] * bk2[idx1];
+            ak[idx1] = ak[idx1] * bk2[idx1] - ak[idx2] * bk2[idx2];
+            ak[idx2] = im;
         }
 
         cftfsub(2 * nBluestein, ak, 0, ip, nw, w);
+        bluestein_real_forward_unpack(a, offa, ak);
+    }
 
+    private void bluestein_real_forward_unpack(final double[] a, final int offa, final double[] ak) {
         if (n % 2 == 0) {
             a[offa] = bk1[0] * ak[0] + bk1[1] * ak[1];
             a[offa + 1] = bk1[n] * ak[n] + bk1[n + 1] * ak[n + 1];
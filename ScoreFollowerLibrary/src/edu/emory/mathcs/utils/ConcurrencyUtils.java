@@ -60,6 +60,11 @@ public class ConcurrencyUtils {
 
     private static int NTHREADS = prevPow2(getNumberOfProcessors());
 
+    /**
+     * Number of threads for the calling thread only, null to use NTHREADS.
+     */
+    private static final ThreadLocal<Integer> LOCAL_NTHREADS = new ThreadLocal<Integer>();
+
     private ConcurrencyUtils() {
 
     }
@@ -97,12 +102,14 @@ public class ConcurrencyUtils {
     }
 
     /**
-     * Returns the current number of threads.
+     * Returns the current number of threads, as set for the calling thread
+     * by setLocalNumberOfThreads(), or else by setNumberOfThreads().
      * 
      * @return the current number of threads.
      */
     public static int getNumberOfThreads() {
-        return NTHREADS;
+        Integer local = LOCAL_NTHREADS.get();
+        return local != null ? local : NTHREADS;
     }
 
     /**
@@ -115,6 +122,23 @@ public class ConcurrencyUtils {
         NTHREADS = prevPow2(n);
     }
 
+    /**
+     * Sets the number of threads for transforms started from the calling
+     * thread only, without affecting other threads. If n is not a
+     * power-of-two number, the closest power-of-two number less than n is
+     * used. A value of 0 or less restores the number set by
+     * setNumberOfThreads().
+     * 
+     * @param n
+     */
+    public static void setLocalNumberOfThreads(int n) {
+        if (n > 0) {
+            LOCAL_NTHREADS.set(prevPow2(n));
+        } else {
+            LOCAL_NTHREADS.remove();
+        }
+    }
+
     /**
      * Returns the minimal size of 1D data for which two threads are used.
      * 
@@ -0,0 +1,113 @@
+package nl.metaphoric.scorefollower.lib;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * An append-only list for one writing thread and any number of
+ * reading threads, without locks. Elements are stored in fixed
+ * size chunks so that appending never copies them, and the number
+ * of elements is published through a volatile counter: a reader
+ * that sees size() == n can safely read the first n elements.
+ *
+ * Only add() may be called while other threads are reading,
+ * and only from a single thread. clear() must only be called
+ * while no thread is adding.
+ *
+ * @author Elte Hupkes
+ */
+public class AppendLog<T> extends AbstractList<T> {
+	/**
+	 * Elements per chunk, as a power of two
+	 */
+	private static final int CHUNK_BITS = 10, CHUNK_SIZE = 1 << CHUNK_BITS,
+			CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * Initial number of chunk slots
+	 */
+	private static final int INITIAL_CHUNKS = 16;
+
+	/**
+	 * The chunks, replaced by a larger array when full
+	 */
+	private volatile Object[][] chunks = new Object[INITIAL_CHUNKS][];
+
+	/**
+	 * The published number of elements. Written only after
+	 * the element itself.
+	 */
+	private volatile int size = 0;
+
+	/**
+	 * Appends an element. Must only be called by the writing thread.
+	 * @param v
+	 * @return true
+	 */
+	@Override
+	public boolean add(T v) {
+		int n = size, chunk = n >>> CHUNK_BITS;
+		Object[][] cs = chunks;
+		if (chunk == cs.length) {
+			// Readers holding the old array still see all published elements
+			Object[][] larger = new Object[cs.length * 2][];
+			System.arraycopy(cs, 0, larger, 0, cs.length);
+			chunks = cs = larger;
+		}
+		if (cs[chunk] == null) {
+			cs[chunk] = new Object[CHUNK_SIZE];
+		}
+		cs[chunk][n & CHUNK_MASK] = v;
+
+		// Publish
+		size = n + 1;
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+		}
+		return (T)chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all elements. Must not be called while
+	 * another thread is adding.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		chunks = new Object[INITIAL_CHUNKS][];
+	}
+
+	/**
+	 * Returns a view of the elements published so far, which doesn't
+	 * grow with later additions.
+	 * @return
+	 */
+	public List<T> snapshot() {
+		final int n = size;
+		return new AbstractList<T>() {
+			@Override
+			public T get(int index) {
+				if (index >= n) {
+					throw new IndexOutOfBoundsException("Index: "+index+", size: "+n);
+				}
+				return AppendLog.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return n;
+			}
+		};
+	}
+}
@@ -1,5 +1,6 @@
 package nl.metaphoric.scorefollower.lib;
 
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
 import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
 import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
 
@@ -54,9 +55,10 @@ public class AudioAnalyzer {
 	private static final String TAG = "SF_AudioAnalyzer";
 
 	/**
-	 * Fast Fourier transformer
+	 * Fast Fourier transformer, created on first use
+	 * and only when a double precision type is used.
 	 */
-	private DoubleFFT_1D transformer;
+	private DoubleFFT_1D transformer = null;
 	
 	/**
 	 * The window and hop size in seconds.
@@ -118,8 +120,7 @@ public class AudioAnalyzer {
 		frameSize = (int)Math.round(windowSize * sampleRate);
 		hopFrameSize = (int)Math.round(hopSize * sampleRate);
 		buf = new AudioBuffer(frameSize);
-		
-		transformer = new DoubleFFT_1D(frameSize);
+
 		Log.d(TAG, "Analyzer frame size: "+frameSize);
 		Log.d(TAG, "Analyzer input size: "+hopFrameSize);
 	}
@@ -146,7 +147,15 @@ public class AudioAnalyzer {
 		
 		buf.put(buffer);
 		if (buf.full()) {
-			listener.onNewAnalysisData(FrameVectorFactory.getVector(buf, sampleRate, transformer));
+			// Fixed point vectors use their own transform, so only create
+			// the (large) double precision tables when they're needed. The
+			// vector type may change after the analyzer is created.
+			if (transformer == null && !FrameVectorFactory.isFixedPoint(Parameters.frameVectorType)) {
+				transformer = new DoubleFFT_1D(frameSize);
+			}
+			FrameVector v = FrameVectorFactory.getVector(buf, sampleRate, transformer);
+			v.time = lastData;
+			listener.onNewAnalysisData(v);
 		}
 		
 		if ((lastData - System.nanoTime()) > (windowSize * 800000000)) {
@@ -163,6 +172,14 @@ public class AudioAnalyzer {
 		return hopFrameSize;
 	}
 	
+	/**
+	 * Returns the number of samples in one analysis window.
+	 * @return The frame size
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+	
 	/**
 	 * Returns the active hop size (in seconds).
 	 * Due to the integer rounding of the frame sizes this
@@ -46,11 +46,21 @@ public class AudioBuffer {
 	 * @param in
 	 */
 	public void put(short[] in) {
-		for (int i = 0; i < in.length; i++) {
+		put(in, 0, in.length);
+	}
+	
+	/**
+	 * Puts length shorts from in, starting at offset
+	 * @param in
+	 * @param offset
+	 * @param length
+	 */
+	public void put(short[] in, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
 			data[pos % size] = in[i];
 			pos++;
 		}
-		len = (in.length + len);
+		len = (length + len);
 		if (len > size) {
 			len = size;
 		}
@@ -0,0 +1,117 @@
+package nl.metaphoric.scorefollower.lib;
+
+/**
+ * A queue for one adding and one taking thread, without locks.
+ * Elements are stored in a linked list of fixed size chunks: the
+ * adding thread fills the last chunk and links a new one when it's
+ * full, the taking thread empties the first one and drops it when
+ * it's done. Adding never waits, the queue just grows while the
+ * taking thread falls behind.
+ *
+ * The number of elements added is published after the element
+ * itself, so the taking thread can always take as many elements
+ * as added() returned.
+ *
+ * @author Elte Hupkes
+ */
+public class ChunkQueue<T> {
+	/**
+	 * Elements per chunk
+	 */
+	private static final int CHUNK_SIZE = 256;
+
+	/**
+	 * A chunk of elements, and the number filled in
+	 */
+	private static class Chunk {
+		final Object[] elements = new Object[CHUNK_SIZE];
+		volatile int count = 0;
+		volatile Chunk next = null;
+	}
+
+	/**
+	 * The chunk being filled, used by the adding thread only
+	 */
+	private Chunk tail;
+
+	/**
+	 * The chunk being emptied and the position in it,
+	 * used by the taking thread only.
+	 */
+	private Chunk head;
+	private int read = 0;
+
+	/**
+	 * The number of elements added and taken
+	 */
+	private volatile long added = 0, taken = 0;
+
+	/**
+	 * Creates an empty queue
+	 */
+	public ChunkQueue() {
+		head = tail = new Chunk();
+	}
+
+	/**
+	 * Adds an element. Must only be called by the adding thread.
+	 * @param v
+	 */
+	public void add(T v) {
+		Chunk c = tail;
+		int n = c.count;
+		if (n == CHUNK_SIZE) {
+			// Fill the new chunk before the taking thread can see it
+			Chunk next = new Chunk();
+			next.elements[0] = v;
+			next.count = 1;
+			c.next = next;
+			tail = next;
+		} else {
+			c.elements[n] = v;
+			c.count = n + 1;
+		}
+		added++;
+	}
+
+	/**
+	 * Takes the oldest element, or returns null if there is none.
+	 * Must only be called by the taking thread.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		Chunk c = head;
+		if (read == CHUNK_SIZE) {
+			if (c.next == null) {
+				return null;
+			}
+			head = c = c.next;
+			read = 0;
+		}
+		if (read >= c.count) {
+			return null;
+		}
+
+		T v = (T)c.elements[read];
+		c.elements[read++] = null;
+		taken++;
+		return v;
+	}
+
+	/**
+	 * Returns the number of elements added so far
+	 * @return
+	 */
+	public long added() {
+		return added;
+	}
+
+	/**
+	 * Returns the number of elements taken so far
+	 * @return
+	 */
+	public long taken() {
+		return taken;
+	}
+}
@@ -1,6 +1,7 @@
 package nl.metaphoric.scorefollower.lib;
 
 import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+import nl.metaphoric.scorefollower.lib.matcher.MatcherFactory;
 import nl.metaphoric.scorefollower.lib.window.HannWindow;
 import nl.metaphoric.scorefollower.lib.window.WindowFunction;
 
@@ -43,6 +44,32 @@ public class Parameters {
 	 */
 	public static float distWindow = 10.0f;
 	
+	/**
+	 * Whether the PositionMatcher narrows the search and distance
+	 * windows while it's confident, down to minSearchWindow and
+	 * minDistWindow seconds, and widens them again when it's not.
+	 * Off by default until it has been tried on devices.
+	 */
+	public static boolean adaptiveWindow = false;
+	
+	/**
+	 * The smallest search window in seconds, see adaptiveWindow
+	 */
+	public static float minSearchWindow = 2.0f;
+	
+	/**
+	 * The smallest distance window in seconds, see adaptiveWindow
+	 */
+	public static float minDistWindow = 3.0f;
+	
+	/**
+	 * While the PositionMatcher is confident and the tempo is
+	 * steady, it only updates its paths every this many frames
+	 * and moves ahead by the tempo in between. 1 disables this,
+	 * which is the default until it has been tried on devices.
+	 */
+	public static int deadReckoning = 1;
+	
 	/**
 	 * The initial time transition standard deviation in seconds
 	 */
@@ -69,4 +96,86 @@ public class Parameters {
 	 * The type of FrameVector used.
 	 */
 	public static int frameVectorType = FrameVectorFactory.TYPE_LOG_SUM_CHROMA;
+	
+	/**
+	 * The matching engine used for scores that don't
+	 * select one themselves.
+	 * @see MatcherFactory
+	 */
+	public static int matcherType = MatcherFactory.TYPE_HMM;
+	
+	/**
+	 * The number of particles used by the ParticleMatcher. Each
+	 * particle costs one match per frame.
+	 */
+	public static int particleCount = 300;
+	
+	/**
+	 * The number of coarse levels in the reference pyramid used
+	 * by the PositionMatcher, each averaging twice as many
+	 * reference vectors as the one below. 0 disables
+	 * coarse-to-fine matching, which is the default until
+	 * it has been tried on devices.
+	 */
+	public static int pyramidLevels = 0;
+	
+	/**
+	 * The number of candidates kept at each pyramid level
+	 * when matching coarse-to-fine.
+	 */
+	public static int pyramidCandidates = 4;
+	
+	/**
+	 * Whether the PositionMatcher looks up the input in an
+	 * index of the whole reference when it loses track, to
+	 * recover from skips and starts halfway the score. Off
+	 * by default until it has been tried on devices.
+	 */
+	public static boolean relocalize = false;
+	
+	/**
+	 * The shingle similarity (see ShingleIndex) under which
+	 * the PositionMatcher considers itself lost.
+	 */
+	public static double relocalizeConfidence = 0.7;
+	
+	/**
+	 * The number of positions looked up when lost
+	 */
+	public static int relocalizeCandidates = 3;
+	
+	/**
+	 * Whether a JumpGraph of repeated passages is built for
+	 * the PositionMatcher. Off by default until it has been
+	 * tried on devices.
+	 */
+	public static boolean jumpGraph = false;
+	
+	/**
+	 * The probability of taking an edge of the JumpGraph,
+	 * relative to continuing in the reference.
+	 */
+	public static double jumpProbability = 0.5;
+	
+	/**
+	 * The number of DCT coefficients kept by the
+	 * DctChromaVector (1 - 12).
+	 */
+	public static int dctCoefficients = 6;
+	
+	/**
+	 * If 8 or 16, reference data is kept in memory as chroma
+	 * values quantized to this number of bits, and matched without
+	 * creating FrameVectors. 0 keeps the full precision vectors.
+	 * Only used for FrameVector types that are quantizable.
+	 * @see FrameVectorFactory#isQuantizable(int)
+	 */
+	public static int referenceBits = 0;
+	
+	/**
+	 * Binary scores with full precision reference data of at least
+	 * this many vectors are read from disk on demand, rather than
+	 * loaded into memory (see PagedReference). 0 disables paging.
+	 */
+	public static int pagedReferenceFrames = 20000;
 }
@@ -0,0 +1,280 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import nl.metaphoric.scorefollower.lib.Parameters;
+
+/**
+ * The analysis configuration reference data was created with,
+ * stored in the score settings. ScoreReader compares it with the
+ * active configuration to detect references that don't match the
+ * live analysis.
+ *
+ * The fingerprint is a hash over everything that determines the
+ * stored vectors: the timing, the base vector type, the way chroma
+ * values are computed and the silence threshold that decides where
+ * recording starts. Two scores of the same audio with
+ * equal fingerprints contain the same data, so tools can skip
+ * analyzing again when the fingerprint of an existing score
+ * matches. The exact vector type and the number of DCT coefficients
+ * only change how stored vectors are matched, so they are recorded
+ * but not part of the fingerprint.
+ *
+ * @author Elte Hupkes
+ */
+public class AnalysisConfig {
+	/**
+	 * The current configuration version, increased whenever the
+	 * analysis changes in a way that isn't covered by the settings.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Setting keys
+	 */
+	public static final String VERSION_KEY = "analysisVersion",
+							   WINDOW_SIZE = "windowSize",
+							   HOP_SIZE = "hopSize",
+							   FRAMERATE = "framerate",
+							   VECTOR_TYPE = "vectorType",
+							   WINDOW_FUNCTION = "windowFunction",
+							   MIN_FREQUENCY = "minFrequency",
+							   MAX_FREQUENCY = "maxFrequency",
+							   NORMALIZATION = "normalization",
+							   DCT_COEFFICIENTS = "dctCoefficients",
+							   SILENCE_THRESHOLD = "dBThreshold",
+							   FINGERPRINT = "fingerprint";
+
+	/**
+	 * The configuration version, 0 for files written
+	 * before configurations were stored.
+	 */
+	private int version;
+
+	/**
+	 * The sample rate, 0 if unknown
+	 */
+	private float sampleRate;
+
+	/**
+	 * Window and hop size in seconds
+	 */
+	private double windowSize, hopSize;
+
+	/**
+	 * The FrameVector type, -1 if unknown
+	 */
+	private int vectorType;
+
+	/**
+	 * Window function class name, null if unknown
+	 */
+	private String windowFunction;
+
+	/**
+	 * The frequency range used for the chroma vectors,
+	 * NaN if unknown
+	 */
+	private double minFrequency, maxFrequency;
+
+	/**
+	 * The normalization of the stored chroma vectors, null if unknown
+	 */
+	private String normalization;
+
+	/**
+	 * DCT coefficients used by DCT vectors, -1 if unknown
+	 */
+	private int dctCoefficients;
+
+	/**
+	 * The PlaybackAnalyzer threshold used while recording,
+	 * NaN if unknown
+	 */
+	private double silenceThreshold;
+
+	/**
+	 * Creates the active configuration for the given timing,
+	 * taking everything else from Parameters.
+	 * @param sampleRate
+	 * @param windowSize
+	 * @param hopSize
+	 */
+	public AnalysisConfig(float sampleRate, double windowSize, double hopSize) {
+		version = VERSION;
+		this.sampleRate = sampleRate;
+		this.windowSize = windowSize;
+		this.hopSize = hopSize;
+		vectorType = Parameters.frameVectorType;
+		windowFunction = Parameters.window.getClass().getSimpleName();
+		minFrequency = FrameVector.MIN_FREQUENCY;
+		maxFrequency = FrameVector.MAX_FREQUENCY;
+		normalization = normalization(vectorType);
+		dctCoefficients = Parameters.dctCoefficients;
+		silenceThreshold = Parameters.dBTreshold;
+	}
+
+	/**
+	 * Reads the configuration from score settings. Settings that
+	 * are missing, as in files written by older versions, are
+	 * unknown and not compared.
+	 * @param settings
+	 */
+	public AnalysisConfig(Map<String, String> settings) {
+		version = (int)number(settings, VERSION_KEY, 0);
+		sampleRate = (float)number(settings, FRAMERATE, 0);
+		windowSize = number(settings, WINDOW_SIZE, Double.NaN);
+		hopSize = number(settings, HOP_SIZE, Double.NaN);
+		vectorType = (int)number(settings, VECTOR_TYPE, -1);
+		windowFunction = settings.get(WINDOW_FUNCTION);
+		minFrequency = number(settings, MIN_FREQUENCY, Double.NaN);
+		maxFrequency = number(settings, MAX_FREQUENCY, Double.NaN);
+		normalization = settings.get(NORMALIZATION);
+		dctCoefficients = (int)number(settings, DCT_COEFFICIENTS, -1);
+		silenceThreshold = number(settings, SILENCE_THRESHOLD, Double.NaN);
+	}
+
+	/**
+	 * Returns a numeric setting, or the default if it is
+	 * missing or invalid.
+	 */
+	private static double number(Map<String, String> settings, String key, double def) {
+		String value = settings.get(key);
+		if (value == null) {
+			return def;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	/**
+	 * Returns the normalization applied to the stored chroma
+	 * vectors of the given type.
+	 * @param type
+	 * @return
+	 */
+	public static String normalization(int type) {
+		switch (FrameVectorFactory.baseType(type)) {
+		case FrameVectorFactory.TYPE_LINEAR_CHROMA:
+		case FrameVectorFactory.TYPE_LOG_CHROMA:
+			return "zeroMean";
+		case FrameVectorFactory.TYPE_FIXED_CHROMA:
+			return "fixedRange";
+		default:
+			return "range";
+		}
+	}
+
+	/**
+	 * Stores this configuration, including its fingerprint,
+	 * in score settings.
+	 * @param settings
+	 */
+	public void write(Map<String, String> settings) {
+		settings.put(WINDOW_SIZE, String.valueOf(windowSize));
+		settings.put(HOP_SIZE, String.valueOf(hopSize));
+		settings.put(FRAMERATE, String.valueOf(sampleRate));
+		settings.put(VECTOR_TYPE, String.valueOf(vectorType));
+		settings.put(VERSION_KEY, String.valueOf(version));
+		settings.put(WINDOW_FUNCTION, windowFunction);
+		settings.put(MIN_FREQUENCY, String.valueOf(minFrequency));
+		settings.put(MAX_FREQUENCY, String.valueOf(maxFrequency));
+		settings.put(NORMALIZATION, normalization);
+		settings.put(DCT_COEFFICIENTS, String.valueOf(dctCoefficients));
+		settings.put(SILENCE_THRESHOLD, String.valueOf(silenceThreshold));
+		settings.put(FINGERPRINT, fingerprint());
+	}
+
+	/**
+	 * Returns the fingerprint of this configuration, as 16 hex
+	 * digits, or null if it isn't fully known.
+	 * @return
+	 */
+	public String fingerprint() {
+		if (version == 0 || windowFunction == null || normalization == null || vectorType < 0) {
+			return null;
+		}
+
+		String canonical = version+"|"+sampleRate+"|"+windowSize+"|"+hopSize+"|"+
+				FrameVectorFactory.baseType(vectorType)+"|"+windowFunction+"|"+
+				minFrequency+"|"+maxFrequency+"|"+normalization+"|"+silenceThreshold;
+
+		// 64 bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < canonical.length(); i++) {
+			hash ^= canonical.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		String hex = Long.toHexString(hash);
+		while (hex.length() < 16) {
+			hex = "0" + hex;
+		}
+		return hex;
+	}
+
+	/**
+	 * Compares this (stored) configuration with the active one. Only
+	 * settings known in both are compared.
+	 * @param active
+	 * @return A description of every difference that makes this
+	 * 			reference unusable with the active configuration,
+	 * 			empty if there are none.
+	 */
+	public List<String> compare(AnalysisConfig active) {
+		List<String> problems = new ArrayList<String>();
+		if (version > VERSION) {
+			problems.add("analysis version "+version+" is newer than "+VERSION);
+		}
+		if (sampleRate > 0 && active.sampleRate > 0 && sampleRate != active.sampleRate) {
+			problems.add("sample rate "+sampleRate+" != "+active.sampleRate);
+		}
+		if (differs(windowSize, active.windowSize)) {
+			problems.add("window size "+windowSize+" != "+active.windowSize);
+		}
+		if (differs(hopSize, active.hopSize)) {
+			problems.add("hop size "+hopSize+" != "+active.hopSize);
+		}
+		if (vectorType >= 0 && active.vectorType >= 0 &&
+				FrameVectorFactory.baseType(vectorType) != FrameVectorFactory.baseType(active.vectorType)) {
+			problems.add("FrameVector type "+vectorType+" is incompatible with "+active.vectorType);
+		}
+		if (windowFunction != null && active.windowFunction != null &&
+				!windowFunction.equals(active.windowFunction)) {
+			problems.add("window function "+windowFunction+" != "+active.windowFunction);
+		}
+		if (differs(minFrequency, active.minFrequency) || differs(maxFrequency, active.maxFrequency)) {
+			problems.add("frequency range "+minFrequency+" - "+maxFrequency+" != "+
+					active.minFrequency+" - "+active.maxFrequency);
+		}
+		if (normalization != null && active.normalization != null &&
+				!normalization.equals(active.normalization)) {
+			problems.add("normalization "+normalization+" != "+active.normalization);
+		}
+		return problems;
+	}
+
+	/**
+	 * @return True if both values are known and different
+	 */
+	private static boolean differs(double a, double b) {
+		return !Double.isNaN(a) && !Double.isNaN(b) && a != b;
+	}
+
+	// Getter methods
+	public int version() { return version; }
+	public float sampleRate() { return sampleRate; }
+	public double windowSize() { return windowSize; }
+	public double hopSize() { return hopSize; }
+	public int vectorType() { return vectorType; }
+	public String windowFunction() { return windowFunction; }
+	public double minFrequency() { return minFrequency; }
+	public double maxFrequency() { return maxFrequency; }
+	public String normalization() { return normalization; }
+	public int dctCoefficients() { return dctCoefficients; }
+	public double silenceThreshold() { return silenceThreshold; }
+}
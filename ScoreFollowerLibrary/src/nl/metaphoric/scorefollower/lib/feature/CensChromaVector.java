@@ -0,0 +1,126 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import nl.metaphoric.scorefollower.lib.AudioBuffer;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * CENS-style (Chroma Energy Normalized Statistics) vector, as
+ * used in "Audio Matching via Chroma-Based Statistical Features".
+ * 
+ * The linear sum chroma vector is normalized to an energy
+ * distribution, which is then quantized into five levels using
+ * logarithmically spaced thresholds. The quantized vector is
+ * normalized to unit length, so the match probability only needs
+ * a dot product (the cosine of the two vectors).
+ * 
+ * The paper also smooths the quantized vectors over time and
+ * downsamples them. Vectors are created one at a time here, so
+ * that part is left to the window / hop size instead.
+ * 
+ * Like the DctChromaVector, the underlying chroma vector is what's
+ * written to file, so linear sum references can be used directly.
+ * 
+ * @author Elte Hupkes
+ */
+public class CensChromaVector extends LinearSumChromaVector {
+	/**
+	 * Quantization thresholds of the energy distribution,
+	 * a value above THRESHOLDS[i] gets level i + 1.
+	 */
+	private static final double[] THRESHOLDS = {0.05, 0.1, 0.2, 0.4};
+	
+	/**
+	 * The quantized, unit length CENS vector.
+	 */
+	protected double[] cens;
+	
+	/**
+	 * Creates a vector from stored linear sum chroma data.
+	 * @param parts
+	 */
+	public CensChromaVector(double[] parts) {
+		super(parts);
+		quantize();
+	}
+	
+	/**
+	 * Calculates the linear sum chroma vector and quantizes it.
+	 * @param buffer
+	 * @param sampleRate
+	 * @param transformer
+	 */
+	public CensChromaVector(AudioBuffer buffer, float sampleRate, DoubleFFT_1D transformer) {
+		super(buffer, sampleRate, transformer);
+		quantize();
+	}
+	
+	/**
+	 * Creates a vector from a transformed window and
+	 * quantizes it.
+	 * @param spectrum
+	 * @param offset
+	 * @param frameSize
+	 * @param rms
+	 * @param sampleRate
+	 */
+	public CensChromaVector(double[] spectrum, int offset, int frameSize, double rms, float sampleRate) {
+		super(spectrum, offset, frameSize, rms, sampleRate);
+		quantize();
+	}
+	
+	/**
+	 * Creates the CENS vector from the chroma vector.
+	 */
+	private void quantize() {
+		cens = new double[12];
+		double sum = 0;
+		int i, j;
+		for (i = 0; i < 12; i++) {
+			sum += chroma[i];
+		}
+		
+		if (sum == 0) {
+			// Silence / noise, leave the zero vector
+			return;
+		}
+		
+		double norm = 0, v;
+		for (i = 0; i < 12; i++) {
+			v = chroma[i] / sum;
+			for (j = 0; j < THRESHOLDS.length && v >= THRESHOLDS[j]; j++);
+			cens[i] = j;
+			norm += j * j;
+		}
+		
+		norm = Math.sqrt(norm);
+		for (i = 0; i < 12; i++) {
+			cens[i] = norm == 0 ? 0 : cens[i] / norm;
+		}
+	}
+	
+	/**
+	 * Returns the CENS vector
+	 * @return
+	 */
+	public double[] getCens() {
+		return cens;
+	}
+	
+	/**
+	 * Match probability based on the cosine between
+	 * the two CENS vectors.
+	 */
+	@Override
+	public double matchProbability(FrameVector b) {
+		if (!(b instanceof CensChromaVector)) {
+			return super.matchProbability(b);
+		}
+		
+		double[] v = ((CensChromaVector)b).cens;
+		double cos = 0;
+		for (int i = 0; i < 12; i++) {
+			cos += cens[i] * v[i];
+		}
+		return 1 - (1 - cos) * COSINE_SPREAD;
+	}
+}
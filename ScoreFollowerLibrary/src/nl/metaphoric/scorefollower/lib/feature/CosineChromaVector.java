@@ -0,0 +1,65 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import nl.metaphoric.scorefollower.lib.AudioBuffer;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * Log sum chroma vector that matches using the cosine similarity
+ * of the two chroma vectors instead of their Euclidean distance.
+ * 
+ * Both vectors are scaled to unit length once (the ScoreReader
+ * does this for all reference vectors when loading), after which
+ * every match is a single multiply-add loop without the square
+ * root of the distance calculation.
+ * 
+ * For unit vectors the Euclidean distance is sqrt(2 - 2 * cos),
+ * so the ordering of matches is the same as that of the distance
+ * between the normalized vectors.
+ * 
+ * @author Elte Hupkes
+ */
+public class CosineChromaVector extends LogSumChromaVector {
+	/**
+	 * Creates a vector from stored log sum chroma data.
+	 * @param parts
+	 */
+	public CosineChromaVector(double[] parts) {
+		super(parts);
+	}
+	
+	/**
+	 * Simply calls parent
+	 * @param buffer
+	 * @param sampleRate
+	 * @param transformer
+	 */
+	public CosineChromaVector(AudioBuffer buffer, float sampleRate, DoubleFFT_1D transformer) {
+		super(buffer, sampleRate, transformer);
+	}
+	
+	/**
+	 * Creates a vector from a transformed window.
+	 * @param spectrum
+	 * @param offset
+	 * @param frameSize
+	 * @param rms
+	 * @param sampleRate
+	 */
+	public CosineChromaVector(double[] spectrum, int offset, int frameSize, double rms, float sampleRate) {
+		super(spectrum, offset, frameSize, rms, sampleRate);
+	}
+	
+	/**
+	 * Match probability based on the cosine between
+	 * the two chroma vectors.
+	 */
+	@Override
+	public double matchProbability(FrameVector b) {
+		double[] u = unitChroma(), v = b.unitChroma();
+		double cos = 0;
+		for (int i = 0; i < 12; i++) {
+			cos += u[i] * v[i];
+		}
+		return 1 - (1 - cos) * COSINE_SPREAD;
+	}
+}
@@ -0,0 +1,123 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import nl.metaphoric.scorefollower.lib.AudioBuffer;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * Compressed version of the LogSumChromaVector. The normalized
+ * chroma vector is transformed using an (orthonormal) DCT-II,
+ * of which only the first Parameters.dctCoefficients coefficients
+ * are kept for matching. This drops the fine detail in the chroma
+ * "shape", which makes matching cheaper and a little more tolerant
+ * to timbre differences.
+ * 
+ * The chroma vector itself is kept as well, so the vector is written
+ * to and read from file exactly like a LogSumChromaVector. Existing
+ * log sum references can therefore be used with this type directly.
+ * 
+ * Because the DCT is orthonormal, the distance between two full
+ * coefficient vectors equals the distance between the chroma
+ * vectors, so the same spreading value is used for the match
+ * probability.
+ * 
+ * @author Elte Hupkes
+ */
+public class DctChromaVector extends LogSumChromaVector {
+	/**
+	 * The DCT-II basis, DCT[k][n] holds the weight of chroma
+	 * bin n in coefficient k.
+	 */
+	private static final double[][] DCT = new double[12][12];
+	static {
+		for (int k = 0; k < 12; k++) {
+			double scale = Math.sqrt((k == 0 ? 1.0 : 2.0) / 12.0);
+			for (int n = 0; n < 12; n++) {
+				DCT[k][n] = scale * Math.cos(Math.PI * (n + 0.5) * k / 12.0);
+			}
+		}
+	}
+	
+	/**
+	 * The retained DCT coefficients
+	 */
+	protected double[] coefficients;
+	
+	/**
+	 * Creates a vector from stored log sum chroma data.
+	 * @param parts
+	 */
+	public DctChromaVector(double[] parts) {
+		super(parts);
+		transform();
+	}
+	
+	/**
+	 * Calculates the log sum chroma vector and compresses it.
+	 * @param buffer
+	 * @param sampleRate
+	 * @param transformer
+	 */
+	public DctChromaVector(AudioBuffer buffer, float sampleRate, DoubleFFT_1D transformer) {
+		super(buffer, sampleRate, transformer);
+		transform();
+	}
+	
+	/**
+	 * Creates a vector from a transformed window and
+	 * compresses it.
+	 * @param spectrum
+	 * @param offset
+	 * @param frameSize
+	 * @param rms
+	 * @param sampleRate
+	 */
+	public DctChromaVector(double[] spectrum, int offset, int frameSize, double rms, float sampleRate) {
+		super(spectrum, offset, frameSize, rms, sampleRate);
+		transform();
+	}
+	
+	/**
+	 * Calculates the first Parameters.dctCoefficients DCT
+	 * coefficients of the chroma vector.
+	 */
+	private void transform() {
+		int k = Math.max(1, Math.min(12, Parameters.dctCoefficients));
+		coefficients = new double[k];
+		for (int i = 0; i < k; i++) {
+			double c = 0;
+			for (int n = 0; n < 12; n++) {
+				c += DCT[i][n] * chroma[n];
+			}
+			coefficients[i] = c;
+		}
+	}
+	
+	/**
+	 * Returns the retained DCT coefficients
+	 * @return
+	 */
+	public double[] getCoefficients() {
+		return coefficients;
+	}
+	
+	/**
+	 * Euclidean distance over the retained coefficients. Falls back
+	 * to the chroma distance for vectors of a different type.
+	 */
+	@Override
+	public double distance(FrameVector v) {
+		if (!(v instanceof DctChromaVector)) {
+			return super.distance(v);
+		}
+		
+		double[] b = ((DctChromaVector)v).coefficients;
+		int k = Math.min(coefficients.length, b.length);
+		double diff = 0.0, d;
+		for (int i = 0; i < k; i++) {
+			d = b[i] - coefficients[i];
+			diff += d * d;
+		}
+		return Math.sqrt(diff);
+	}
+}
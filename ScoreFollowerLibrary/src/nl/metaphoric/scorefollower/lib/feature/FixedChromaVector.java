@@ -0,0 +1,244 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import nl.metaphoric.scorefollower.lib.AudioBuffer;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.fixed.FixedFFT;
+import nl.metaphoric.scorefollower.lib.window.WindowFunction;
+
+/**
+ * Linear sum chroma vector calculated using only integer
+ * arithmetic, meant for low end devices.
+ * 
+ * The 16 bit samples are windowed with a Q15 window table,
+ * zero padded to a power of two and transformed with the
+ * FixedFFT, which only unpacks the bins within the chroma
+ * band. Magnitudes are summed per chroma bin in ints, and
+ * the result is normalized to the same 0 ... LEVELS range as
+ * the quantized values the vector is matched with.
+ * 
+ * The chroma array holds the quantized values divided by
+ * LEVELS, so the vector is written to file like any other
+ * vector, and reading it back gives the exact same quantized
+ * values. The window and bin tables are calculated with
+ * StrictMath and everything else is integer based, so the
+ * results are the same on every JVM. FixedPointCheck in the
+ * experiments compares the output with a stored digest.
+ * 
+ * @author Elte Hupkes
+ */
+public class FixedChromaVector extends FrameVector {
+	/**
+	 * The maximum quantized chroma value
+	 */
+	public static final int LEVELS = 255;
+	
+	/**
+	 * The quantized chroma vector, values 0 ... LEVELS.
+	 */
+	protected int[] quantized;
+	
+	/**
+	 * The tables for the last used frame size, reused
+	 * as long as the analysis settings don't change.
+	 */
+	private static volatile Plan plan = null;
+	
+	/**
+	 * Holds everything that only depends on the analysis
+	 * settings. Instances are never modified after they're
+	 * created, so they can be shared between threads.
+	 */
+	private static class Plan {
+		final int frameSize;
+		final float sampleRate;
+		final WindowFunction window;
+		
+		/**
+		 * Q15 window values
+		 */
+		final int[] windowTable;
+		
+		/**
+		 * The transform
+		 */
+		final FixedFFT fft;
+		
+		/**
+		 * The FFT bin range within the chroma band
+		 */
+		final int from, to;
+		
+		/**
+		 * The chroma bin of each FFT bin in the range
+		 */
+		final int[] bins;
+		
+		/**
+		 * The number of FFT bins in each chroma bin, and the
+		 * maximum of those numbers.
+		 */
+		final int[] counts = new int[12];
+		final int maxCount;
+		
+		Plan(int frameSize, float sampleRate, WindowFunction window) {
+			this.frameSize = frameSize;
+			this.sampleRate = sampleRate;
+			this.window = window;
+			
+			windowTable = new int[frameSize];
+			for (int i = 0; i < frameSize; i++) {
+				windowTable[i] = (int)StrictMath.round(window.strictWindow(i, frameSize) * (1 << FixedFFT.Q));
+			}
+			
+			fft = new FixedFFT(FixedFFT.sizeFor(frameSize));
+			int n = fft.size();
+			from = Math.max(1, (int)Math.ceil(MIN_FREQUENCY * n / sampleRate));
+			to = Math.max(from, Math.min(n / 2, (int)Math.floor(MAX_FREQUENCY * n / sampleRate) + 1));
+			
+			bins = new int[to - from];
+			int max = 0;
+			for (int k = from; k < to; k++) {
+				int bin = strictFrequencyBin(sampleRate * k / (double)n);
+				bins[k - from] = bin;
+				counts[bin]++;
+				max = Math.max(max, counts[bin]);
+			}
+			maxCount = max;
+		}
+		
+		boolean matches(int frameSize, float sampleRate, WindowFunction window) {
+			return this.frameSize == frameSize && this.sampleRate == sampleRate &&
+					this.window == window;
+		}
+	}
+	
+	/**
+	 * Creates a vector from stored data.
+	 * @param parts
+	 */
+	public FixedChromaVector(double[] parts) {
+		chroma = parts;
+		quantized = new int[12];
+		for (int i = 0; i < 12; i++) {
+			quantized[i] = (int)Math.round(parts[i] * LEVELS);
+		}
+		rms = parts.length > 12 ? parts[12] : 0;
+	}
+	
+	/**
+	 * Creates a new frame vector from the given samples.
+	 * @param buffer Input samples
+	 * @param sampleRate The sample rate of the incoming samples
+	 */
+	public FixedChromaVector(AudioBuffer buffer, float sampleRate) {
+		int frameSize = buffer.size(), i;
+		Plan p = plan;
+		if (p == null || !p.matches(frameSize, sampleRate, Parameters.window)) {
+			p = plan = new Plan(frameSize, sampleRate, Parameters.window);
+		}
+		
+		// Window the samples, and sum the squares for the RMS
+		int[] data = new int[frameSize];
+		long squares = 0;
+		int v;
+		for (i = 0; i < frameSize; i++) {
+			v = buffer.get(i);
+			squares += v * v;
+			data[i] = (v * p.windowTable[i] + FixedFFT.HALF) >> FixedFFT.Q;
+		}
+		rms = Math.sqrt(squares / (double)frameSize) / 32768.0;
+		
+		int n = p.to - p.from;
+		int[] re = new int[n], im = new int[n];
+		p.fft.realForward(data, p.from, p.to, re, im);
+		
+		int[] sums = new int[12];
+		for (i = 0; i < n; i++) {
+			sums[p.bins[i]] += FixedFFT.sqrt((long)re[i] * re[i] + (long)im[i] * im[i]);
+		}
+		
+		quantize(sums, p);
+	}
+	
+	/**
+	 * Scales the sums to the same number of FFT bins per
+	 * chroma bin (like the LinearSumChromaVector does), and
+	 * quantizes them to the 0 ... LEVELS range.
+	 * @param sums
+	 * @param p
+	 */
+	private void quantize(int[] sums, Plan p) {
+		long[] scaled = new long[12];
+		long min = Long.MAX_VALUE, max = 0;
+		int i;
+		for (i = 0; i < 12; i++) {
+			scaled[i] = p.counts[i] == 0 ? 0 : (long)sums[i] * p.maxCount / p.counts[i];
+			min = Math.min(min, scaled[i]);
+			max = Math.max(max, scaled[i]);
+		}
+		
+		// As with the other vectors, min = max means noise.
+		long range = max - min;
+		quantized = new int[12];
+		chroma = new double[12];
+		for (i = 0; i < 12; i++) {
+			quantized[i] = range == 0 ? 0 : (int)(((scaled[i] - min) * LEVELS + range / 2) / range);
+			chroma[i] = quantized[i] / (double)LEVELS;
+		}
+	}
+	
+	/**
+	 * Returns the quantized chroma vector
+	 * @return
+	 */
+	public int[] getQuantized() {
+		return quantized;
+	}
+	
+	/**
+	 * Returns the squared distance between the quantized
+	 * vectors of this vector and v.
+	 * @param v
+	 * @return
+	 */
+	public int squaredDistance(FixedChromaVector v) {
+		int[] b = v.quantized;
+		int diff = 0, d;
+		for (int i = 0; i < 12; i++) {
+			d = b[i] - quantized[i];
+			diff += d * d;
+		}
+		return diff;
+	}
+	
+	/**
+	 * Calculates the matching probability, using the same
+	 * distance scale as the LinearSumChromaVector.
+	 */
+	@Override
+	public double matchProbability(FrameVector b) {
+		double distance;
+		if (b instanceof FixedChromaVector) {
+			distance = Math.sqrt(squaredDistance((FixedChromaVector)b)) / LEVELS;
+		} else {
+			double[] v = b.getChroma();
+			distance = 0;
+			for (int i = 0; i < 12; i++) {
+				distance += (v[i] - chroma[i]) * (v[i] - chroma[i]);
+			}
+			distance = Math.sqrt(distance);
+		}
+		return 1 - (distance / 20);
+	}
+	
+	/**
+	 * Like FrameVector.frequencyBin(), but calculated using
+	 * StrictMath so the bin table is the same everywhere.
+	 * @param frequency
+	 * @return
+	 */
+	private static int strictFrequencyBin(double frequency) {
+		return ((12 + (int)StrictMath.round(12 * StrictMath.log(frequency / 440.0) / 
+				StrictMath.log(2)) % 12) % 12);
+	}
+}
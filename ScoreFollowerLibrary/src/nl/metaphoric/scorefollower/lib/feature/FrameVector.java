@@ -1,5 +1,8 @@
 package nl.metaphoric.scorefollower.lib.feature;
 
+import nl.metaphoric.scorefollower.lib.AudioBuffer;
+import nl.metaphoric.scorefollower.lib.Parameters;
+
 /**
  * An abstract base FrameVector. 
  * @author Elte Hupkes
@@ -35,6 +38,21 @@ public abstract class FrameVector {
 	 */
 	protected double[] chroma;	
 	
+	/**
+	 * The chroma vector scaled to unit length, only
+	 * calculated when it is requested.
+	 * @see unitChroma()
+	 */
+	private double[] unit = null;
+	
+	/**
+	 * Cosine distances (1 - cos) are multiplied by this value
+	 * before they are subtracted from one, which keeps cosine
+	 * based match probabilities in the same range as the
+	 * distance based ones of the sum chroma vectors.
+	 */
+	protected static final double COSINE_SPREAD = 0.25;
+	
 	/**
 	 * The amplitude of this FrameVector. 
 	 * 
@@ -46,6 +64,13 @@ public abstract class FrameVector {
 	 */
 	public double rms;	
 	
+	/**
+	 * The System.nanoTime() at which the last audio of this
+	 * FrameVector was captured, 0 if it's not known (for
+	 * instance when it's read from a file).
+	 */
+	public long time = 0;
+	
 	/**
 	 * String representation of the vector, can be used
 	 * to write to file.
@@ -67,6 +92,102 @@ public abstract class FrameVector {
 	 */
 	public abstract double matchProbability(FrameVector b);
 	
+	/**
+	 * Windows the samples in the buffer using the active window
+	 * function, and writes them into data.
+	 * @param buffer The input samples
+	 * @param data Output array
+	 * @param offset Index in data of the first sample
+	 * @return The RMS of the (unwindowed) samples
+	 */
+	public static double window(AudioBuffer buffer, double[] data, int offset) {
+		int frameSize = buffer.size();
+		double v, rms = 0.0;
+		for (int i = 0; i < frameSize; i++) {
+			// Create double value from short value
+			v = buffer.get(i) / 32768.0;
+
+			data[offset + i] = v * Parameters.window.window(i, frameSize);
+			
+			// Add to real mean square
+			rms += v * v;
+		}
+		
+		// Calculate the root of the mean of the squares to get the RMS
+		return Math.sqrt(rms / frameSize);
+	}
+	
+	/**
+	 * Adds the intensities of the frequencies in a (realForward
+	 * transformed) spectrum to their chroma bins, and counts the
+	 * number of frequencies in each bin.
+	 * @param data The spectrum
+	 * @param offset Index in data of the spectrum
+	 * @param frameSize The size of the spectrum
+	 * @param sampleRate The sample rate of the transformed samples
+	 * @return The number of frequencies in each bin
+	 */
+	protected int[] binSpectrum(double[] data, int offset, int frameSize, float sampleRate) {
+		double frequency, intensity;
+		int bin, i;
+		
+		int[] nvalues = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+		int imag;
+		for (i = 2; i < frameSize; i += 2) {
+			// Calculate frequency in Hz using cycles / total cycles
+			// Note: this could be made faster by doing the division once and
+			// using a summation. But, let's first make it work & beautiful :).
+			frequency = sampleRate * i * 0.5 / (double)frameSize;
+			
+			if (frequency < MIN_FREQUENCY || frequency > MAX_FREQUENCY) {
+				// Ignore this frequency
+				// TODO: this could actually be worked into the loop to make it faster
+				continue;
+			}
+			
+			bin = frequencyBin(frequency);
+			
+			// Use the absolute value of the magnitude, ignoring phase.
+			imag = ((i+1) < frameSize) ? (i+1) : 1;
+			intensity = intensity(data[offset + i], data[offset + imag]);
+			
+			chroma[bin] += intensity;
+			nvalues[bin]++;
+		}
+		
+		/**
+		 * Add the final frequency in data[1] for even data lengths, for the n/2
+		 * frequency. The FFT returns only an intensity for this value (as opposed
+		 * to the 0 frequency, which has no phase).
+		 * 
+		 * Usually the frequency calculation is sampleRate * k / n, in the loop i = 2k.
+		 * If n = even, k = n/2, f = sampleRate * (n/2) / n = sampleRate * 0.5.
+		 */
+		if (frameSize % 2 == 0) {			
+			frequency = sampleRate * 0.5;
+			if (frequency <= MAX_FREQUENCY && frequency >= MIN_FREQUENCY) {				
+				bin = frequencyBin(frequency);
+				intensity = intensity(data[offset + 1], 0);
+				chroma[bin] += intensity;
+				nvalues[bin]++;
+			}
+		}
+		
+		return nvalues;
+	}
+	
+	/**
+	 * Returns the intensity of a frequency from its real
+	 * and imaginary part. Implementations can override this
+	 * to use a different scale.
+	 * @param real
+	 * @param imaginary
+	 * @return
+	 */
+	protected double intensity(double real, double imaginary) {
+		return Math.sqrt(real * real + imaginary * imaginary);
+	}
+	
 	/**
 	 * @param frequency The frequency in Hz
 	 * @return The frequency bin (as an equal-tempered distance from A0(440Hz), between 0 and 12
@@ -92,4 +213,31 @@ public abstract class FrameVector {
 	public double[] getChroma() {
 		return chroma;
 	}
+	
+	/**
+	 * Returns the chroma vector scaled to unit length. This is
+	 * calculated once and cached, so the ScoreReader can
+	 * normalize all reference vectors when it loads them.
+	 * A zero vector stays zero.
+	 * @return
+	 */
+	public double[] unitChroma() {
+		if (unit == null) {
+			double[] u = new double[12];
+			double norm = 0;
+			int i;
+			for (i = 0; i < 12; i++) {
+				norm += chroma[i] * chroma[i];
+			}
+			
+			if (norm > 0) {
+				norm = 1.0 / Math.sqrt(norm);
+				for (i = 0; i < 12; i++) {
+					u[i] = chroma[i] * norm;
+				}
+			}
+			unit = u;
+		}
+		return unit;
+	}
 }
\ No newline at end of file
@@ -18,7 +18,11 @@ public class FrameVectorFactory {
 							TYPE_LOG_CHROMA = 1,
 							TYPE_LINEAR_SUM_CHROMA = 2,
 							TYPE_LOG_SUM_CHROMA = 3,
-							TYPE_STRAIN = 4;
+							TYPE_STRAIN = 4,
+							TYPE_CENS_CHROMA = 5,
+							TYPE_DCT_CHROMA = 6,
+							TYPE_COSINE_CHROMA = 7,
+							TYPE_FIXED_CHROMA = 8;
 	
 	/**
 	 * Enforces singleton
@@ -30,7 +34,17 @@ public class FrameVectorFactory {
 	 * @return
 	 */
 	public static FrameVector getVector(double[] parts) {
-		switch (Parameters.frameVectorType) {
+		return getVector(Parameters.frameVectorType, parts);
+	}
+	
+	/**
+	 * Returns a FrameVector of the given type.
+	 * @param type
+	 * @param parts
+	 * @return
+	 */
+	public static FrameVector getVector(int type, double[] parts) {
+		switch (type) {
 		case TYPE_LOG_CHROMA:
 			return new LogChromaVector(parts);
 		case TYPE_LINEAR_SUM_CHROMA:
@@ -39,6 +53,14 @@ public class FrameVectorFactory {
 			return new LogSumChromaVector(parts);
 		case TYPE_STRAIN:
 			return new StrainVector(parts);
+		case TYPE_CENS_CHROMA:
+			return new CensChromaVector(parts);
+		case TYPE_DCT_CHROMA:
+			return new DctChromaVector(parts);
+		case TYPE_COSINE_CHROMA:
+			return new CosineChromaVector(parts);
+		case TYPE_FIXED_CHROMA:
+			return new FixedChromaVector(parts);
 		default:
 			return new LinearChromaVector(parts);
 		}
@@ -46,10 +68,28 @@ public class FrameVectorFactory {
 	
 	/**
 	 * Returns a FrameVector of the current type.
+	 * @param buffer
+	 * @param sampleRate
+	 * @param transformer The FFT transformer, can be null for
+	 * 				fixed point types.
 	 * @return
 	 */
 	public static FrameVector getVector(AudioBuffer buffer, float sampleRate, DoubleFFT_1D transformer) {
-		switch (Parameters.frameVectorType) {
+		return getVector(Parameters.frameVectorType, buffer, sampleRate, transformer);
+	}
+	
+	/**
+	 * Returns a FrameVector of the given type.
+	 * @param type
+	 * @param buffer
+	 * @param sampleRate
+	 * @param transformer The FFT transformer, can be null for
+	 * 				fixed point types.
+	 * @return
+	 */
+	public static FrameVector getVector(int type, AudioBuffer buffer, float sampleRate, 
+			DoubleFFT_1D transformer) {
+		switch (type) {
 		case TYPE_LOG_CHROMA:
 			return new LogChromaVector(buffer, sampleRate, transformer);
 		case TYPE_LINEAR_SUM_CHROMA:
@@ -58,8 +98,102 @@ public class FrameVectorFactory {
 			return new LogSumChromaVector(buffer, sampleRate, transformer);
 		case TYPE_STRAIN:
 			return new StrainVector(buffer, sampleRate, transformer);
+		case TYPE_CENS_CHROMA:
+			return new CensChromaVector(buffer, sampleRate, transformer);
+		case TYPE_DCT_CHROMA:
+			return new DctChromaVector(buffer, sampleRate, transformer);
+		case TYPE_COSINE_CHROMA:
+			return new CosineChromaVector(buffer, sampleRate, transformer);
+		case TYPE_FIXED_CHROMA:
+			return new FixedChromaVector(buffer, sampleRate);
 		default:
 			return new LinearChromaVector(buffer, sampleRate, transformer);
 		}
 	}
+	
+	/**
+	 * Returns a FrameVector of the given type from an already
+	 * transformed window. Not available for fixed point types,
+	 * which use their own transform.
+	 * @param type
+	 * @param spectrum Array holding the realForward transformed window
+	 * @param offset Index of the window in the spectrum array
+	 * @param frameSize The window size
+	 * @param rms The RMS of the window
+	 * @param sampleRate The sample rate of the window
+	 * @return
+	 */
+	public static FrameVector getVector(int type, double[] spectrum, int offset, int frameSize,
+			double rms, float sampleRate) {
+		switch (type) {
+		case TYPE_LOG_CHROMA:
+			return new LogChromaVector(spectrum, offset, frameSize, rms, sampleRate);
+		case TYPE_LINEAR_SUM_CHROMA:
+			return new LinearSumChromaVector(spectrum, offset, frameSize, rms, sampleRate);
+		case TYPE_LOG_SUM_CHROMA:
+			return new LogSumChromaVector(spectrum, offset, frameSize, rms, sampleRate);
+		case TYPE_STRAIN:
+			return new StrainVector(spectrum, offset, frameSize, rms, sampleRate);
+		case TYPE_CENS_CHROMA:
+			return new CensChromaVector(spectrum, offset, frameSize, rms, sampleRate);
+		case TYPE_DCT_CHROMA:
+			return new DctChromaVector(spectrum, offset, frameSize, rms, sampleRate);
+		case TYPE_COSINE_CHROMA:
+			return new CosineChromaVector(spectrum, offset, frameSize, rms, sampleRate);
+		case TYPE_FIXED_CHROMA:
+			throw new IllegalArgumentException("Fixed point vectors cannot be created from a spectrum.");
+		default:
+			return new LinearChromaVector(spectrum, offset, frameSize, rms, sampleRate);
+		}
+	}
+	
+	/**
+	 * Returns the type of the chroma vector that is actually
+	 * stored in files for vectors of the given type. The compressed
+	 * types store their underlying chroma vector, so references of
+	 * the same base type can be used interchangeably.
+	 * @param type
+	 * @return
+	 */
+	public static int baseType(int type) {
+		switch (type) {
+		case TYPE_STRAIN:
+		case TYPE_DCT_CHROMA:
+		case TYPE_COSINE_CHROMA:
+			return TYPE_LOG_SUM_CHROMA;
+		case TYPE_CENS_CHROMA:
+			return TYPE_LINEAR_SUM_CHROMA;
+		default:
+			return type;
+		}
+	}
+	
+	/**
+	 * @param type
+	 * @return True if vectors of the given type match using
+	 * 			their unit length chroma vectors.
+	 */
+	public static boolean usesUnitChroma(int type) {
+		return type == TYPE_COSINE_CHROMA;
+	}
+	
+	/**
+	 * @param type
+	 * @return True if vectors of the given type are calculated
+	 * 			without the (double precision) FFT transformer.
+	 */
+	public static boolean isFixedPoint(int type) {
+		return type == TYPE_FIXED_CHROMA;
+	}
+	
+	/**
+	 * @param type
+	 * @return True if vectors of the given type have chroma values in
+	 * 			[0, 1] and match on the Euclidean distance / 20, so that
+	 * 			a QuantizedReference can match them directly.
+	 */
+	public static boolean isQuantizable(int type) {
+		return type == TYPE_LINEAR_SUM_CHROMA || type == TYPE_LOG_SUM_CHROMA 
+				|| type == TYPE_FIXED_CHROMA;
+	}
 }
@@ -1,7 +1,6 @@
 package nl.metaphoric.scorefollower.lib.feature;
 
 import nl.metaphoric.scorefollower.lib.AudioBuffer;
-import nl.metaphoric.scorefollower.lib.Parameters;
 import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
 
 /**
@@ -59,31 +58,43 @@ public class LinearSumChromaVector extends FrameVector {
 	 * @param transformer FFT transformer, for efficiency only one is used and passed here.
 	 */
 	public LinearSumChromaVector(AudioBuffer buffer, float sampleRate, DoubleFFT_1D transformer) {
-		chroma = new double[12];
-		double frequency, intensity;
-		int bin, i;
-		mean = rms = 0.0;
-		
 		// Create a new buffer to hold double data
 		int frameSize = buffer.size();
 		double[] data = new double[frameSize];
-		double v;
-		for (i = 0; i < frameSize; i++) {
-			// Create double value from short value
-			v = buffer.get(i) / 32768.0;
-
-			data[i] = v * Parameters.window.window(i, frameSize);
-			
-			// Add to real mean square
-			rms += v * v;
-		}
-		
-		// Calculate the root of the mean of the squares to get the RMS
-		rms = Math.sqrt(rms / frameSize);
+		rms = window(buffer, data, 0);
 		
 		// Now transform the data using FFT
 		transformer.realForward(data);
 		
+		analyze(data, 0, frameSize, sampleRate);
+	}
+	
+	/**
+	 * Creates a new frame vector from an already transformed
+	 * window, as is done by the offline analysis.
+	 * @param spectrum Array holding the realForward transformed window
+	 * @param offset Index of the window in the spectrum array
+	 * @param frameSize The window size
+	 * @param rms The RMS of the window
+	 * @param sampleRate The sample rate of the window
+	 */
+	public LinearSumChromaVector(double[] spectrum, int offset, int frameSize, double rms, 
+			float sampleRate) {
+		this.rms = rms;
+		analyze(spectrum, offset, frameSize, sampleRate);
+	}
+	
+	/**
+	 * Creates the chroma vector from a transformed window.
+	 * @param data
+	 * @param offset
+	 * @param frameSize
+	 * @param sampleRate
+	 */
+	private void analyze(double[] data, int offset, int frameSize, float sampleRate) {
+		chroma = new double[12];
+		mean = 0.0;
+		
 		/**
 		 * Generate the chroma vector. We do this according to the "to catch a chorus"
 		 * paper; take the logarithmic magnitude of each frequency, classify them
@@ -93,52 +104,12 @@ public class LinearSumChromaVector extends FrameVector {
 		 * I used to normalize to unit variance as well, but the results appear to be
 		 * much better using just zero mean.
 		 */
-		int[] nvalues = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-		int imag;
-		for (i = 2; i < data.length; i += 2) {
-			// Calculate frequency in Hz using cycles / total cycles
-			// Note: this could be made faster by doing the division once and
-			// using a summation. But, let's first make it work & beautiful :).
-			frequency = sampleRate * i * 0.5 / (double)data.length;
-			
-			if (frequency < MIN_FREQUENCY || frequency > MAX_FREQUENCY) {
-				// Ignore this frequency
-				// TODO: this could actually be worked into the loop to make it faster
-				continue;
-			}
-			
-			bin = frequencyBin(frequency);
-			
-			// Use the absolute value of the magnitude, ignoring phase.
-			imag = ((i+1) < data.length) ? (i+1) : 1;
-			intensity = intensity(data[i], data[imag]);
-			
-			chroma[bin] += intensity;
-			nvalues[bin]++;
-		}
-		
-		/**
-		 * Add the final frequency in data[1] for even data lengths, for the n/2
-		 * frequency. The FFT returns only an intensity for this value (as opposed
-		 * to the 0 frequency, which has no phase).
-		 * 
-		 * Usually the frequency calculation is sampleRate * k / n, in the loop i = 2k.
-		 * If n = even, k = n/2, f = sampleRate * (n/2) / n = sampleRate * 0.5.
-		 */
-		if (data.length % 2 == 0) {			
-			frequency = sampleRate * 0.5;
-			if (frequency <= MAX_FREQUENCY && frequency >= MIN_FREQUENCY) {				
-				bin = frequencyBin(frequency);
-				intensity = intensity(data[1], 0);
-				chroma[bin] += intensity;
-				nvalues[bin]++;
-			}
-		}
+		int[] nvalues = binSpectrum(data, offset, frameSize, sampleRate);
 		
 		// Find the minimum and maximum bin content value to
 		// normalize to.
 		int minN = 999999999, maxN = 0;
-		for (i = 0; i < 12; i++) {
+		for (int i = 0; i < 12; i++) {
 			if (nvalues[i] > maxN) {
 				maxN = nvalues[i];
 			}
@@ -176,17 +147,6 @@ public class LinearSumChromaVector extends FrameVector {
 		}
 	}
 	
-	/**
-	 * 
-	 * @param real
-	 * @param imag
-	 * @return
-	 */
-	public double intensity(double real, double imag) {
-		//return Math.abs(imag);
-		return Math.sqrt(real * real + imag * imag);
-	}
-	
 	/**
 	 * Calculates the Euclidean difference between this vector
 	 * and the given vector. This difference is based
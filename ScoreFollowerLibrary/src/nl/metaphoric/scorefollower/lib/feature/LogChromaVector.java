@@ -38,6 +38,19 @@ public class LogChromaVector extends LinearChromaVector {
 		super(buffer, sampleRate, transformer);
 	}
 	
+	/**
+	 * Creates a vector from a transformed window, see
+	 * LinearChromaVector.
+	 * @param spectrum
+	 * @param offset
+	 * @param frameSize
+	 * @param rms
+	 * @param sampleRate
+	 */
+	public LogChromaVector(double[] spectrum, int offset, int frameSize, double rms, float sampleRate) {
+		super(spectrum, offset, frameSize, rms, sampleRate);
+	}
+	
 	/**
 	 * Use logarithmic intensity
 	 */
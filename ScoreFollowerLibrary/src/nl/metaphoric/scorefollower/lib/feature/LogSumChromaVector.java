@@ -28,6 +28,19 @@ public class LogSumChromaVector extends LinearSumChromaVector {
 		super(buffer, sampleRate, transformer);
 	}
 	
+	/**
+	 * Creates a vector from a transformed window, see
+	 * LinearSumChromaVector.
+	 * @param spectrum
+	 * @param offset
+	 * @param frameSize
+	 * @param rms
+	 * @param sampleRate
+	 */
+	public LogSumChromaVector(double[] spectrum, int offset, int frameSize, double rms, float sampleRate) {
+		super(spectrum, offset, frameSize, rms, sampleRate);
+	}
+	
 	/**
 	 * Normalizes vector so all items are in 0 ... 1 range.
 	 */
@@ -0,0 +1,211 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Reference data with chroma values quantized to 8 or 16 bits.
+ * This takes a fraction of the memory of a list of FrameVectors,
+ * and can be matched directly with integer arithmetic (see
+ * matchProbability). FrameVectors are only created when a vector
+ * is requested through get().
+ * 
+ * Only usable for FrameVector types with chroma values in [0, 1]
+ * that match on the Euclidean distance.
+ * @see FrameVectorFactory#isQuantizable(int)
+ * 
+ * @author Elte Hupkes
+ */
+public class QuantizedReference extends AbstractList<FrameVector> {
+	/**
+	 * Quantized values per frame
+	 */
+	public static final int BINS = 12;
+	
+	/**
+	 * Bits per value and the maximum quantized value
+	 */
+	private int bits, levels;
+	
+	/**
+	 * Quantized chroma values, BINS per frame. Only one of
+	 * these is used, depending on the number of bits.
+	 */
+	private byte[] values8;
+	private char[] values16;
+	
+	/**
+	 * RMS of each frame
+	 */
+	private float[] rms;
+	
+	/**
+	 * Number of frames
+	 */
+	private int size;
+	
+	/**
+	 * Creates an empty reference of the given size, to be
+	 * filled with setFrame().
+	 * @param bits 8 or 16
+	 * @param size
+	 */
+	public QuantizedReference(int bits, int size) {
+		if (bits != 8 && bits != 16) {
+			throw new IllegalArgumentException("Can only quantize to 8 or 16 bits, not "+bits);
+		}
+		
+		this.bits = bits;
+		this.size = size;
+		levels = (1 << bits) - 1;
+		rms = new float[size];
+		if (bits == 8) {
+			values8 = new byte[size * BINS];
+		} else {
+			values16 = new char[size * BINS];
+		}
+	}
+	
+	/**
+	 * Quantizes the given reference data
+	 * @param reference
+	 * @param bits 8 or 16
+	 */
+	public QuantizedReference(List<FrameVector> reference, int bits) {
+		this(bits, reference.size());
+		int[] q = new int[BINS];
+		for (int i = 0; i < size; i++) {
+			FrameVector v = reference.get(i);
+			setFrame(i, quantize(v, q), v.rms);
+		}
+	}
+	
+	/**
+	 * Sets the values of a frame
+	 * @param index
+	 * @param values BINS quantized values
+	 * @param rms
+	 */
+	public void setFrame(int index, int[] values, double rms) {
+		int offset = index * BINS;
+		for (int j = 0; j < BINS; j++) {
+			if (bits == 8) {
+				values8[offset + j] = (byte)values[j];
+			} else {
+				values16[offset + j] = (char)values[j];
+			}
+		}
+		this.rms[index] = (float)rms;
+	}
+	
+	/**
+	 * Quantizes the chroma of the given vector
+	 * @param v
+	 * @param out Receives BINS quantized values
+	 * @return out
+	 */
+	public int[] quantize(FrameVector v, int[] out) {
+		double[] chroma = v.getChroma();
+		for (int j = 0; j < BINS; j++) {
+			out[j] = quantize(chroma[j]);
+		}
+		return out;
+	}
+	
+	/**
+	 * Quantizes a single [0, 1] value
+	 * @param value
+	 * @return
+	 */
+	public int quantize(double value) {
+		if (value <= 0) {
+			return 0;
+		}
+		return value >= 1 ? levels : (int)(value * levels + 0.5);
+	}
+	
+	/**
+	 * Returns a quantized value
+	 * @param index Frame index
+	 * @param bin
+	 * @return
+	 */
+	public int value(int index, int bin) {
+		int i = index * BINS + bin;
+		return bits == 8 ? values8[i] & 0xFF : values16[i];
+	}
+	
+	/**
+	 * Returns the RMS of a frame
+	 * @param index
+	 * @return
+	 */
+	public double rms(int index) {
+		return rms[index];
+	}
+	
+	/**
+	 * Calculates the match probability of a quantized input
+	 * vector with a reference frame, the same way the quantizable
+	 * FrameVectors do: one minus the Euclidean distance / 20.
+	 * @param q Input vector, quantized with quantize()
+	 * @param index Reference frame
+	 * @return
+	 */
+	public double matchProbability(int[] q, int index) {
+		int offset = index * BINS, d, d2 = 0;
+		if (bits == 8) {
+			for (int j = 0; j < BINS; j++) {
+				d = q[j] - (values8[offset + j] & 0xFF);
+				d2 += d * d;
+			}
+		} else {
+			// Use a long, 12 squared 16 bit differences overflow an int
+			long l2 = 0;
+			for (int j = 0; j < BINS; j++) {
+				d = q[j] - values16[offset + j];
+				l2 += (long)d * d;
+			}
+			return 1 - Math.sqrt(l2) / levels / 20;
+		}
+		return 1 - Math.sqrt(d2) / levels / 20;
+	}
+	
+	/**
+	 * Returns the number of bits per value
+	 * @return
+	 */
+	public int bits() {
+		return bits;
+	}
+	
+	/**
+	 * Returns the maximum quantized value
+	 * @return
+	 */
+	public int levels() {
+		return levels;
+	}
+	
+	/**
+	 * Creates a FrameVector of the active type for the given frame
+	 */
+	@Override
+	public FrameVector get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+		}
+		
+		double[] parts = new double[BINS + 1];
+		for (int j = 0; j < BINS; j++) {
+			parts[j] = value(index, j) / (double)levels;
+		}
+		parts[BINS] = rms[index];
+		return FrameVectorFactory.getVector(parts);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+}
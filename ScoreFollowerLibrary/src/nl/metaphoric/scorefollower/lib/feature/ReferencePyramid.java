@@ -0,0 +1,106 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import java.util.List;
+
+import nl.metaphoric.scorefollower.lib.Parameters;
+
+/**
+ * Coarse versions of reference data, for coarse-to-fine matching.
+ * Level L holds one vector per 2^L reference vectors, with the
+ * average chroma values and RMS of those vectors; level 0 is the
+ * reference itself. Vector i of level L covers reference vectors
+ * i * 2^L up to (i + 1) * 2^L, and is the parent of vectors 2i and
+ * 2i + 1 of level L - 1.
+ *
+ * @author Elte Hupkes
+ */
+public class ReferencePyramid {
+	/**
+	 * The reference, and the coarse levels from level 1
+	 */
+	private List<FrameVector> reference;
+	private FrameVector[][] levels;
+
+	/**
+	 * Builds a pyramid with the given number of coarse levels
+	 * @param reference
+	 * @param levels
+	 */
+	public ReferencePyramid(List<FrameVector> reference, int levels) {
+		this.reference = reference;
+		this.levels = new FrameVector[levels][];
+
+		int type = Parameters.frameVectorType;
+		boolean unit = FrameVectorFactory.usesUnitChroma(type);
+		double[][] sums = null;
+		int n = reference.size();
+		for (int level = 1; level <= levels; level++) {
+			int size = (n + (1 << level) - 1) >> level;
+			double[][] next = new double[size][13];
+			int[] counts = new int[size];
+			if (level == 1) {
+				// Sum the reference vectors
+				for (int i = 0; i < n; i++) {
+					FrameVector v = reference.get(i);
+					double[] chroma = v.getChroma(), sum = next[i >> 1];
+					for (int j = 0; j < 12; j++) {
+						sum[j] += chroma[j];
+					}
+					sum[12] += v.rms;
+					counts[i >> 1]++;
+				}
+			} else {
+				// Sum the sums of the level below
+				for (int i = 0; i < sums.length; i++) {
+					for (int j = 0; j < 13; j++) {
+						next[i >> 1][j] += sums[i][j];
+					}
+				}
+				for (int i = 0; i < size; i++) {
+					counts[i] = Math.min(n - (i << level), 1 << level);
+				}
+			}
+
+			FrameVector[] vectors = new FrameVector[size];
+			for (int i = 0; i < size; i++) {
+				double[] parts = new double[13];
+				for (int j = 0; j < 13; j++) {
+					parts[j] = next[i][j] / counts[i];
+				}
+				vectors[i] = FrameVectorFactory.getVector(type, parts);
+				if (unit) {
+					vectors[i].unitChroma();
+				}
+			}
+			this.levels[level - 1] = vectors;
+			sums = next;
+		}
+	}
+
+	/**
+	 * Returns the number of coarse levels
+	 * @return
+	 */
+	public int levels() {
+		return levels.length;
+	}
+
+	/**
+	 * Returns the number of vectors at the given level
+	 * @param level
+	 * @return
+	 */
+	public int size(int level) {
+		return level == 0 ? reference.size() : levels[level - 1].length;
+	}
+
+	/**
+	 * Returns vector i of the given level
+	 * @param level
+	 * @param i
+	 * @return
+	 */
+	public FrameVector get(int level, int i) {
+		return level == 0 ? reference.get(i) : levels[level - 1][i];
+	}
+}
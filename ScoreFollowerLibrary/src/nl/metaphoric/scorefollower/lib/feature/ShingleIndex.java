@@ -0,0 +1,382 @@
+package nl.metaphoric.scorefollower.lib.feature;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbour index over the whole reference,
+ * for finding the position of a performance without knowing where
+ * to look.
+ *
+ * The index is keyed on chroma shingles: LENGTH chroma vectors,
+ * SPACING seconds apart, each averaged over the SPACING seconds up
+ * to it, centered on its mean and scaled to unit length. Single
+ * frames are too noisy to compare, averaging them makes shingles
+ * of a performance and its reference similar.
+ *
+ * Shingles are hashed with random hyperplanes (locality sensitive
+ * hashing): each of the TABLES tables uses BITS hyperplanes, and a
+ * shingle's key in a table has one bit per hyperplane, set if the
+ * shingle lies on its positive side. Similar shingles are likely to
+ * share a key in at least one table, so a query only compares the
+ * input with the reference shingles in its own buckets.
+ *
+ * A shingle is identified by the index of its last vector, and
+ * shingles are stored in the order of the input: oldest vector first.
+ *
+ * @author Elte Hupkes
+ */
+public class ShingleIndex {
+	/**
+	 * The number of vectors in a shingle
+	 */
+	public static final int LENGTH = 4;
+
+	/**
+	 * The time between the vectors of a shingle, in seconds
+	 */
+	public static final double SPACING = 0.25;
+
+	/**
+	 * The number of hash tables, and the number of
+	 * hyperplanes (key bits) per table.
+	 */
+	public static final int TABLES = 8, BITS = 12;
+
+	/**
+	 * At most this many shingles are compared per table
+	 * and query, so that a crowded bucket stays cheap.
+	 */
+	public static final int MAX_BUCKET = 64;
+
+	/**
+	 * Seed of the hyperplanes, so that an index is the
+	 * same every time it's built.
+	 */
+	private static final long SEED = 1;
+
+	/**
+	 * The centered unit average chroma up to every reference vector
+	 */
+	private float[] chroma;
+
+	/**
+	 * The number of reference vectors, and the number of
+	 * vectors between the vectors of a shingle.
+	 */
+	private int size, stride;
+
+	/**
+	 * The hyperplanes by table and bit
+	 */
+	private double[][][] planes;
+
+	/**
+	 * Every indexed shingle by table, as its key in the upper and
+	 * its last vector in the lower 32 bits, sorted.
+	 */
+	private long[][] tables;
+
+	/**
+	 * The query that last compared each shingle, and
+	 * the number of queries made.
+	 */
+	private int[] queried;
+	private int queries = 0;
+
+	/**
+	 * Shingles compared in the current query, and their similarities
+	 */
+	private int[] found = new int[TABLES * MAX_BUCKET];
+	private double[] foundSimilarities = new double[TABLES * MAX_BUCKET];
+
+	/**
+	 * Chroma sum used while creating input shingles
+	 */
+	private double[] sum = new double[12];
+
+	/**
+	 * Indexes all shingles of the given reference
+	 * @param reference
+	 * @param hopSize The time between reference vectors, in seconds
+	 */
+	public ShingleIndex(List<FrameVector> reference, double hopSize) {
+		size = reference.size();
+		stride = stride(hopSize);
+
+		// Average the chroma over the stride up to every vector
+		chroma = new float[size * 12];
+		double[] total = new double[12], unit = new double[12];
+		for (int i = 0; i < size; i++) {
+			add(total, reference.get(i).getChroma(), 1);
+			if (i >= stride) {
+				add(total, reference.get(i - stride).getChroma(), -1);
+			}
+			normalize(total, unit, 0);
+			for (int j = 0; j < 12; j++) {
+				chroma[i * 12 + j] = (float)unit[j];
+			}
+		}
+
+		Random random = new Random(SEED);
+		planes = new double[TABLES][BITS][LENGTH * 12];
+		for (int t = 0; t < TABLES; t++) {
+			for (int b = 0; b < BITS; b++) {
+				for (int j = 0; j < LENGTH * 12; j++) {
+					planes[t][b][j] = random.nextGaussian();
+				}
+			}
+		}
+
+		int first = span() - 1, count = Math.max(0, size - first);
+		double[] shingle = new double[LENGTH * 12];
+		tables = new long[TABLES][count];
+		for (int end = first; end < size; end++) {
+			shingle(end, shingle);
+			for (int t = 0; t < TABLES; t++) {
+				tables[t][end - first] = ((long)key(t, shingle) << 32) | end;
+			}
+		}
+		for (int t = 0; t < TABLES; t++) {
+			Arrays.sort(tables[t]);
+		}
+
+		queried = new int[size];
+	}
+
+	/**
+	 * Returns the number of vectors between the vectors of a
+	 * shingle for the given hop size.
+	 * @param hopSize
+	 * @return
+	 */
+	public static int stride(double hopSize) {
+		return Math.max(1, (int)Math.round(SPACING / hopSize));
+	}
+
+	/**
+	 * Returns the number of consecutive vectors a shingle spans
+	 * @return
+	 */
+	public int span() {
+		return (LENGTH - 1) * stride + 1;
+	}
+
+	/**
+	 * Returns the number of reference vectors
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of vectors between the vectors of a shingle
+	 * @return
+	 */
+	public int stride() {
+		return stride;
+	}
+
+	/**
+	 * Returns the number of input vectors a shingle is made of
+	 * @return
+	 */
+	public int history() {
+		return LENGTH * stride;
+	}
+
+	/**
+	 * Creates the shingle of the last history() input vectors
+	 * @param history The chroma of the input vectors, 12 values
+	 * 			each, in a ring buffer of history() vectors.
+	 * @param oldest The position of the oldest vector in history
+	 * @param out Return array of LENGTH * 12 values
+	 */
+	public void shingle(double[] history, int oldest, double[] out) {
+		int n = history();
+		for (int m = 0; m < LENGTH; m++) {
+			for (int j = 0; j < 12; j++) {
+				sum[j] = 0;
+			}
+			for (int i = m * stride; i < (m + 1) * stride; i++) {
+				int offset = (oldest + i) % n * 12;
+				for (int j = 0; j < 12; j++) {
+					sum[j] += history[offset + j];
+				}
+			}
+			normalize(sum, out, m * 12);
+		}
+	}
+
+	/**
+	 * Adds the given chroma vector times factor to sum
+	 * @param sum
+	 * @param chroma
+	 * @param factor
+	 */
+	private static void add(double[] sum, double[] chroma, double factor) {
+		for (int j = 0; j < 12; j++) {
+			sum[j] += factor * chroma[j];
+		}
+	}
+
+	/**
+	 * Centers the given chroma vector on its mean and scales it
+	 * to unit length, into out at the given offset. A flat vector
+	 * becomes zero. Also used by the PositionMatcher to compare
+	 * frames.
+	 * @param chroma
+	 * @param out
+	 * @param offset
+	 */
+	public static void normalize(double[] chroma, double[] out, int offset) {
+		double mean = 0, norm = 0;
+		int j;
+		for (j = 0; j < 12; j++) {
+			mean += chroma[j];
+		}
+		mean /= 12;
+		for (j = 0; j < 12; j++) {
+			out[offset + j] = chroma[j] - mean;
+			norm += out[offset + j] * out[offset + j];
+		}
+		norm = norm > 0 ? 1.0 / Math.sqrt(norm) : 0;
+		for (j = 0; j < 12; j++) {
+			out[offset + j] *= norm;
+		}
+	}
+
+	/**
+	 * Returns the similarity between the given shingle and the reference
+	 * shingle ending at the given index, as the mean cosine similarity
+	 * of their vectors (-1 ... 1). Returns -1 if no shingle ends there.
+	 * @param shingle
+	 * @param end
+	 * @return
+	 */
+	public double similarity(double[] shingle, int end) {
+		if (end < span() - 1 || end >= size) {
+			return -1;
+		}
+
+		double dot = 0;
+		for (int m = 0; m < LENGTH; m++) {
+			int offset = (end - (LENGTH - 1 - m) * stride) * 12;
+			for (int j = 0; j < 12; j++) {
+				dot += shingle[m * 12 + j] * chroma[offset + j];
+			}
+		}
+		return dot / LENGTH;
+	}
+
+	/**
+	 * Finds the reference shingles most similar to the given shingle.
+	 * Shingles closer than a stride to a better result are left out,
+	 * so results are distinct positions.
+	 * @param shingle
+	 * @param results Return array for the last indices of the best
+	 * 				shingles, best first.
+	 * @param similarities Return array for their similarities
+	 * @return The number of results
+	 */
+	public int query(double[] shingle, int[] results, double[] similarities) {
+		queries++;
+
+		// Compare the shingles in the query's bucket of every table
+		int n = 0;
+		for (int t = 0; t < TABLES; t++) {
+			long[] table = tables[t];
+			int key = key(t, shingle), compared = 0;
+			for (int i = first(table, key); i < table.length && (int)(table[i] >>> 32) == key
+					&& compared < MAX_BUCKET; i++, compared++) {
+				int end = (int)table[i];
+				if (queried[end] != queries) {
+					queried[end] = queries;
+					found[n] = end;
+					foundSimilarities[n++] = similarity(shingle, end);
+				}
+			}
+		}
+
+		// Pick the best, skipping neighbours of results
+		int count = 0;
+		while (count < results.length) {
+			int best = -1;
+			for (int i = 0; i < n; i++) {
+				if (found[i] >= 0 && (best < 0 || foundSimilarities[i] > foundSimilarities[best])) {
+					best = i;
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+
+			results[count] = found[best];
+			similarities[count++] = foundSimilarities[best];
+			for (int i = 0; i < n; i++) {
+				if (found[i] >= 0 && Math.abs(found[i] - results[count - 1]) < stride) {
+					found[i] = -1;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Puts the reference shingle ending at the given index in out
+	 * @param end
+	 * @param out
+	 */
+	public void shingle(int end, double[] out) {
+		for (int m = 0; m < LENGTH; m++) {
+			int offset = (end - (LENGTH - 1 - m) * stride) * 12;
+			for (int j = 0; j < 12; j++) {
+				out[m * 12 + j] = chroma[offset + j];
+			}
+		}
+	}
+
+	/**
+	 * Returns the key of a shingle in the given table
+	 * @param table
+	 * @param shingle
+	 * @return
+	 */
+	private int key(int table, double[] shingle) {
+		int key = 0;
+		for (int b = 0; b < BITS; b++) {
+			double[] plane = planes[table][b];
+			double dot = 0;
+			for (int j = 0; j < plane.length; j++) {
+				dot += plane[j] * shingle[j];
+			}
+			if (dot > 0) {
+				key |= 1 << b;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the first position in a sorted table with the given
+	 * key, or where it would be if there is none.
+	 * @param table
+	 * @param key
+	 * @return
+	 */
+	private static int first(long[] table, int key) {
+		long target = (long)key << 32;
+		int low = 0, high = table.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (table[mid] < target) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
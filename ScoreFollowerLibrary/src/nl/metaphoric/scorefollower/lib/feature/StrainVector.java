@@ -20,6 +20,11 @@ public class StrainVector extends LogSumChromaVector {
 	public StrainVector(double[] parts) {
 		super(parts);
 	}
+	
+	public StrainVector(double[] spectrum, int offset, int frameSize, double rms, 
+			float sampleRate) {
+		super(spectrum, offset, frameSize, rms, sampleRate);
+	}
 
 	/**
 	 * Return constant match probability to confuse
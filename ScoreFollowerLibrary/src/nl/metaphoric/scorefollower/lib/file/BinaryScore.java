@@ -0,0 +1,538 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.Position;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+import nl.metaphoric.scorefollower.lib.feature.QuantizedReference;
+
+/**
+ * Reads and writes scores in the binary SFT-B format. This holds the
+ * same data as the text format, but can be loaded without any parsing:
+ * the file is memory mapped and the vector data is read as a flat
+ * block of floats.
+ * 
+ * Layout (big endian):
+ * <pre>
+ * Header, HEADER_SIZE bytes:
+ *   int    magic ("SFTB")
+ *   int    format version
+ *   double windowSize
+ *   double hopSize
+ *   float  framerate
+ *   int    flags (FLAG_TIMES, FLAG_QUANTIZED)
+ *   int    number of frames
+ *   int    number of other settings
+ *   int    number of pages
+ *   int    number of positions
+ *   int    offset of the frame block
+ *   int    offset of the times block (0 if absent)
+ * Settings table: key / value strings
+ * Page table: filename strings
+ * Position table: int index, int page, double x, double y
+ * Frame block: 12 chroma values and the RMS for every frame, as floats
+ * Times block: a double for every frame
+ * </pre>
+ * Strings are stored as an int byte length followed by UTF-8 bytes.
+ * 
+ * With FLAG_QUANTIZED the frame block is compressed instead. It starts
+ * with a byte holding the number of bits per value (8 or 16), followed
+ * by runs of identical frames:
+ * <pre>
+ *   varint  run length
+ *   12 quantized chroma values, unsigned, 1 or 2 bytes each
+ *   varint  zigzag coded difference of the RMS with the previous frame,
+ *           in units of 1 / RMS_SCALE
+ * </pre>
+ * Quantized scores are read into a QuantizedReference.
+ * 
+ * @author Elte Hupkes
+ */
+public class BinaryScore {
+	/**
+	 * The file magic, "SFTB"
+	 */
+	public static final int MAGIC = 0x53465442;
+	
+	/**
+	 * The current format version
+	 */
+	public static final int VERSION = 1;
+	
+	/**
+	 * Header flags
+	 */
+	public static final int FLAG_TIMES = 1, FLAG_QUANTIZED = 2;
+	
+	/**
+	 * Fixed point scale of the RMS in quantized frame blocks
+	 */
+	public static final double RMS_SCALE = 1 << 24;
+	
+	/**
+	 * The size of the fixed header in bytes
+	 */
+	public static final int HEADER_SIZE = 56;
+	
+	/**
+	 * The number of floats stored per frame
+	 */
+	public static final int FRAME_SIZE = 13;
+	
+	/**
+	 * Settings that are stored in the fixed header
+	 */
+	private static final String WINDOW_SIZE = "windowSize", HOP_SIZE = "hopSize", 
+			FRAMERATE = "framerate";
+	
+	/**
+	 * Enforces static usage
+	 */
+	private BinaryScore() {}
+	
+	/**
+	 * Checks whether the given file starts with the SFT-B magic
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBinary(String filename) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(filename));
+		try {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			// Shorter than the magic, so not binary
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes a score in the binary format, with full precision frames.
+	 * @see #write(String, Map, List, List, Map, List, int)
+	 */
+	public static void write(String filename, Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times) 
+			throws IOException {
+		write(filename, settings, pages, reference, positions, times, 0);
+	}
+	
+	/**
+	 * Writes a score in the binary format.
+	 * @param filename
+	 * @param settings The settings, must include windowSize, hopSize
+	 * 			and framerate.
+	 * @param pages Page filenames
+	 * @param reference The reference data
+	 * @param positions Recorded positions by reference index
+	 * @param times The time of every reference vector, can be null.
+	 * @param bits 8 or 16 to write quantized frames, 0 to write floats.
+	 * 				Quantizing only makes sense for quantizable FrameVector types.
+	 * @throws IOException
+	 */
+	public static void write(String filename, Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times,
+			int bits) throws IOException {
+		// Write the variable size tables first, so their size is known
+		ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+		DataOutputStream tables = new DataOutputStream(tableBytes);
+		int nSettings = 0;
+		for (Map.Entry<String, String> e : settings.entrySet()) {
+			if (!isHeaderSetting(e.getKey())) {
+				writeString(tables, e.getKey());
+				writeString(tables, e.getValue());
+				nSettings++;
+			}
+		}
+		for (String page : pages) {
+			writeString(tables, page);
+		}
+		for (Map.Entry<Integer, Position> e : positions.entrySet()) {
+			Position p = e.getValue();
+			tables.writeInt(e.getKey());
+			tables.writeInt(p.page());
+			tables.writeDouble(p.xFrac());
+			tables.writeDouble(p.yFrac());
+		}
+		tables.flush();
+		
+		ByteArrayOutputStream frameBytes = null;
+		int frameSize = 4 * FRAME_SIZE * reference.size(),
+			flags = times == null ? 0 : FLAG_TIMES;
+		if (bits > 0) {
+			frameBytes = new ByteArrayOutputStream();
+			writeQuantized(frameBytes, reference, bits);
+			frameSize = frameBytes.size();
+			flags |= FLAG_QUANTIZED;
+		}
+		
+		int frameOffset = HEADER_SIZE + tableBytes.size(),
+			timesOffset = times == null ? 0 : frameOffset + frameSize;
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(Double.parseDouble(settings.get(WINDOW_SIZE)));
+			out.writeDouble(Double.parseDouble(settings.get(HOP_SIZE)));
+			out.writeFloat(Float.parseFloat(settings.get(FRAMERATE)));
+			out.writeInt(flags);
+			out.writeInt(reference.size());
+			out.writeInt(nSettings);
+			out.writeInt(pages.size());
+			out.writeInt(positions.size());
+			out.writeInt(frameOffset);
+			out.writeInt(timesOffset);
+			tableBytes.writeTo(out);
+			
+			if (frameBytes != null) {
+				frameBytes.writeTo(out);
+			} else {
+				for (FrameVector v : reference) {
+					double[] chroma = v.getChroma();
+					for (int i = 0; i < 12; i++) {
+						out.writeFloat((float)chroma[i]);
+					}
+					out.writeFloat((float)v.rms);
+				}
+			}
+			
+			if (times != null) {
+				for (double t : times) {
+					out.writeDouble(t);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a binary score into the given ScoreReader
+	 * @param filename
+	 * @param reader
+	 * @throws IOException
+	 */
+	static void read(String filename, ScoreReader reader) throws IOException {
+		read(filename, 0, -1, reader);
+	}
+	
+	/**
+	 * Reads a binary score stored in a range of the given file,
+	 * as in a ScoreBundle, into the given ScoreReader. Only the
+	 * range is mapped.
+	 * @param filename
+	 * @param start File offset of the score
+	 * @param length Length of the score, -1 for the rest of the file
+	 * @param reader
+	 * @throws IOException
+	 */
+	static void read(String filename, long start, long length, ScoreReader reader) 
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (length < 0) {
+				length = channel.size() - start;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			Header header = readTables(buf, filename, reader.getSettings().getAll(), 
+					reader.getPages(), reader.positions);
+			
+			buf.position(header.frameOffset);
+			int i;
+			if ((header.flags & FLAG_QUANTIZED) != 0) {
+				QuantizedReference quantized = readQuantized(buf, header.frames);
+				if (FrameVectorFactory.isQuantizable(Parameters.frameVectorType)) {
+					reader.reference = quantized;
+				} else {
+					// Matching needs full FrameVectors
+					reader.reference.addAll(quantized);
+				}
+			} else if (Parameters.pagedReferenceFrames > 0 && header.frames >= Parameters.pagedReferenceFrames) {
+				// Too long to keep in memory
+				reader.reference = new PagedReference(filename, header.frames, 
+						start + header.frameOffset);
+			} else {
+				FloatBuffer frames = buf.asFloatBuffer();
+				for (i = 0; i < header.frames; i++) {
+					double[] parts = new double[FRAME_SIZE];
+					for (int j = 0; j < FRAME_SIZE; j++) {
+						parts[j] = frames.get();
+					}
+					reader.reference.add(FrameVectorFactory.getVector(parts));
+				}
+			}
+			
+			List<Double> times = reader.getTimes();
+			if (times != null) {
+				if ((header.flags & FLAG_TIMES) != 0) {
+					buf.position(header.timesOffset);
+					for (i = 0; i < header.frames; i++) {
+						times.add(buf.getDouble());
+					}
+				} else {
+					for (i = 0; i < header.frames; i++) {
+						times.add(-1.0);
+					}
+				}
+			}
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Reads only the settings and page filenames of a binary score.
+	 * The frame count is stored as the "frames" setting.
+	 * @param filename
+	 * @param settings
+	 * @param pages
+	 * @throws IOException
+	 */
+	public static void readHeader(String filename, Map<String, String> settings, List<String> pages)
+			throws IOException {
+		readHeader(filename, 0, settings, pages);
+	}
+	
+	/**
+	 * Reads only the settings and page filenames of a binary score
+	 * stored at the given offset of a file, as in a ScoreBundle.
+	 * @param filename
+	 * @param start File offset of the score
+	 * @param settings
+	 * @param pages
+	 * @throws IOException
+	 */
+	static void readHeader(String filename, long start, Map<String, String> settings, 
+			List<String> pages) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			// The tables end where the frames start
+			file.seek(start + HEADER_SIZE - 8);
+			int frameOffset = file.readInt();
+			if (frameOffset < HEADER_SIZE || frameOffset > file.length() - start) {
+				throw new IOException("Corrupt SFT-B header: "+filename);
+			}
+			
+			byte[] bytes = new byte[frameOffset];
+			file.seek(start);
+			file.readFully(bytes);
+			readTables(ByteBuffer.wrap(bytes), filename, settings, pages, null);
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Reads the fixed header and the tables following it
+	 * @param buf Buffer positioned at the start of the file
+	 * @param filename Used in error messages
+	 * @param settings
+	 * @param pages
+	 * @param positions Null to skip the positions
+	 * @return
+	 * @throws IOException
+	 */
+	private static Header readTables(ByteBuffer buf, String filename, Map<String, String> settings,
+			List<String> pages, Map<Integer, Position> positions) throws IOException {
+		if (buf.getInt() != MAGIC) {
+			throw new IOException("Not an SFT-B file: "+filename);
+		}
+		int version = buf.getInt();
+		if (version > VERSION) {
+			throw new IOException("Unsupported SFT-B version "+version);
+		}
+		
+		Header header = new Header();
+		settings.put(WINDOW_SIZE, String.valueOf(buf.getDouble()));
+		settings.put(HOP_SIZE, String.valueOf(buf.getDouble()));
+		settings.put(FRAMERATE, String.valueOf(buf.getFloat()));
+		header.flags = buf.getInt();
+		header.frames = buf.getInt();
+		settings.put(TextScore.FRAMES, String.valueOf(header.frames));
+		int nSettings = buf.getInt(),
+			nPages = buf.getInt(),
+			nPositions = buf.getInt();
+		header.frameOffset = buf.getInt();
+		header.timesOffset = buf.getInt();
+		
+		buf.position(HEADER_SIZE);
+		int i;
+		for (i = 0; i < nSettings; i++) {
+			settings.put(readString(buf), readString(buf));
+		}
+		for (i = 0; i < nPages; i++) {
+			pages.add(readString(buf));
+		}
+		if (positions != null) {
+			for (i = 0; i < nPositions; i++) {
+				int index = buf.getInt(), page = buf.getInt();
+				positions.put(index, new Position(page, buf.getDouble(), buf.getDouble()));
+			}
+		}
+		return header;
+	}
+	
+	/**
+	 * Fields of the fixed header needed to read the data blocks
+	 */
+	private static class Header {
+		int flags, frames, frameOffset, timesOffset;
+	}
+	
+	/**
+	 * Writes a quantized frame block
+	 * @param out
+	 * @param reference
+	 * @param bits
+	 * @throws IOException
+	 */
+	private static void writeQuantized(ByteArrayOutputStream out, List<FrameVector> reference,
+			int bits) throws IOException {
+		QuantizedReference quantized = reference instanceof QuantizedReference 
+				&& ((QuantizedReference)reference).bits() == bits ?
+				(QuantizedReference)reference : new QuantizedReference(reference, bits);
+		
+		out.write(bits);
+		int n = quantized.size(), i = 0;
+		long lastRms = 0;
+		while (i < n) {
+			// Find the run of frames equal to this one
+			long rms = Math.round(quantized.rms(i) * RMS_SCALE);
+			int run = 1;
+			while (i + run < n && sameFrame(quantized, i, i + run)) {
+				run++;
+			}
+			
+			writeVarint(out, run);
+			for (int j = 0; j < QuantizedReference.BINS; j++) {
+				int v = quantized.value(i, j);
+				if (bits == 16) {
+					out.write(v >>> 8);
+				}
+				out.write(v & 0xFF);
+			}
+			long delta = rms - lastRms;
+			writeVarint(out, (delta << 1) ^ (delta >> 63));
+			lastRms = rms;
+			i += run;
+		}
+	}
+	
+	/**
+	 * @return Whether two quantized frames are identical
+	 */
+	private static boolean sameFrame(QuantizedReference q, int a, int b) {
+		if (q.rms(a) != q.rms(b)) {
+			return false;
+		}
+		for (int j = 0; j < QuantizedReference.BINS; j++) {
+			if (q.value(a, j) != q.value(b, j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads a quantized frame block
+	 * @param buf Positioned at the start of the block
+	 * @param frames Number of frames
+	 * @return
+	 * @throws IOException
+	 */
+	private static QuantizedReference readQuantized(ByteBuffer buf, int frames) throws IOException {
+		int bits = buf.get();
+		QuantizedReference quantized = new QuantizedReference(bits, frames);
+		int[] values = new int[QuantizedReference.BINS];
+		long rms = 0;
+		int i = 0;
+		while (i < frames) {
+			int run = (int)readVarint(buf);
+			if (run < 1 || i + run > frames) {
+				throw new IOException("Corrupt quantized frame block at frame "+i);
+			}
+			for (int j = 0; j < values.length; j++) {
+				values[j] = bits == 16 ? buf.getChar() : buf.get() & 0xFF;
+			}
+			long zigzag = readVarint(buf);
+			rms += (zigzag >>> 1) ^ -(zigzag & 1);
+			
+			for (int end = i + run; i < end; i++) {
+				quantized.setFrame(i, values, rms / RMS_SCALE);
+			}
+		}
+		return quantized;
+	}
+	
+	/**
+	 * Writes an unsigned LEB128 varint
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int)(v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int)v);
+	}
+	
+	/**
+	 * Reads an unsigned LEB128 varint
+	 */
+	private static long readVarint(ByteBuffer buf) {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			v |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return v;
+	}
+	
+	/**
+	 * @param key
+	 * @return Whether the setting is stored in the fixed header
+	 */
+	private static boolean isHeaderSetting(String key) {
+		return key.equals(WINDOW_SIZE) || key.equals(HOP_SIZE) || key.equals(FRAMERATE)
+				|| key.equals(TextScore.FRAMES);
+	}
+	
+	/**
+	 * Writes a length prefixed UTF-8 string
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	/**
+	 * Reads a length prefixed UTF-8 string
+	 */
+	private static String readString(ByteBuffer buf) throws IOException {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
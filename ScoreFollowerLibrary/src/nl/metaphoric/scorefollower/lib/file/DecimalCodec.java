@@ -0,0 +1,481 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.math.BigInteger;
+
+/**
+ * Parses and formats doubles directly from / into char arrays,
+ * without creating intermediate Strings.
+ *
+ * Parsing is exact: short decimals are converted with a single
+ * correctly rounded floating point operation (Clinger's fast path),
+ * others with the Eisel-Lemire algorithm. The rare inputs neither
+ * can decide are passed on to Double.parseDouble.
+ *
+ * Formatting writes the shortest of 15, 16 or 17 significant digits
+ * that parses back to the exact same double, in the same notation
+ * as Double.toString.
+ *
+ * @author Elte Hupkes
+ */
+public final class DecimalCodec {
+	/**
+	 * The range of decimal exponents in the power of five table
+	 */
+	private static final int MIN_POWER = -342, MAX_POWER = 308;
+
+	/**
+	 * 128 bit approximations of 5^q, normalized so the top bit is set,
+	 * split into a high and a low word. POW5_EXP holds floor(log2(5^q)),
+	 * so that 5^q ~ (POW5_HI:POW5_LO) * 2^(POW5_EXP - 127).
+	 */
+	private static final long[] POW5_HI, POW5_LO;
+	private static final int[] POW5_EXP;
+
+	/**
+	 * Exactly representable powers of ten
+	 */
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/**
+	 * Powers of ten as longs
+	 */
+	private static final long[] LONG_POW10 = new long[19];
+
+	static {
+		int n = MAX_POWER - MIN_POWER + 1;
+		POW5_HI = new long[n];
+		POW5_LO = new long[n];
+		POW5_EXP = new int[n];
+
+		BigInteger five = BigInteger.valueOf(5);
+		for (int q = MIN_POWER; q <= MAX_POWER; q++) {
+			BigInteger c;
+			int exp;
+			if (q < 0) {
+				// Approximate 2^b / 5^-q, rounded up before truncation
+				BigInteger p = five.pow(-q);
+				int z = p.bitLength();
+				exp = -z;
+				int b = q >= -27 ? z + 127 : 2 * z + 128;
+				c = BigInteger.ONE.shiftLeft(b).divide(p).add(BigInteger.ONE);
+				c = c.shiftRight(Math.max(0, c.bitLength() - 128));
+			} else {
+				c = five.pow(q);
+				exp = c.bitLength() - 1;
+				c = c.shiftLeft(128 - c.bitLength());
+			}
+			int i = q - MIN_POWER;
+			POW5_HI[i] = c.shiftRight(64).longValue();
+			POW5_LO[i] = c.longValue();
+			POW5_EXP[i] = exp;
+		}
+
+		LONG_POW10[0] = 1;
+		for (int i = 1; i < LONG_POW10.length; i++) {
+			LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Enforces static usage
+	 */
+	private DecimalCodec() {}
+
+	/**
+	 * Parses the double in buf[from, to).
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws NumberFormatException If the characters do not form a number
+	 */
+	public static double parse(char[] buf, int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+			negative = buf[i] == '-';
+			i++;
+		}
+
+		long w = 0;
+		int digits = 0, seen = 0, exp10 = 0;
+		boolean truncated = false;
+		char c;
+
+		// Integer part
+		for (; i < to && (c = buf[i]) >= '0' && c <= '9'; i++) {
+			seen++;
+			if (digits < 19) {
+				if (w != 0 || c != '0') {
+					w = w * 10 + (c - '0');
+					digits++;
+				}
+			} else {
+				exp10++;
+				truncated |= c != '0';
+			}
+		}
+
+		// Fraction
+		if (i < to && buf[i] == '.') {
+			for (i++; i < to && (c = buf[i]) >= '0' && c <= '9'; i++) {
+				seen++;
+				if (digits < 19) {
+					if (w != 0 || c != '0') {
+						w = w * 10 + (c - '0');
+						digits++;
+					}
+					exp10--;
+				} else {
+					truncated |= c != '0';
+				}
+			}
+		}
+
+		// Exponent
+		if (seen > 0 && i < to && (buf[i] == 'e' || buf[i] == 'E')) {
+			i++;
+			boolean negExp = false;
+			if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+				negExp = buf[i] == '-';
+				i++;
+			}
+			int e = 0, start = i;
+			for (; i < to && (c = buf[i]) >= '0' && c <= '9'; i++) {
+				if (e < 100000) {
+					e = e * 10 + (c - '0');
+				}
+			}
+			if (i == start) {
+				seen = 0;
+			}
+			exp10 += negExp ? -e : e;
+		}
+
+		if (seen > 0 && i == to && !truncated) {
+			if (w == 0) {
+				return negative ? -0.0 : 0.0;
+			}
+			double d = toDouble(w, exp10);
+			if (!Double.isNaN(d)) {
+				return negative ? -d : d;
+			}
+		}
+
+		// NaN, Infinity, very long or invalid input.
+		return Double.parseDouble(new String(buf, from, to - from));
+	}
+
+	/**
+	 * Returns w * 10^q correctly rounded, or NaN if this cannot
+	 * be decided here.
+	 * @param w A positive mantissa
+	 * @param q
+	 * @return
+	 */
+	private static double toDouble(long w, int q) {
+		// Clinger's fast path: both operands are exact, so the
+		// result is correctly rounded.
+		if (q >= -22 && q <= 22 && w >= 0 && w <= (1L << 53)) {
+			return q < 0 ? w / POW10[-q] : w * POW10[q];
+		}
+
+		if (q < MIN_POWER || q > MAX_POWER) {
+			return Double.NaN;
+		}
+
+		// Eisel-Lemire
+		int index = q - MIN_POWER;
+		int lz = Long.numberOfLeadingZeros(w);
+		w <<= lz;
+
+		long upper = multiplyHigh(w, POW5_HI[index]),
+			lower = w * POW5_HI[index];
+		if ((upper & 0x1FF) == 0x1FF && unsignedLess(lower + w, lower)) {
+			// Not enough precision, include the low word
+			long productLow = w * POW5_LO[index],
+				productMiddle2 = multiplyHigh(w, POW5_LO[index]),
+				productMiddle = lower + productMiddle2;
+			if (unsignedLess(productMiddle, lower)) {
+				upper++;
+			}
+			if (productMiddle + 1 == 0 && (upper & 0x1FF) == 0x1FF
+					&& unsignedLess(productLow + w, productLow)) {
+				return Double.NaN;
+			}
+			lower = productMiddle;
+		}
+
+		long upperBit = upper >>> 63;
+		long mantissa = upper >>> (upperBit + 9);
+		lz += (int)(1 ^ upperBit);
+
+		// Possibly halfway between two doubles
+		if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1) {
+			return Double.NaN;
+		}
+
+		mantissa += mantissa & 1;
+		mantissa >>>= 1;
+		if (mantissa >= (1L << 53)) {
+			mantissa = 1L << 52;
+			lz--;
+		}
+		mantissa &= ~(1L << 52);
+
+		long exponent = (((152170L + 65536L) * q) >> 16) + 1024 + 63 - lz;
+		if (exponent < 1 || exponent > 2046) {
+			return Double.NaN;
+		}
+
+		return Double.longBitsToDouble(mantissa | (exponent << 52));
+	}
+
+	/**
+	 * Writes the given double into out at pos.
+	 * @param v
+	 * @param out
+	 * @param pos
+	 * @return The position after the written characters. Out must
+	 * 		   have room for at least 26 characters.
+	 */
+	public static int format(double v, char[] out, int pos) {
+		if (v == 0) {
+			if (1 / v < 0) {
+				out[pos++] = '-';
+			}
+			out[pos++] = '0';
+			out[pos++] = '.';
+			out[pos++] = '0';
+			return pos;
+		}
+
+		if (Double.isNaN(v) || Double.isInfinite(v)) {
+			return append(Double.toString(v), out, pos);
+		}
+
+		if (v < 0) {
+			out[pos++] = '-';
+			v = -v;
+		}
+
+		// Decimal exponent of the first digit, corrected below
+		int e = (int)Math.floor(Math.log10(v));
+		long m = scale(v, 16 - e);
+		if (m >= LONG_POW10[17]) {
+			e++;
+			m = scale(v, 16 - e);
+		} else if (m < LONG_POW10[16]) {
+			e--;
+			m = scale(v, 16 - e);
+		}
+
+		if (m >= 0) {
+			// Shortest exact representation
+			long d;
+			for (int drop = 2; drop > 0; drop--) {
+				long div = LONG_POW10[drop];
+				for (d = m / div; d <= m / div + 1; d++) {
+					if (toDouble(d, e - 16 + drop) == v) {
+						return writeDigits(d * div, e, out, pos);
+					}
+				}
+			}
+			for (d = Math.max(m - 1, LONG_POW10[16]); d <= m + 1; d++) {
+				if (toDouble(d, e - 16) == v) {
+					return writeDigits(d, e, out, pos);
+				}
+			}
+		}
+
+		return append(Double.toString(v), out, pos);
+	}
+
+	/**
+	 * Writes an int into out at pos.
+	 * @param v
+	 * @param out
+	 * @param pos
+	 * @return The position after the written characters
+	 */
+	public static int format(int v, char[] out, int pos) {
+		if (v < 0) {
+			if (v == Integer.MIN_VALUE) {
+				return append(Integer.toString(v), out, pos);
+			}
+			out[pos++] = '-';
+			v = -v;
+		}
+
+		int end = pos + stringSize(v);
+		for (int i = end - 1; i >= pos; i--) {
+			out[i] = (char)('0' + v % 10);
+			v /= 10;
+		}
+		return end;
+	}
+
+	/**
+	 * Returns v * 10^k rounded to the nearest integer, accurate
+	 * to within one unit. Returns -1 if the scale is out of range.
+	 * @param v A positive, finite double
+	 * @param k
+	 * @return
+	 */
+	private static long scale(double v, int k) {
+		if (k < MIN_POWER || k > MAX_POWER) {
+			return -1;
+		}
+
+		long bits = Double.doubleToRawLongBits(v);
+		int binExp = (int)(bits >>> 52) & 0x7FF;
+		long f = bits & ((1L << 52) - 1);
+		if (binExp == 0) {
+			// Subnormal
+			binExp = 1;
+		} else {
+			f |= 1L << 52;
+		}
+		int lz = Long.numberOfLeadingZeros(f);
+		f <<= lz;
+
+		// v = f * 2^(binExp - 1075 - lz), 10^k = 5^k * 2^k
+		int index = k - MIN_POWER;
+		long hi = multiplyHigh(f, POW5_HI[index]),
+			lo = f * POW5_HI[index],
+			carry = multiplyHigh(f, POW5_LO[index]);
+		lo += carry;
+		if (unsignedLess(lo, carry)) {
+			hi++;
+		}
+
+		// (hi:lo) * 2^shift = v * 10^k
+		int shift = binExp - 1075 - lz + k + POW5_EXP[index] - 127 + 64;
+		if (shift >= 0 || shift < -127) {
+			return -1;
+		}
+
+		int s = -shift;
+		long m, roundBit;
+		if (s >= 64) {
+			m = hi >>> (s - 64);
+			roundBit = s == 64 ? lo >>> 63 : (hi >>> (s - 65)) & 1;
+		} else {
+			m = (hi << (64 - s)) | (lo >>> s);
+			if ((hi >>> s) != 0) {
+				return -1;
+			}
+			roundBit = (lo >>> (s - 1)) & 1;
+		}
+		return m < 0 ? -1 : m + roundBit;
+	}
+
+	/**
+	 * Writes the 17 digit decimal m * 10^(e - 16) in the notation
+	 * Double.toString uses.
+	 */
+	private static int writeDigits(long m, int e, char[] out, int pos) {
+		// Correct for rounding up to an extra digit
+		if (m >= LONG_POW10[17]) {
+			m /= 10;
+			e++;
+		}
+
+		// Strip trailing zeros, keeping at least one digit
+		int n = 17;
+		while (n > 1 && m % 10 == 0) {
+			m /= 10;
+			n--;
+		}
+
+		if (e >= -3 && e < 7) {
+			if (e >= 0) {
+				int intDigits = e + 1;
+				if (n <= intDigits) {
+					pos = writeLong(m, n, out, pos);
+					for (int i = n; i < intDigits; i++) {
+						out[pos++] = '0';
+					}
+					out[pos++] = '.';
+					out[pos++] = '0';
+				} else {
+					long div = LONG_POW10[n - intDigits];
+					pos = writeLong(m / div, intDigits, out, pos);
+					out[pos++] = '.';
+					pos = writeLong(m % div, n - intDigits, out, pos);
+				}
+			} else {
+				out[pos++] = '0';
+				out[pos++] = '.';
+				for (int i = -1; i > e; i--) {
+					out[pos++] = '0';
+				}
+				pos = writeLong(m, n, out, pos);
+			}
+		} else {
+			long div = LONG_POW10[n - 1];
+			out[pos++] = (char)('0' + m / div);
+			out[pos++] = '.';
+			if (n > 1) {
+				pos = writeLong(m % div, n - 1, out, pos);
+			} else {
+				out[pos++] = '0';
+			}
+			out[pos++] = 'E';
+			pos = format(e, out, pos);
+		}
+		return pos;
+	}
+
+	/**
+	 * Writes exactly n digits of v, zero padded.
+	 */
+	private static int writeLong(long v, int n, char[] out, int pos) {
+		for (int i = pos + n - 1; i >= pos; i--) {
+			out[i] = (char)('0' + v % 10);
+			v /= 10;
+		}
+		return pos + n;
+	}
+
+	/**
+	 * Number of digits in a non-negative int
+	 */
+	private static int stringSize(int v) {
+		int n = 1;
+		while (v >= 10) {
+			v /= 10;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Fallback: appends a string
+	 */
+	private static int append(String s, char[] out, int pos) {
+		s.getChars(0, s.length(), out, pos);
+		return pos + s.length();
+	}
+
+	/**
+	 * The high word of the unsigned 128 bit product of x and y
+	 */
+	private static long multiplyHigh(long x, long y) {
+		long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32,
+			y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+		long p01 = x0 * y1, p10 = x1 * y0;
+		long middle = p10 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+		return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+	}
+
+	/**
+	 * Unsigned a < b
+	 */
+	private static boolean unsignedLess(long a, long b) {
+		return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+	}
+}
@@ -0,0 +1,299 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+
+/**
+ * Reference data of a binary (SFT-B) score that is read from disk in
+ * blocks of BLOCK_FRAMES vectors when they are needed. Only the most
+ * recently used RESIDENT_BLOCKS blocks are kept in memory, so memory
+ * use doesn't depend on the length of the score. Matchers
+ * only look at vectors around the current position, which will
+ * nearly always be in resident blocks.
+ *
+ * When a vector near the end of its block is requested, the next block
+ * is read on a background thread, and likewise for the previous block
+ * near the start. Following therefore finds the next block in memory
+ * as it moves through the score.
+ *
+ * Only scores with full precision vectors can be paged, as quantized
+ * frames don't have a fixed size.
+ *
+ * @author Elte Hupkes
+ */
+public class PagedReference extends AbstractList<FrameVector> {
+	/**
+	 * Log tag
+	 */
+	private static final String TAG = "SF_PagedReference";
+
+	/**
+	 * Vectors per block
+	 */
+	public static final int BLOCK_FRAMES = 1024;
+
+	/**
+	 * Maximum number of blocks kept in memory
+	 */
+	public static final int RESIDENT_BLOCKS = 8;
+
+	/**
+	 * Bytes per vector on disk, 12 chroma values and the rms as floats
+	 */
+	private static final int FRAME_BYTES = BinaryScore.FRAME_SIZE * 4;
+
+	/**
+	 * The score file
+	 */
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	/**
+	 * The number of vectors, and the file offset of the first
+	 */
+	private int frames;
+	private long frameOffset;
+
+	/**
+	 * The FrameVector type to create
+	 */
+	private int type;
+
+	/**
+	 * Resident blocks, least recently used first. Guarded by "this".
+	 */
+	private Map<Integer, FrameVector[]> blocks =
+			new LinkedHashMap<Integer, FrameVector[]>(RESIDENT_BLOCKS * 2, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, FrameVector[]> eldest) {
+					return size() > RESIDENT_BLOCKS;
+				}
+			};
+
+	/**
+	 * The most recently used block, checked without locking as
+	 * nearly all lookups fall in the same block.
+	 */
+	private static class Recent {
+		final int n;
+		final FrameVector[] block;
+		boolean ahead = false, behind = false;
+
+		Recent(int n, FrameVector[] block) {
+			this.n = n;
+			this.block = block;
+		}
+	}
+	private volatile Recent recent = null;
+
+	/**
+	 * Blocks that are being read in the background. Guarded by "this".
+	 */
+	private Set<Integer> pending = new HashSet<Integer>();
+
+	/**
+	 * Reads blocks ahead of time
+	 */
+	private ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, TAG);
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Statistics: blocks read on request and in the background
+	 */
+	private volatile int misses = 0, prefetched = 0;
+
+	/**
+	 * Opens the reference data of a binary score
+	 * @param filename
+	 * @param frames The number of vectors
+	 * @param frameOffset The file offset of the first vector
+	 * @throws IOException
+	 */
+	PagedReference(String filename, int frames, long frameOffset) throws IOException {
+		file = new RandomAccessFile(filename, "r");
+		channel = file.getChannel();
+		this.frames = frames;
+		this.frameOffset = frameOffset;
+		type = Parameters.frameVectorType;
+
+		if (frameOffset + (long)frames * FRAME_BYTES > channel.size()) {
+			file.close();
+			throw new IOException("Truncated SFT-B file: "+filename);
+		}
+	}
+
+	@Override
+	public FrameVector get(int index) {
+		if (index < 0 || index >= frames) {
+			throw new IndexOutOfBoundsException("Index: "+index+", size: "+frames);
+		}
+
+		int n = index / BLOCK_FRAMES, offset = index % BLOCK_FRAMES;
+		Recent r = recent;
+		if (r == null || r.n != n) {
+			r = new Recent(n, block(n));
+			recent = r;
+		}
+
+		// Read ahead in the direction we're moving, once per visit of this block
+		if (offset >= BLOCK_FRAMES * 3 / 4 && !r.ahead) {
+			r.ahead = true;
+			prefetch(n + 1);
+		} else if (offset < BLOCK_FRAMES / 4 && !r.behind) {
+			r.behind = true;
+			prefetch(n - 1);
+		}
+		return r.block[offset];
+	}
+
+	@Override
+	public int size() {
+		return frames;
+	}
+
+	/**
+	 * Returns the given block, reading it if it isn't resident
+	 * @param n
+	 * @return
+	 */
+	private FrameVector[] block(int n) {
+		FrameVector[] block;
+		synchronized (this) {
+			block = blocks.get(n);
+		}
+		if (block != null) {
+			return block;
+		}
+
+		misses++;
+		block = read(n);
+		synchronized (this) {
+			blocks.put(n, block);
+		}
+		return block;
+	}
+
+	/**
+	 * Reads the given block in the background if it
+	 * exists and isn't resident or being read yet.
+	 * @param n
+	 */
+	private void prefetch(final int n) {
+		if (n < 0 || n * BLOCK_FRAMES >= frames) {
+			return;
+		}
+		synchronized (this) {
+			if (blocks.containsKey(n) || !pending.add(n)) {
+				return;
+			}
+		}
+
+		prefetcher.execute(new Runnable() {
+			public void run() {
+				FrameVector[] block = null;
+				try {
+					block = read(n);
+					prefetched++;
+				} catch (IllegalStateException e) {
+					// Reported again when the block is requested
+				}
+				synchronized (PagedReference.this) {
+					pending.remove(n);
+					if (block != null && !blocks.containsKey(n)) {
+						blocks.put(n, block);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads block n from the file
+	 * @param n
+	 * @return
+	 */
+	private FrameVector[] read(int n) {
+		int first = n * BLOCK_FRAMES, count = Math.min(BLOCK_FRAMES, frames - first);
+		ByteBuffer buf = ByteBuffer.allocate(count * FRAME_BYTES);
+		try {
+			long position = frameOffset + (long)first * FRAME_BYTES;
+			while (buf.hasRemaining()) {
+				// Positional reads don't interfere with each other
+				if (channel.read(buf, position + buf.position()) < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read reference block "+n+": "+e.getMessage());
+			throw new IllegalStateException("Could not read reference block "+n+": "+e.getMessage());
+		}
+		buf.flip();
+
+		FloatBuffer floats = buf.asFloatBuffer();
+		boolean unit = FrameVectorFactory.usesUnitChroma(type);
+		FrameVector[] block = new FrameVector[count];
+		for (int i = 0; i < count; i++) {
+			double[] parts = new double[BinaryScore.FRAME_SIZE];
+			for (int j = 0; j < parts.length; j++) {
+				parts[j] = floats.get();
+			}
+			block[i] = FrameVectorFactory.getVector(type, parts);
+			if (unit) {
+				block[i].unitChroma();
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Returns the number of blocks that had to be read when they
+	 * were requested, because they weren't read ahead.
+	 * @return
+	 */
+	public int misses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of blocks read ahead of time
+	 * @return
+	 */
+	public int prefetched() {
+		return prefetched;
+	}
+
+	/**
+	 * Stops reading ahead and closes the file
+	 */
+	public void close() {
+		prefetcher.shutdownNow();
+		try {
+			file.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not close reference file: "+e.getMessage());
+		}
+	}
+}
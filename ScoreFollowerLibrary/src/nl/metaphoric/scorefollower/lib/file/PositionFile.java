@@ -0,0 +1,182 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.Position;
+
+/**
+ * Stores the pages and positions of a score in a small file next
+ * to it ("score.sft.pos"), so that marker edits can be saved without
+ * rewriting the reference data. When present, the positions file
+ * replaces the pages and positions stored in the score itself.
+ *
+ * The format is plain text:
+ * <pre>
+ * frames=N
+ * page=filename
+ * position=index page x y
+ * </pre>
+ * The frame count ties the file to the reference it was written
+ * for; a positions file that doesn't match the score's frame count
+ * is ignored. Writing a full score removes its positions file.
+ *
+ * @author Elte Hupkes
+ */
+public class PositionFile {
+	/**
+	 * Log tag
+	 */
+	private static final String TAG = "SF_PositionFile";
+
+	/**
+	 * Extension appended to the score filename
+	 */
+	public static final String EXTENSION = ".pos";
+
+	/**
+	 * Enforces static usage
+	 */
+	private PositionFile() {}
+
+	/**
+	 * Returns the positions file belonging to the given score
+	 * @param scoreFile
+	 * @return
+	 */
+	public static File sidecar(String scoreFile) {
+		return new File(scoreFile + EXTENSION);
+	}
+
+	/**
+	 * Writes the pages and positions for the given score. The file is
+	 * written to a temporary file first, and then renamed over the old
+	 * one, so that it is never left half written.
+	 * @param scoreFile The score file the positions belong to
+	 * @param frames The number of reference vectors in the score
+	 * @param pages
+	 * @param positions Positions by reference index
+	 * @throws IOException
+	 */
+	public static void write(String scoreFile, int frames, List<String> pages,
+			Map<Integer, Position> positions) throws IOException {
+		File target = sidecar(scoreFile),
+			 temp = new File(target.getPath() + ".tmp");
+		String newLine = System.getProperty("line.separator");
+
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			Writer out = new OutputStreamWriter(fos, "UTF-8");
+			out.write(TextScore.FRAMES+"="+frames+newLine);
+			for (String page : pages) {
+				out.write("page="+page+newLine);
+			}
+			for (Map.Entry<Integer, Position> e : new TreeMap<Integer, Position>(positions).entrySet()) {
+				Position p = e.getValue();
+				out.write("position="+e.getKey()+" "+p.page()+" "+p.xFrac()+" "+p.yFrac()+newLine);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		if (!temp.renameTo(target)) {
+			// Some platforms don't rename over an existing file
+			target.delete();
+			if (!temp.renameTo(target)) {
+				throw new IOException("Could not replace "+target);
+			}
+		}
+		Log.d(TAG, "Wrote "+positions.size()+" positions to "+target);
+	}
+
+	/**
+	 * Reads the positions file of a score, if there is one that
+	 * matches the score.
+	 * @param scoreFile
+	 * @param frames The number of reference vectors in the score,
+	 * 				-1 if unknown.
+	 * @param pages Receives the page filenames, replacing its contents
+	 * @param positions Receives the positions, replacing its contents,
+	 * 				can be null.
+	 * @return True if a positions file was read
+	 * @throws IOException
+	 */
+	public static boolean read(String scoreFile, int frames, List<String> pages,
+			Map<Integer, Position> positions) throws IOException {
+		File file = sidecar(scoreFile);
+		if (!file.isFile()) {
+			return false;
+		}
+
+		List<String> newPages = new ArrayList<String>();
+		Map<Integer, Position> newPositions = new TreeMap<Integer, Position>();
+		int fileFrames = -1;
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int eq = line.indexOf('=');
+				if (eq < 0 || line.startsWith("#")) {
+					continue;
+				}
+				String key = line.substring(0, eq).trim(), value = line.substring(eq + 1).trim();
+				if (key.equals("page")) {
+					newPages.add(value);
+				} else if (key.equals("position")) {
+					String[] parts = value.split("\\s+");
+					if (parts.length < 4) {
+						throw new IOException("Invalid position line: "+line);
+					}
+					newPositions.put(Integer.parseInt(parts[0]), new Position(Integer.parseInt(parts[1]),
+							Double.parseDouble(parts[2]), Double.parseDouble(parts[3])));
+				} else if (key.equals(TextScore.FRAMES)) {
+					fileFrames = Integer.parseInt(value);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid positions file "+file+": "+e.getMessage());
+		} finally {
+			in.close();
+		}
+
+		if (frames >= 0 && fileFrames != frames) {
+			Log.w(TAG, "Ignoring "+file+", it was written for "+fileFrames+
+					" frames instead of "+frames+".");
+			return false;
+		}
+
+		pages.clear();
+		pages.addAll(newPages);
+		if (positions != null) {
+			positions.clear();
+			positions.putAll(newPositions);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the positions file of a score, called when the
+	 * score itself is written with its positions.
+	 * @param scoreFile
+	 */
+	public static void delete(String scoreFile) {
+		File file = sidecar(scoreFile);
+		if (file.exists() && !file.delete()) {
+			Log.w(TAG, "Could not remove stale positions file "+file);
+		}
+	}
+}
@@ -1,18 +1,20 @@
 package nl.metaphoric.scorefollower.lib.file;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
+import nl.metaphoric.scorefollower.lib.AppendLog;
 import nl.metaphoric.scorefollower.lib.AudioAnalyzer;
 import nl.metaphoric.scorefollower.lib.Log;
 import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer;
 import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer.Status;
+import nl.metaphoric.scorefollower.lib.feature.AnalysisConfig;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
 import nl.metaphoric.scorefollower.lib.Position;
 
@@ -29,9 +31,11 @@ public class PositionRecorder {
 	private static String TAG = "SF_PositionRecorder";
 	
 	/**
-	 * Reference data for the position recorder
+	 * Reference data for the position recorder. Appended to
+	 * by the audio thread only, so that the UI thread can read
+	 * it without blocking the audio thread.
 	 */
-	private Vector<FrameVector> ref;
+	private AppendLog<FrameVector> ref;
 	
 	/**
 	 * Stores set times, aligns with the
@@ -54,16 +58,38 @@ public class PositionRecorder {
 	 * A list with time data, stored as the
 	 * number of received frames (even the
 	 * ones ignored) at the point that each
-	 * vector is stored.
+	 * vector is stored. Appended before the
+	 * vector itself.
 	 */
-	private List<Integer> times;
+	private AppendLog<Integer> times;
 	private int receivedFrames = 0;
 	
+	/**
+	 * If set, recorded data is written to this journal instead
+	 * of being kept in memory.
+	 * @see startJournal
+	 */
+	private RecordingJournal journal = null;
+	
+	/**
+	 * An existing score whose positions are being edited, and
+	 * its number of reference vectors.
+	 * @see editScore
+	 */
+	private String editing = null;
+	private int editingFrames = 0;
+	
+	/**
+	 * True if times should be written, the journal always
+	 * stores them.
+	 */
+	private boolean recordTimes = false;
+	
 	/**
 	 * Initializes a new PositionRecorder
 	 */
 	public PositionRecorder() {
-		ref = new Vector<FrameVector>();
+		ref = new AppendLog<FrameVector>();
 		positions = new HashMap<Integer, Position>();
 		status = new PlaybackAnalyzer();
 	}
@@ -74,16 +100,107 @@ public class PositionRecorder {
 	 * data as well. Useful for benchmarking. 
 	 */
 	public void recordTimes() {
-		times = new ArrayList<Integer>();
+		recordTimes = true;
+		if (journal == null) {
+			times = new AppendLog<Integer>();
+		}
+	}
+	
+	/**
+	 * Starts writing recorded data to a journal in the given file
+	 * rather than keeping it in memory, so that long recordings
+	 * use no more memory than short ones and survive a crash.
+	 * Call this before adding any data; an existing journal file is
+	 * replaced.
+	 * @param file
+	 * @param analyzer The analyzer producing the data
+	 * @throws IOException
+	 */
+	public void startJournal(File file, AudioAnalyzer analyzer) throws IOException {
+		closeJournal();
+		journal = new RecordingJournal(file, settings(analyzer));
+		ref.clear();
+		times = null;
+	}
+	
+	/**
+	 * Continues recording in a journal left behind by an earlier
+	 * recorder, for instance after a crash. Everything recorded in
+	 * the journal is restored.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void recoverJournal(File file) throws IOException {
+		closeJournal();
+		journal = RecordingJournal.recover(file);
+		ref.clear();
+		times = null;
+		positions.clear();
+		positions.putAll(journal.getRecoveredPositions());
 	}
 	
+	/**
+	 * Stops journaling, keeping the journal file. Data recorded
+	 * after this is kept in memory again.
+	 * @throws IOException If writing the journal failed
+	 */
+	public void closeJournal() throws IOException {
+		if (journal != null) {
+			RecordingJournal j = journal;
+			journal = null;
+			j.close();
+		}
+	}
+	
+	/**
+	 * Stops journaling and deletes the journal file, for
+	 * when the recording is no longer needed.
+	 */
+	public void deleteJournal() {
+		if (journal != null) {
+			journal.delete();
+			journal = null;
+		}
+	}
+	
+	/**
+	 * Takes the positions of an existing score for editing. As long
+	 * as no new data is recorded, write() saves only the pages and
+	 * positions when writing to the same file.
+	 * @param filename
+	 * @param score The loaded score
+	 */
+	public void editScore(String filename, ScoreReader score) {
+		reset();
+		editing = filename;
+		editingFrames = score.getReference().size();
+		positions.putAll(score.getPager().getPositions());
+	}
+	
+	/**
+	 * Discards all recorded data. Must not be called while
+	 * data is being added.
+	 */
 	public void reset() {
+		editing = null;
 		ref.clear();
 		positions.clear();
 		status.reset();
 		playing = false;
 		times = null;
+		recordTimes = false;
 		receivedFrames = 0;
+		if (journal != null) {
+			journal.reset();
+		}
+	}
+	
+	/**
+	 * Returns the number of recorded frames
+	 * @return
+	 */
+	public int size() {
+		return journal != null ? journal.frameCount() : ref.size();
 	}
 	
 	/**
@@ -102,75 +219,146 @@ public class PositionRecorder {
 		
 		playing = true;
 		
+		if (journal != null) {
+			journal.addFrame(v, receivedFrames);
+			return;
+		}
+		
 		if (times != null) {
 			times.add(receivedFrames);
 		}
 		
-		// Vector is synchronized by itself, so this shouldn't be a problem
 		ref.add(v);
 	}
 	
 	/**
 	 * Adds a new position at the current time (after
-	 * the last inserted FrameVector).
+	 * the last inserted FrameVector). Safe to call while
+	 * the audio thread is adding data.
 	 * @param x
 	 * @param y
 	 */
 	public int addPosition(Position p) {
 		// Store position at the last recorded vector index
-		int pos = ref.size() > 0 ? ref.size() - 1 : 0;
+		int size = size();
+		int pos = size > 0 ? size - 1 : 0;
 		Log.d(TAG, "Adding new position at position index "+pos);
 		positions.put(pos, p);
+		if (journal != null) {
+			journal.addPosition(pos, p);
+		}
 		return pos;
 	}
 	
 	/**
-	 * Writes this reference data to the specified file.
+	 * Removes the position at the given reference index
+	 * @param index
+	 */
+	public void removePosition(int index) {
+		if (positions.remove(index) != null && journal != null) {
+			journal.removePosition(index);
+		}
+	}
+	
+	/**
+	 * Writes this reference data to the specified file. Filenames
+	 * ending in ".sftb" are written in the binary format. When
+	 * journaling, the journal is compacted into the score file
+	 * without loading it into memory.
+	 * 
+	 * When editing an existing score without having recorded anything,
+	 * only its pages and positions are written (see PositionFile),
+	 * unless a different filename is given.
 	 * @param filename
 	 * @param pages
-	 * @param windowSize
-	 * @param hopSize
-	 * @param framerate
+	 * @param analyzer
 	 * @throws IOException 
 	 */
 	public void write(String filename, String[] pages, AudioAnalyzer analyzer) 
 			throws IOException {
-		BufferedWriter out = new BufferedWriter(new FileWriter(filename));
-		out.write("windowSize="+analyzer.windowSize());
-		out.newLine();
-		out.write("hopSize="+analyzer.hopSize());
-		out.newLine();
-		out.write("framerate="+analyzer.getSampleRate());
-		out.newLine();
-		out.newLine();
-		
-		// Write page filenames
-		for (String page : pages) {
-			out.write("page="+page);
-			out.newLine();
-		}
-		
-		out.newLine();
-		out.newLine();
-		
-		int i = 0;
-		for (FrameVector v : ref) {
-			if (times != null) {
-				out.write(((times.get(i) - 1) * analyzer.hopSize()) +":");
+		if (editing != null && size() == 0) {
+			writeEdited(filename, pages);
+		} else if (journal != null) {
+			journal.sync();
+			List<Double> vectorTimes = null;
+			if (recordTimes) {
+				vectorTimes = toSeconds(journal.times(), analyzer.hopSize());
 			}
-			out.write(v.toString());
-			if (positions.containsKey(i)) {
-				out.write(" "+positions.get(i).toString());
+			ScoreWriter.write(filename, journal.getSettings(), Arrays.asList(pages), 
+					journal.frames(), positions, vectorTimes);
+		} else {
+			// Write the frames recorded so far, even if recording continues
+			List<FrameVector> frames = ref.snapshot();
+			List<Double> vectorTimes = null;
+			if (times != null) {
+				vectorTimes = toSeconds(times.subList(0, frames.size()), analyzer.hopSize());
 			}
-			out.newLine();
-			i++;
+			
+			ScoreWriter.write(filename, settings(analyzer), Arrays.asList(pages), frames, positions, vectorTimes);
 		}
 		
-		out.close();
-		
 		Log.d(TAG, "Successfully wrote position data to file @ "+filename);
 	}
 	
+	/**
+	 * Writes the positions of the edited score
+	 * @param filename
+	 * @param pages
+	 * @throws IOException
+	 */
+	private void writeEdited(String filename, String[] pages) throws IOException {
+		if (new File(filename).getCanonicalPath().equals(new File(editing).getCanonicalPath())) {
+			ScoreWriter.writePositions(filename, editingFrames, Arrays.asList(pages), positions);
+		} else if (ScoreBundle.isBundle(editing)) {
+			// The pages are bundle entries, which other scores can't refer to
+			throw new IOException("A bundled score can only be saved to its own bundle");
+		} else {
+			// Saving as a new score, copy the reference data
+			ScoreReader score = new ScoreReader(editing, true);
+			try {
+				List<Double> scoreTimes = score.getTimes();
+				ScoreWriter.write(filename, score.getSettings().getAll(), Arrays.asList(pages),
+						score.getReference(), positions, scoreTimes.isEmpty() || scoreTimes.get(0) < 0 ? null : scoreTimes);
+			} finally {
+				score.close();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the score settings for data from the given analyzer,
+	 * which hold the full analysis configuration.
+	 * @param analyzer
+	 * @return
+	 */
+	private static Map<String, String> settings(AudioAnalyzer analyzer) {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		new AnalysisConfig(analyzer.getSampleRate(), analyzer.windowSize(), analyzer.hopSize())
+			.write(settings);
+		return settings;
+	}
+	
+	/**
+	 * Converts a list of received frame counts to times in seconds,
+	 * without copying it.
+	 * @param times
+	 * @param hopSize
+	 * @return
+	 */
+	private static List<Double> toSeconds(final List<Integer> times, final double hopSize) {
+		return new AbstractList<Double>() {
+			@Override
+			public Double get(int index) {
+				return (times.get(index) - 1) * hopSize;
+			}
+			
+			@Override
+			public int size() {
+				return times.size();
+			}
+		};
+	}
+	
 	/**
 	 * Returns the playback analyzer used by this matcher
 	 * @return
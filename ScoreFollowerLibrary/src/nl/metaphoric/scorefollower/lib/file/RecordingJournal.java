@@ -0,0 +1,677 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import nl.metaphoric.scorefollower.lib.ChunkQueue;
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.Position;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+
+/**
+ * An append-only journal of a recording in progress, written by a
+ * background thread. Frames are handed to it through a lock-free
+ * ChunkQueue, which it drains every WRITE_INTERVAL milliseconds, so
+ * adding a frame never blocks the recording thread. Position events
+ * and requests such as sync() go through a separate queue. Recorded
+ * data is only kept in memory until the writer gets to it.
+ *
+ * If the application dies during a recording, everything up to the
+ * last complete record can be recovered from the journal with
+ * recover(). The journal is turned into a score file by passing
+ * frames() and times() to a ScoreWriter.
+ *
+ * Layout (big endian):
+ * <pre>
+ * int   magic ("SFTJ")
+ * int   version
+ * int   number of settings, followed by key / value pairs (writeUTF)
+ * Records, starting with a type byte:
+ *   RECORD_FRAME:    int time, 12 chroma doubles, double rms
+ *   RECORD_POSITION: int index, int page, double x, double y
+ *   RECORD_REMOVE:   int index
+ * </pre>
+ *
+ * @author Elte Hupkes
+ */
+public class RecordingJournal {
+	/**
+	 * Log tag
+	 */
+	private static final String TAG = "SF_RecordingJournal";
+
+	/**
+	 * The journal magic, "SFTJ"
+	 */
+	public static final int MAGIC = 0x5346544A;
+
+	/**
+	 * The current journal version
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Record types and their sizes in bytes, including the type
+	 */
+	private static final byte RECORD_FRAME = 1, RECORD_POSITION = 2, RECORD_REMOVE = 3;
+	private static final int FRAME_SIZE = 1 + 4 + 13 * 8, POSITION_SIZE = 1 + 4 + 4 + 8 + 8,
+			REMOVE_SIZE = 1 + 4;
+
+	/**
+	 * The time in milliseconds between checks for new frames
+	 */
+	private static final long WRITE_INTERVAL = 50;
+
+	/**
+	 * Entries handed to the writer thread
+	 */
+	private static final int ENTRY_FRAME = 0, ENTRY_POSITION = 1, ENTRY_REMOVE = 2,
+			ENTRY_SYNC = 3, ENTRY_RESET = 4, ENTRY_STOP = 5;
+
+	private static class Entry {
+		int type, index;
+		long mark;
+		FrameVector vector;
+		Position position;
+		CountDownLatch done;
+
+		Entry(int type) {
+			this.type = type;
+		}
+	}
+
+	/**
+	 * The journal file
+	 */
+	private File file;
+
+	/**
+	 * The settings stored in the journal header
+	 */
+	private Map<String, String> settings;
+
+	/**
+	 * The size of the header in bytes
+	 */
+	private long headerSize;
+
+	/**
+	 * Frames waiting to be written, and other entries waiting to be
+	 * handled. Every other entry is handled after the frames added
+	 * before it.
+	 */
+	private ChunkQueue<Entry> frameQueue = new ChunkQueue<Entry>();
+	private BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+
+	/**
+	 * The writer thread and its output
+	 */
+	private Thread writer;
+	private FileOutputStream fileOut;
+	private DataOutputStream out;
+
+	/**
+	 * The first error of the writer thread, reported by sync()
+	 */
+	private volatile IOException error = null;
+
+	/**
+	 * Number of frames added, published for threads reading it
+	 * while frames are added.
+	 */
+	private volatile int frames = 0;
+
+	/**
+	 * The number of frames written as of the last sync()
+	 */
+	private int synced = 0;
+
+	/**
+	 * Positions recorded in the journal, used when recovering
+	 */
+	private Map<Integer, Position> positions = new TreeMap<Integer, Position>();
+
+	/**
+	 * Creates a new journal, replacing any existing file.
+	 * @param file
+	 * @param settings Settings to store in the journal, such as the
+	 * 				window and hop size needed to write the score.
+	 * @throws IOException
+	 */
+	public RecordingJournal(File file, Map<String, String> settings) throws IOException {
+		this.file = file;
+		this.settings = new LinkedHashMap<String, String>(settings);
+
+		fileOut = new FileOutputStream(file);
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(settings.size());
+		for (Map.Entry<String, String> e : settings.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue());
+		}
+		out.flush();
+		headerSize = out.size();
+
+		startWriter();
+	}
+
+	/**
+	 * Opens an existing journal, for instance one left behind by a
+	 * crash, and continues it. A partially written last record is
+	 * discarded.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static RecordingJournal recover(File file) throws IOException {
+		RecordingJournal journal = new RecordingJournal(file);
+
+		// Scan the records, cut off at the last complete one
+		DataInputStream in = journal.openReader();
+		long size = journal.headerSize;
+		try {
+			while (true) {
+				byte type = in.readByte();
+				if (type == RECORD_FRAME) {
+					in.readFully(new byte[FRAME_SIZE - 1]);
+					size += FRAME_SIZE;
+					journal.frames++;
+				} else if (type == RECORD_POSITION) {
+					int index = in.readInt(), page = in.readInt();
+					journal.positions.put(index, new Position(page, in.readDouble(), in.readDouble()));
+					size += POSITION_SIZE;
+				} else if (type == RECORD_REMOVE) {
+					journal.positions.remove(in.readInt());
+					size += REMOVE_SIZE;
+				} else {
+					Log.w(TAG, "Unknown journal record "+type+", ignoring the rest of the journal.");
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			// End of the journal, or of the last complete record
+		} finally {
+			in.close();
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+		} finally {
+			raf.close();
+		}
+
+		Log.d(TAG, "Recovered "+journal.frames+" frames and "+journal.positions.size()+" positions.");
+		journal.synced = journal.frames;
+		journal.fileOut = new FileOutputStream(file, true);
+		journal.out = new DataOutputStream(new BufferedOutputStream(journal.fileOut));
+		journal.startWriter();
+		return journal;
+	}
+
+	/**
+	 * Reads the header of an existing journal
+	 * @param file
+	 * @throws IOException
+	 */
+	private RecordingJournal(File file) throws IOException {
+		this.file = file;
+		this.settings = new LinkedHashMap<String, String>();
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a recording journal: "+file);
+			}
+			int version = in.readInt();
+			if (version > VERSION) {
+				throw new IOException("Unsupported journal version "+version);
+			}
+			int n = in.readInt();
+			headerSize = 12;
+			for (int i = 0; i < n; i++) {
+				String key = in.readUTF(), value = in.readUTF();
+				settings.put(key, value);
+				headerSize += utfLength(key) + utfLength(value);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes writeUTF() writes for the given
+	 * string: a two byte length, then the string in modified UTF-8,
+	 * which encodes NUL in two bytes and supplementary characters
+	 * as two three byte surrogates.
+	 * @param s
+	 * @return
+	 */
+	private static int utfLength(String s) {
+		int length = 2;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+		}
+		return length;
+	}
+
+	/**
+	 * Starts the writer thread
+	 */
+	private void startWriter() {
+		writer = new Thread(new Runnable() {
+			public void run() {
+				runWriter();
+			}
+		}, TAG);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Writes frames and handles entries until stopped
+	 */
+	private void runWriter() {
+		try {
+			while (true) {
+				Entry e = queue.poll(WRITE_INTERVAL, TimeUnit.MILLISECONDS);
+				if (e == null) {
+					// Nothing else to do, hand new frames to the OS
+					if (writeFrames(Long.MAX_VALUE, false)) {
+						flush();
+					}
+					continue;
+				}
+
+				// A reset drops the frames added before it
+				writeFrames(e.mark, e.type == ENTRY_RESET);
+				if (!write(e)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Journal writer interrupted.");
+		}
+	}
+
+	/**
+	 * Writes or discards the queued frames, up to the given
+	 * number of frames added.
+	 * @param mark
+	 * @param discard
+	 * @return Whether any frames were taken
+	 */
+	private boolean writeFrames(long mark, boolean discard) {
+		boolean any = false;
+		Entry f;
+		while (frameQueue.taken() < mark && (f = frameQueue.poll()) != null) {
+			any = true;
+			if (!discard) {
+				write(f);
+			}
+		}
+		return any;
+	}
+
+	/**
+	 * Handles a single entry on the writer thread
+	 * @param e
+	 * @return False if the writer should stop
+	 */
+	private boolean write(Entry e) {
+		try {
+			if (error != null && e.type != ENTRY_SYNC && e.type != ENTRY_STOP) {
+				// Don't write anything after a failure, it would corrupt the journal.
+				return true;
+			}
+
+			switch (e.type) {
+			case ENTRY_FRAME:
+				out.writeByte(RECORD_FRAME);
+				out.writeInt(e.index);
+				double[] chroma = e.vector.getChroma();
+				for (int i = 0; i < 12; i++) {
+					out.writeDouble(chroma[i]);
+				}
+				out.writeDouble(e.vector.rms);
+				break;
+			case ENTRY_POSITION:
+				out.writeByte(RECORD_POSITION);
+				out.writeInt(e.index);
+				out.writeInt(e.position.page());
+				out.writeDouble(e.position.xFrac());
+				out.writeDouble(e.position.yFrac());
+				break;
+			case ENTRY_REMOVE:
+				out.writeByte(RECORD_REMOVE);
+				out.writeInt(e.index);
+				break;
+			case ENTRY_RESET:
+				out.flush();
+				fileOut.getChannel().truncate(headerSize);
+				fileOut.getChannel().position(headerSize);
+				break;
+			case ENTRY_SYNC:
+				flush();
+				e.done.countDown();
+				break;
+			case ENTRY_STOP:
+				flush();
+				out.close();
+				e.done.countDown();
+				return false;
+			}
+		} catch (IOException ex) {
+			fail(ex);
+			if (e.done != null) {
+				e.done.countDown();
+			}
+			return e.type != ENTRY_STOP;
+		}
+		return true;
+	}
+
+	/**
+	 * Flushes written records to the file
+	 */
+	private void flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Stores the first writer error
+	 */
+	private void fail(IOException e) {
+		if (error == null) {
+			Log.e(TAG, "Writing the recording journal failed: "+e.getMessage());
+			error = e;
+		}
+	}
+
+	/**
+	 * Hands an entry to the writer, to be handled after
+	 * the frames added so far.
+	 * @param e
+	 */
+	private void enqueue(Entry e) {
+		e.mark = frameQueue.added();
+		queue.add(e);
+	}
+
+	/**
+	 * Appends a frame. Must always be called from the same thread.
+	 * @param v
+	 * @param time The time of the frame, in received frames
+	 */
+	public void addFrame(FrameVector v, int time) {
+		Entry e = new Entry(ENTRY_FRAME);
+		e.vector = v;
+		e.index = time;
+		frameQueue.add(e);
+		frames++;
+	}
+
+	/**
+	 * Records a position at the given frame index
+	 * @param index
+	 * @param p
+	 */
+	public void addPosition(int index, Position p) {
+		Entry e = new Entry(ENTRY_POSITION);
+		e.index = index;
+		e.position = p;
+		enqueue(e);
+	}
+
+	/**
+	 * Records the removal of the position at the given frame index
+	 * @param index
+	 */
+	public void removePosition(int index) {
+		Entry e = new Entry(ENTRY_REMOVE);
+		e.index = index;
+		enqueue(e);
+	}
+
+	/**
+	 * Discards everything recorded so far
+	 */
+	public void reset() {
+		enqueue(new Entry(ENTRY_RESET));
+		frames = 0;
+		positions.clear();
+	}
+
+	/**
+	 * Waits until everything added so far is written to the
+	 * journal file.
+	 * @throws IOException If writing failed
+	 */
+	public void sync() throws IOException {
+		int n = frames;
+		await(ENTRY_SYNC);
+		synced = n;
+	}
+
+	/**
+	 * Writes everything that's left and stops the writer. The
+	 * journal file is kept.
+	 * @throws IOException If writing failed
+	 */
+	public void close() throws IOException {
+		if (writer.isAlive()) {
+			await(ENTRY_STOP);
+		}
+	}
+
+	/**
+	 * Closes the journal and deletes its file
+	 */
+	public void delete() {
+		try {
+			close();
+		} catch (IOException e) {
+			// The file is deleted anyway
+		}
+		if (!file.delete()) {
+			Log.w(TAG, "Could not delete journal "+file);
+		}
+	}
+
+	/**
+	 * Adds an entry and waits until the writer has handled it
+	 */
+	private void await(int type) throws IOException {
+		Entry e = new Entry(type);
+		e.done = new CountDownLatch(1);
+		enqueue(e);
+		try {
+			e.done.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the journal");
+		}
+		if (error != null) {
+			throw new IOException("Writing the recording journal failed: "+error.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the settings stored in the journal header
+	 * @return
+	 */
+	public Map<String, String> getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Returns the positions found when recovering the journal
+	 * @return
+	 */
+	public Map<Integer, Position> getRecoveredPositions() {
+		return positions;
+	}
+
+	/**
+	 * Returns the number of frames added
+	 * @return
+	 */
+	public int frameCount() {
+		return frames;
+	}
+
+	/**
+	 * Returns the frames written up to the last sync(), read from the
+	 * journal file. Meant to be iterated in order, once at a time:
+	 * random access reads the file from the start.
+	 * @return
+	 */
+	public List<FrameVector> frames() {
+		return new JournalList<FrameVector>() {
+			@Override
+			FrameVector read(double[] parts, int time) {
+				return FrameVectorFactory.getVector(parts);
+			}
+		};
+	}
+
+	/**
+	 * Returns the time of each frame up to the last sync(), as
+	 * stored by addFrame(). Accessed the same way as frames().
+	 * @return
+	 */
+	public List<Integer> times() {
+		return new JournalList<Integer>() {
+			@Override
+			Integer read(double[] parts, int time) {
+				return time;
+			}
+		};
+	}
+
+	/**
+	 * Opens the journal file positioned after the header
+	 */
+	private DataInputStream openReader() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long skip = headerSize;
+		while (skip > 0) {
+			long n = in.skip(skip);
+			if (n <= 0) {
+				in.close();
+				throw new EOFException("Truncated journal header");
+			}
+			skip -= n;
+		}
+		return in;
+	}
+
+	/**
+	 * A read-only list of frame data in the journal file. Reading the
+	 * elements in order streams through the file once, also when each
+	 * element is read more than once in a row.
+	 */
+	private abstract class JournalList<T> extends AbstractList<T> {
+		private int size = synced, next = 0;
+		private DataInputStream in = null;
+
+		/**
+		 * The last element read and its index, so that reading the
+		 * same element again doesn't restart from the beginning.
+		 */
+		private int lastIndex = -1;
+		private T last = null;
+
+		/**
+		 * Creates an element from a frame record
+		 */
+		abstract T read(double[] parts, int time);
+
+		@Override
+		public T get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+			}
+			if (index == lastIndex) {
+				return last;
+			}
+
+			try {
+				if (in == null || index < next) {
+					close();
+					in = openReader();
+					next = 0;
+				}
+
+				while (true) {
+					byte type = in.readByte();
+					if (type == RECORD_POSITION || type == RECORD_REMOVE) {
+						in.readFully(new byte[(type == RECORD_POSITION ? POSITION_SIZE : REMOVE_SIZE) - 1]);
+						continue;
+					}
+
+					int time = in.readInt();
+					if (next++ < index) {
+						in.readFully(new byte[13 * 8]);
+						continue;
+					}
+
+					double[] parts = new double[13];
+					for (int i = 0; i < parts.length; i++) {
+						parts[i] = in.readDouble();
+					}
+					if (next == size) {
+						close();
+					}
+					last = read(parts, time);
+					lastIndex = index;
+					return last;
+				}
+			} catch (IOException e) {
+				close();
+				throw new IllegalStateException("Could not read recording journal: "+e.getMessage());
+			}
+		}
+
+		private void close() {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Only reading
+				}
+				in = null;
+			}
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,647 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import nl.metaphoric.scorefollower.lib.Log;
+
+/**
+ * A score with everything it needs in a single file (".sfz"): the
+ * reference in the binary format, the page images, page thumbnails
+ * and any other data such as search indexes.
+ *
+ * A bundle is a regular zip file in which all entries are stored
+ * without compression, so every entry is a contiguous range of the
+ * file that can be read in place. The first entry, CONTENTS, lists
+ * the data offset and size of every entry as plain text lines:
+ * <pre>
+ *   name offset size
+ * </pre>
+ * Opening a bundle reads only this list, without the zip central
+ * directory at the end of the file. The reference can then be
+ * memory mapped or paged like a stand-alone binary score, and page
+ * images are read through openEntry() when they're needed.
+ *
+ * The score entry holds the settings, the positions and the page
+ * table, in which pages refer to the PAGE_PREFIX entries of the
+ * bundle. The thumbnail of a page has the same name under
+ * THUMB_PREFIX. As with other scores, marker edits are saved in
+ * a PositionFile next to the bundle.
+ *
+ * @author Elte Hupkes
+ */
+public class ScoreBundle {
+	/**
+	 * Log tag
+	 */
+	private static final String TAG = "SF_ScoreBundle";
+
+	/**
+	 * The bundle filename extension
+	 */
+	public static final String EXTENSION = ".sfz";
+
+	/**
+	 * Entry names
+	 */
+	public static final String CONTENTS = "contents",
+							   SCORE = "score" + ScoreWriter.BINARY_EXTENSION,
+							   PAGE_PREFIX = "pages/",
+							   THUMB_PREFIX = "thumbs/";
+
+	/**
+	 * Zip record signatures
+	 */
+	private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50,
+			END_OF_DIRECTORY = 0x06054b50;
+
+	/**
+	 * Fixed sizes of zip records, without names
+	 */
+	private static final int LOCAL_HEADER_SIZE = 30, CENTRAL_HEADER_SIZE = 46,
+			END_OF_DIRECTORY_SIZE = 22;
+
+	/**
+	 * Digits used for offsets and sizes in the contents, so
+	 * its size is known before the offsets are.
+	 */
+	private static final int DIGITS = 12;
+
+	/**
+	 * Zip general purpose flag for UTF-8 names
+	 */
+	private static final int FLAG_UTF8 = 0x0800;
+
+	/**
+	 * The bundle file
+	 */
+	private String filename;
+
+	/**
+	 * Data offset and size of every entry, in file order
+	 */
+	private Map<String, long[]> entries = new LinkedHashMap<String, long[]>();
+
+	/**
+	 * Opens a bundle, reading only its contents entry.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public ScoreBundle(String filename) throws IOException {
+		this.filename = filename;
+
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			long[] contents = readFirstEntry(file);
+			if (contents == null) {
+				throw new IOException("Not a score bundle: "+filename);
+			}
+
+			byte[] bytes = new byte[(int)contents[1]];
+			file.seek(contents[0]);
+			file.readFully(bytes);
+			long length = file.length();
+			for (String line : new String(bytes, "UTF-8").split("\n")) {
+				int b = line.lastIndexOf(' '), a = line.lastIndexOf(' ', b - 1);
+				if (a <= 0) {
+					continue;
+				}
+				long offset = Long.parseLong(line.substring(a + 1, b)),
+					 size = Long.parseLong(line.substring(b + 1));
+				if (offset < 0 || size < 0 || offset + size > length) {
+					throw new IOException("Truncated score bundle: "+filename);
+				}
+				entries.put(line.substring(0, a), new long[] {offset, size});
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupt score bundle contents: "+filename);
+		} finally {
+			file.close();
+		}
+
+		if (!entries.containsKey(SCORE)) {
+			throw new IOException("Score bundle without a score: "+filename);
+		}
+	}
+
+	/**
+	 * Checks whether the given file is a score bundle
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBundle(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			return readFirstEntry(file) != null;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the local header of the first zip entry
+	 * @param file
+	 * @return The data offset and size of the contents entry, or
+	 * 			null if the first entry isn't a stored contents entry.
+	 * @throws IOException
+	 */
+	private static long[] readFirstEntry(RandomAccessFile file) throws IOException {
+		int nameLength = CONTENTS.length();
+		if (file.length() < LOCAL_HEADER_SIZE + nameLength) {
+			return null;
+		}
+
+		byte[] header = new byte[LOCAL_HEADER_SIZE + nameLength];
+		file.seek(0);
+		file.readFully(header);
+		if (int32(header, 0) != LOCAL_HEADER || int16(header, 8) != 0
+				|| int16(header, 26) != nameLength
+				|| !new String(header, LOCAL_HEADER_SIZE, nameLength, "UTF-8").equals(CONTENTS)) {
+			return null;
+		}
+		return new long[] {LOCAL_HEADER_SIZE + nameLength + int16(header, 28),
+				int32(header, 22) & 0xFFFFFFFFL};
+	}
+
+	/**
+	 * @return The little endian 16 bit value at the given offset
+	 */
+	private static int int16(byte[] b, int offset) {
+		return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * @return The little endian 32 bit value at the given offset
+	 */
+	private static int int32(byte[] b, int offset) {
+		return int16(b, offset) | int16(b, offset + 2) << 16;
+	}
+
+	/**
+	 * Returns the bundle filename
+	 * @return
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Returns the names of all entries, in file order
+	 * @return
+	 */
+	public List<String> getEntries() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * @param name
+	 * @return Whether the bundle has the given entry
+	 */
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * Returns the file offset of the data of the given entry
+	 * @param name
+	 * @return
+	 * @throws IOException If there is no such entry
+	 */
+	public long offset(String name) throws IOException {
+		return entry(name)[0];
+	}
+
+	/**
+	 * Returns the size of the given entry
+	 * @param name
+	 * @return
+	 * @throws IOException If there is no such entry
+	 */
+	public long size(String name) throws IOException {
+		return entry(name)[1];
+	}
+
+	private long[] entry(String name) throws IOException {
+		long[] entry = entries.get(name);
+		if (entry == null) {
+			throw new IOException("No entry "+name+" in "+filename);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the thumbnail entry of the given page entry, or null
+	 * if the bundle has no thumbnail for it.
+	 * @param page
+	 * @return
+	 */
+	public String thumbnail(String page) {
+		if (!page.startsWith(PAGE_PREFIX)) {
+			return null;
+		}
+		String thumb = THUMB_PREFIX + page.substring(PAGE_PREFIX.length());
+		return entries.containsKey(thumb) ? thumb : null;
+	}
+
+	/**
+	 * Opens a stream over the data of the given entry. Every stream
+	 * reads the file independently, so entries can be read from
+	 * several threads at once.
+	 * @param name
+	 * @return
+	 * @throws IOException If there is no such entry
+	 */
+	public InputStream openEntry(String name) throws IOException {
+		long[] entry = entry(name);
+		return new EntryInputStream(new RandomAccessFile(filename, "r"), entry[0], entry[1]);
+	}
+
+	/**
+	 * Reads a range of the bundle file
+	 */
+	private static class EntryInputStream extends InputStream {
+		private RandomAccessFile file;
+		private long remaining;
+
+		EntryInputStream(RandomAccessFile file, long offset, long size) throws IOException {
+			this.file = file;
+			remaining = size;
+			file.seek(offset);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			remaining--;
+			return file.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = file.read(b, off, (int)Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			n = Math.max(0, Math.min(n, remaining));
+			file.seek(file.getFilePointer() + n);
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int)Math.min(remaining, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+	/**
+	 * An entry to write: either a file or data in memory
+	 */
+	private static class Entry {
+		String name;
+		byte[] nameBytes;
+		File file;
+		byte[] data;
+		ScoreBundle source;
+		String sourceEntry;
+		long size, headerOffset;
+		int crc;
+
+		Entry(String name, File file, byte[] data) throws IOException {
+			this.name = name;
+			this.file = file;
+			this.data = data;
+			nameBytes = name.getBytes("UTF-8");
+			size = data != null ? data.length : file.length();
+		}
+
+		Entry(String name, ScoreBundle source, String sourceEntry) throws IOException {
+			this(name, null, new byte[0]);
+			data = null;
+			this.source = source;
+			this.sourceEntry = sourceEntry;
+			size = source.size(sourceEntry);
+		}
+
+		long dataOffset() {
+			return headerOffset + LOCAL_HEADER_SIZE + nameBytes.length;
+		}
+	}
+
+	/**
+	 * Writes a bundle of the given score and its page images.
+	 * @param bundleFile The bundle to write
+	 * @param scoreFile The score, in any format. Its pages are
+	 * 				stored in the bundle. This can be another bundle,
+	 * 				whose pages and thumbnails are copied.
+	 * @param thumbnails Encoded thumbnail images by page index,
+	 * 				can be null or contain nulls for pages without one.
+	 * @param extra Other entries to store, by name, can be null.
+	 * @throws IOException
+	 */
+	public static void write(String bundleFile, String scoreFile, List<byte[]> thumbnails,
+			Map<String, byte[]> extra) throws IOException {
+		ScoreReader reader = new ScoreReader(scoreFile, true);
+		try {
+			write(bundleFile, reader, thumbnails, extra);
+		} finally {
+			reader.close();
+		}
+		PositionFile.delete(bundleFile);
+	}
+
+	/**
+	 * Writes a bundle of the score read by the given reader
+	 * @see write(String, String, List, Map)
+	 */
+	private static void write(String bundleFile, ScoreReader reader, List<byte[]> thumbnails,
+			Map<String, byte[]> extra) throws IOException {
+		ScoreBundle source = reader.getBundle();
+		List<Entry> list = new ArrayList<Entry>();
+		List<String> pages = new ArrayList<String>();
+		int i = 0;
+		for (String page : reader.getPages()) {
+			String name = PAGE_PREFIX + i + extension(page),
+				   thumb = THUMB_PREFIX + name.substring(PAGE_PREFIX.length());
+			if (source != null && source.contains(page)) {
+				list.add(new Entry(name, source, page));
+			} else {
+				list.add(new Entry(name, new File(page), null));
+			}
+			if (thumbnails != null && i < thumbnails.size() && thumbnails.get(i) != null) {
+				list.add(new Entry(thumb, null, thumbnails.get(i)));
+			} else if (source != null && source.thumbnail(page) != null) {
+				list.add(new Entry(thumb, source, source.thumbnail(page)));
+			}
+			pages.add(name);
+			i++;
+		}
+		if (extra != null) {
+			for (Map.Entry<String, byte[]> e : extra.entrySet()) {
+				list.add(new Entry(e.getKey(), null, e.getValue()));
+			}
+		}
+
+		// Leave out times if the input has none
+		List<Double> times = reader.getTimes();
+		boolean hasTimes = false;
+		for (double t : times) {
+			hasTimes |= t >= 0;
+		}
+
+		// The reference comes right after the contents, so opening
+		// a bundle only reads its start.
+		File bundle = new File(bundleFile),
+			 score = File.createTempFile("bundle", ScoreWriter.BINARY_EXTENSION,
+					 bundle.getAbsoluteFile().getParentFile());
+		try {
+			BinaryScore.write(score.getPath(), reader.getSettings().getAll(), pages,
+					reader.getReference(), reader.positions, hasTimes ? times : null);
+			list.add(0, new Entry(SCORE, score, null));
+			writeZip(bundle, list);
+		} finally {
+			score.delete();
+		}
+		Log.d(TAG, "Wrote bundle "+bundleFile+" with "+list.size()+" entries");
+	}
+
+	/**
+	 * @return The extension of the given filename, including the dot
+	 */
+	private static String extension(String filename) {
+		String name = new File(filename).getName();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot).toLowerCase();
+	}
+
+	/**
+	 * Writes the contents entry followed by the given entries as
+	 * a zip file without compression. The zip is written to a
+	 * temporary file first and then renamed over the target, so
+	 * the target can also be the source of entries.
+	 * @param target
+	 * @param list
+	 * @throws IOException
+	 */
+	private static void writeZip(File target, List<Entry> list) throws IOException {
+		// Lay out the entries; the contents has a fixed size per line
+		long contentsSize = 0;
+		for (Entry e : list) {
+			contentsSize += e.nameBytes.length + 2 * DIGITS + 3;
+		}
+		Entry contents = new Entry(CONTENTS, null, new byte[(int)contentsSize]);
+		list.add(0, contents);
+		long offset = 0;
+		for (Entry e : list) {
+			e.headerOffset = offset;
+			offset = e.dataOffset() + e.size;
+		}
+		if (offset > 0xFFFFFFFFL) {
+			throw new IOException("Score bundles are limited to 4GB");
+		}
+
+		StringBuilder lines = new StringBuilder();
+		for (Entry e : list.subList(1, list.size())) {
+			lines.append(e.name).append(' ').append(pad(e.dataOffset()))
+				 .append(' ').append(pad(e.size)).append('\n');
+		}
+		contents.data = lines.toString().getBytes("UTF-8");
+		for (Entry e : list) {
+			e.crc = crc(e);
+		}
+
+		File temp = new File(target.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		CountingStream out = new CountingStream(new BufferedOutputStream(fos));
+		boolean written = false;
+		try {
+			for (Entry e : list) {
+				writeInt(out, LOCAL_HEADER);
+				writeShort(out, 10);
+				writeEntryFields(out, e);
+				writeShort(out, 0);
+				out.write(e.nameBytes);
+				copy(e, out);
+			}
+
+			long directoryOffset = offset;
+			for (Entry e : list) {
+				writeInt(out, CENTRAL_HEADER);
+				writeShort(out, 20);
+				writeShort(out, 10);
+				writeEntryFields(out, e);
+				writeShort(out, 0);
+				writeShort(out, 0);
+				writeShort(out, 0);
+				writeShort(out, 0);
+				writeInt(out, 0);
+				writeInt(out, (int)e.headerOffset);
+				out.write(e.nameBytes);
+				offset += CENTRAL_HEADER_SIZE + e.nameBytes.length;
+			}
+
+			writeInt(out, END_OF_DIRECTORY);
+			writeShort(out, 0);
+			writeShort(out, 0);
+			writeShort(out, list.size());
+			writeShort(out, list.size());
+			writeInt(out, (int)(offset - directoryOffset));
+			writeInt(out, (int)directoryOffset);
+			writeShort(out, 0);
+			out.flush();
+			if (out.count != offset + END_OF_DIRECTORY_SIZE) {
+				throw new IOException("Score bundle layout error");
+			}
+			fos.getFD().sync();
+			written = true;
+		} finally {
+			out.close();
+			if (!written) {
+				temp.delete();
+			}
+		}
+
+		if (!temp.renameTo(target)) {
+			// Some platforms don't rename over an existing file
+			target.delete();
+			if (!temp.renameTo(target)) {
+				throw new IOException("Could not replace "+target);
+			}
+		}
+	}
+
+	/**
+	 * An output stream that counts the bytes written,
+	 * beyond the int range of DataOutputStream.size().
+	 */
+	private static class CountingStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Writes the fields shared by local and central headers, from
+	 * the flags up to the name length.
+	 */
+	private static void writeEntryFields(OutputStream out, Entry e) throws IOException {
+		writeShort(out, FLAG_UTF8);
+		writeShort(out, 0);
+		// DOS time and date, 1980-01-01 00:00
+		writeShort(out, 0);
+		writeShort(out, 0x21);
+		writeInt(out, e.crc);
+		writeInt(out, (int)e.size);
+		writeInt(out, (int)e.size);
+		writeShort(out, e.nameBytes.length);
+	}
+
+	/**
+	 * @return The value, zero padded to DIGITS digits
+	 */
+	private static String pad(long value) {
+		String s = String.valueOf(value);
+		while (s.length() < DIGITS) {
+			s = "0" + s;
+		}
+		return s;
+	}
+
+	/**
+	 * Computes the CRC32 of an entry
+	 */
+	private static int crc(Entry e) throws IOException {
+		final CRC32 crc = new CRC32();
+		copy(e, new OutputStream() {
+			@Override
+			public void write(int b) {
+				crc.update(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				crc.update(b, off, len);
+			}
+		});
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Copies the data of an entry to the given stream
+	 */
+	private static void copy(Entry e, OutputStream out) throws IOException {
+		if (e.data != null) {
+			out.write(e.data);
+			return;
+		}
+
+		InputStream in = e.source != null ? e.source.openEntry(e.sourceEntry)
+				: new FileInputStream(e.file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			long copied = 0;
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+				copied += n;
+			}
+			if (copied != e.size) {
+				throw new IOException(e.name+" changed while writing the bundle");
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeShort(OutputStream out, int v) throws IOException {
+		out.write(v & 0xFF);
+		out.write((v >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(OutputStream out, int v) throws IOException {
+		writeShort(out, v & 0xFFFF);
+		writeShort(out, v >>> 16);
+	}
+}
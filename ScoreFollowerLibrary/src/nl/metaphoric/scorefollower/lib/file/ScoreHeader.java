@@ -0,0 +1,203 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.feature.AnalysisConfig;
+
+/**
+ * The metadata of a score file: its settings and page filenames,
+ * read without loading the reference data. Use open() to load
+ * the full score once it is needed.
+ *
+ * @author Elte Hupkes
+ */
+public class ScoreHeader {
+	/**
+	 * Log tag
+	 */
+	private static final String TAG = "SF_ScoreHeader";
+
+	/**
+	 * The score file
+	 */
+	private String filename;
+
+	/**
+	 * Settings, in file order
+	 */
+	private Map<String, String> settings = new LinkedHashMap<String, String>();
+
+	/**
+	 * Page filenames
+	 */
+	private List<String> pages = new ArrayList<String>();
+
+	/**
+	 * Reads the header of the given score file, which can be in
+	 * the text or the binary format, or a ScoreBundle. Pages are
+	 * taken from the score's PositionFile if it has one.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public ScoreHeader(String filename) throws IOException {
+		this.filename = filename;
+		if (ScoreBundle.isBundle(filename)) {
+			BinaryScore.readHeader(filename, new ScoreBundle(filename).offset(ScoreBundle.SCORE),
+					settings, pages);
+		} else if (BinaryScore.isBinary(filename)) {
+			BinaryScore.readHeader(filename, settings, pages);
+		} else {
+			Reader in = new FileReader(filename);
+			try {
+				TextScore.readHeader(in, settings, pages);
+			} finally {
+				in.close();
+			}
+		}
+		PositionFile.read(filename, getFrameCount(), pages, null);
+	}
+
+	/**
+	 * Reads the headers of all score files (.sft, .sftb and .sfz)
+	 * in the given directory, sorted by filename. Files that cannot
+	 * be read are skipped.
+	 * @param directory
+	 * @return
+	 */
+	public static List<ScoreHeader> scan(File directory) {
+		List<ScoreHeader> headers = new ArrayList<ScoreHeader>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return headers;
+		}
+
+		Arrays.sort(files);
+		for (File f : files) {
+			String name = f.getName().toLowerCase();
+			if (!f.isFile() || !(name.endsWith(".sft") || name.endsWith(ScoreWriter.BINARY_EXTENSION)
+					|| name.endsWith(ScoreBundle.EXTENSION))) {
+				continue;
+			}
+
+			try {
+				headers.add(new ScoreHeader(f.getPath()));
+			} catch (IOException e) {
+				Log.w(TAG, "Could not read score header of "+f.getPath()+": "+e.getMessage());
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Loads the full score
+	 * @param saveTimes See ScoreReader
+	 * @return
+	 * @throws IOException
+	 */
+	public ScoreReader open(boolean saveTimes) throws IOException {
+		return new ScoreReader(filename, saveTimes);
+	}
+
+	/**
+	 * Loads the full score
+	 * @return
+	 * @throws IOException
+	 */
+	public ScoreReader open() throws IOException {
+		return open(false);
+	}
+
+	/**
+	 * Returns the score filename
+	 * @return
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Returns all settings, in file order
+	 * @return
+	 */
+	public Map<String, String> getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Returns page filenames
+	 * @return
+	 */
+	public List<String> getPages() {
+		return pages;
+	}
+
+	/**
+	 * Returns the analysis window size in seconds
+	 * @return
+	 */
+	public double windowSize() {
+		return Double.parseDouble(settings.get("windowSize"));
+	}
+
+	/**
+	 * Returns the analysis hop size in seconds
+	 * @return
+	 */
+	public double hopSize() {
+		return Double.parseDouble(settings.get("hopSize"));
+	}
+
+	/**
+	 * Returns the sample rate the score was recorded at
+	 * @return
+	 */
+	public float getSampleRate() {
+		return Float.parseFloat(settings.get("framerate"));
+	}
+
+	/**
+	 * Returns the analysis configuration the score was created with
+	 * @return
+	 */
+	public AnalysisConfig getAnalysisConfig() {
+		return new AnalysisConfig(settings);
+	}
+
+	/**
+	 * Returns the stored analysis fingerprint, or null for scores
+	 * written before fingerprints were stored.
+	 * @return
+	 */
+	public String getFingerprint() {
+		return settings.get(AnalysisConfig.FINGERPRINT);
+	}
+
+	/**
+	 * Returns the number of reference vectors, or -1 if the file
+	 * doesn't specify it (text files written by older versions).
+	 * @return
+	 */
+	public int getFrameCount() {
+		String frames = settings.get(TextScore.FRAMES);
+		return frames == null ? -1 : Integer.parseInt(frames);
+	}
+
+	/**
+	 * Returns the length of the reference in seconds, or -1
+	 * if the frame count is unknown.
+	 * @return
+	 */
+	public double getDuration() {
+		int frames = getFrameCount();
+		return frames < 0 ? -1 : frames * hopSize();
+	}
+}
@@ -1,34 +1,61 @@
 package nl.metaphoric.scorefollower.lib.file;
 
-import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
 
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.Parameters;
 import nl.metaphoric.scorefollower.lib.Position;
+import nl.metaphoric.scorefollower.lib.feature.AnalysisConfig;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
 import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
-import nl.metaphoric.scorefollower.lib.matcher.PositionMatcher;
+import nl.metaphoric.scorefollower.lib.feature.QuantizedReference;
+import nl.metaphoric.scorefollower.lib.feature.ReferencePyramid;
+import nl.metaphoric.scorefollower.lib.feature.ShingleIndex;
+import nl.metaphoric.scorefollower.lib.matcher.JumpGraph;
+import nl.metaphoric.scorefollower.lib.matcher.Matcher;
+import nl.metaphoric.scorefollower.lib.matcher.MatcherFactory;
 import nl.metaphoric.scorefollower.lib.matcher.PositionPager;
 
 /**
- * Class that reads a score from file into a PositionMatcher
+ * Class that reads a score from file into a Matcher
  * and a PositionPager.
  * 
  * @author Elte Hupkes
  */
 public class ScoreReader {
+	/**
+	 * Log tag
+	 */
+	private static final String TAG = "SF_ScoreReader";
+	
 	/**
 	 * The matcher object
 	 */
-	private PositionMatcher matcher;
+	private Matcher matcher;
+	
+	/**
+	 * Coarse versions of the reference, null if not used
+	 */
+	private ReferencePyramid pyramid;
+	
+	/**
+	 * Index of the whole reference, null if not used
+	 */
+	private ShingleIndex index;
+	
+	/**
+	 * Edges between repeated passages, null if not used
+	 */
+	private JumpGraph jumps;
 	
 	/**
 	 * The pager object
@@ -50,13 +77,30 @@ public class ScoreReader {
 	 */
 	private FileSettings settings;
 	
+	/**
+	 * The analysis configuration from the settings
+	 */
+	private AnalysisConfig config;
+	
+	/**
+	 * The bundle the score was read from, if any
+	 */
+	private ScoreBundle bundle = null;
+	
+	/**
+	 * The reference data and recorded positions, filled
+	 * by the format specific readers.
+	 */
+	List<FrameVector> reference;
+	TreeMap<Integer, Position> positions;
+	
 	/**
 	 * Simple class to store / retrieve settings from the
 	 * loaded file.
 	 * @author Elte Hupkes
 	 */
 	public class FileSettings {
-		private Map<String, String> settings = new HashMap<String, String>();
+		private Map<String, String> settings = new LinkedHashMap<String, String>();
 		
 		public void put(String key, String value) {
 			settings.put(key, value);
@@ -69,6 +113,14 @@ public class ScoreReader {
 		public double getDouble(String key) {
 			return Double.parseDouble(settings.get(key));
 		}
+		
+		/**
+		 * Returns all settings, in the order they were read.
+		 * @return
+		 */
+		public Map<String, String> getAll() {
+			return settings;
+		}
 	}
 	
 	/**
@@ -80,72 +132,124 @@ public class ScoreReader {
 	 * 					when silences were detected.
 	 */
 	public ScoreReader(Reader file, boolean saveTimes) throws IOException {
+		create(saveTimes);
+		readText(file);
+		init();
+	}
+	
+	/**
+	 * Initializes empty data structures
+	 * @param saveTimes
+	 */
+	private void create(boolean saveTimes) {
 		settings = new FileSettings();
-		Vector<FrameVector> reference = new Vector<FrameVector>();
-		TreeMap<Integer, Position> positions = new TreeMap<Integer, Position>();
+		reference = new Vector<FrameVector>();
+		positions = new TreeMap<Integer, Position>();
 		filenames = new LinkedList<String>();
 		
 		if (saveTimes) {
 			times = new ArrayList<Double>();
 		}
+	}
+	
+	/**
+	 * Reads a score in the text format.
+	 * @param file
+	 * @throws IOException
+	 */
+	private void readText(Reader file) throws IOException {
+		try {
+			TextScore.read(file, settings.getAll(), filenames, reference, positions, times);
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Creates the matcher and pager from the data read.
+	 */
+	private void init() {
+		checkConfig();
 		
-		BufferedReader reader = new BufferedReader(file);
-		String line;
-		int count = 0;
-		while ((line = reader.readLine()) != null) {
-			line = line.trim();
-			if (line.length() == 0 || line.charAt(0) == '#') {
-				continue;
-			}
-			
-			// Detect settings (> 0 because setting cannot be empty)
-			if (line.indexOf('=') > 0) {
-				String[] kv = line.split("=");
-				if (kv[0].equals("page")) {
-					filenames.add(kv[1]);
-				} else {					
-					settings.put(kv[0], kv[1]);
-				}
-			} else {
-				// Must be a FrameVector
-				
-				// If available, get timing data (used mostly for benchmarking)
-				double time;
-				if (line.indexOf(':') > 0) {
-					String[] tv = line.split(":");
-					line = tv[1].trim();
-					time = Double.parseDouble(tv[0]);
-				} else {
-					time = -1;
-				}
-				
-				String[] items = line.split("\\s+");
-				
-				// Only continue on "valid" vectors, this check isn't very strict right now.
-				if (items.length >= 13) {
-					double[] chroma = new double[items.length];
-					for (int i = 0; i < items.length; i++) {
-						chroma[i] = Double.parseDouble(items[i]);
-					}
-					reference.add(FrameVectorFactory.getVector(chroma));
-					
-					if (items.length >= 16) {
-						// Includes x/y position coordinates, add them to position reference array
-						positions.put(count, new Position((int)chroma[13], chroma[14], chroma[15]));
-					}
-					count++;
-					
-					if (times != null) {						
-						times.add(time);
-					}
-				}
+		// Quantize full precision reference data if asked to. A paged
+		// reference stays on disk, and scales its vectors as they're read.
+		boolean paged = reference instanceof PagedReference;
+		if (Parameters.referenceBits > 0 && !(reference instanceof QuantizedReference)
+				&& !paged && FrameVectorFactory.isQuantizable(Parameters.frameVectorType)) {
+			reference = new QuantizedReference(reference, Parameters.referenceBits);
+		}
+		
+		// Scale reference vectors to unit length now, instead of
+		// on the first match.
+		if (FrameVectorFactory.usesUnitChroma(Parameters.frameVectorType) && !paged) {
+			for (FrameVector v : reference) {
+				v.unitChroma();
 			}
 		}
 		
-		matcher = new PositionMatcher(reference, settings);
+		// Build the coarse reference levels, the index and the jump
+		// graph. Only the PositionMatcher uses them, and a paged
+		// reference is left alone, as these would be kept in memory.
+		boolean build = !paged && MatcherFactory.isPositionMatcher(settings);
+		if (Parameters.pyramidLevels > 0 && build) {
+			pyramid = new ReferencePyramid(reference, Parameters.pyramidLevels);
+		}
+		ShingleIndex shingles = null;
+		if ((Parameters.relocalize || Parameters.jumpGraph) && build) {
+			shingles = new ShingleIndex(reference, settings.getDouble("hopSize"));
+			index = Parameters.relocalize ? shingles : null;
+		}
+		if (Parameters.jumpGraph && shingles != null) {
+			// Jumps the search window reaches anyway aren't needed
+			jumps = new JumpGraph(shingles, settings.getDouble("hopSize"), 
+					(int)(0.5 * Parameters.searchWindow / settings.getDouble("hopSize")));
+		}
+		
+		matcher = MatcherFactory.getMatcher(reference, pyramid, index, jumps, settings);
 		pager = new PositionPager(positions, settings);
 	}
 	
+	/**
+	 * Warns if the reference was created with an analysis
+	 * configuration that doesn't match the active one. The
+	 * live analysis takes its timing from the score, so only
+	 * the other settings are compared here; callers that know
+	 * the live sample rate can use checkConfig(AnalysisConfig).
+	 * Settings missing from older files are assumed to be
+	 * compatible.
+	 */
+	private void checkConfig() {
+		config = new AnalysisConfig(settings.getAll());
+		checkConfig(new AnalysisConfig(config.sampleRate(), config.windowSize(), config.hopSize()));
+		
+		String fingerprint = settings.getString(AnalysisConfig.FINGERPRINT);
+		if (fingerprint != null && !fingerprint.equals(config.fingerprint())) {
+			Log.w(TAG, "The analysis fingerprint "+fingerprint+" doesn't match the stored settings.");
+		}
+	}
+	
+	/**
+	 * Compares the configuration the reference was created with
+	 * to the given live configuration, logging every difference.
+	 * @param active
+	 * @return The differences, empty if the reference can be used.
+	 */
+	public List<String> checkConfig(AnalysisConfig active) {
+		List<String> problems = config.compare(active);
+		for (String problem : problems) {
+			Log.w(TAG, "Reference doesn't match the active analysis: "+problem);
+		}
+		return problems;
+	}
+	
+	/**
+	 * Returns the analysis configuration the reference was created with
+	 * @return
+	 */
+	public AnalysisConfig getAnalysisConfig() {
+		return config;
+	}
+	
 	/**
 	 * Default score reader that doesn't create a times object
 	 * @param filename
@@ -157,13 +261,27 @@ public class ScoreReader {
 	
 	/**
 	 * Creates a new ScoreReader from a filename instead
-	 * of a reader.
+	 * of a reader. The file can be in the text or the binary
+	 * format, or a ScoreBundle, of which only the reference is
+	 * read. Pages and positions are taken from the score's
+	 * PositionFile if it has one.
 	 * @param filename
 	 * @param saveTimes
 	 * @throws IOException
 	 */
 	public ScoreReader(String filename, boolean saveTimes) throws IOException {
-		this(new FileReader(filename), saveTimes);
+		create(saveTimes);
+		if (ScoreBundle.isBundle(filename)) {
+			bundle = new ScoreBundle(filename);
+			BinaryScore.read(filename, bundle.offset(ScoreBundle.SCORE), 
+					bundle.size(ScoreBundle.SCORE), this);
+		} else if (BinaryScore.isBinary(filename)) {
+			BinaryScore.read(filename, this);
+		} else {
+			readText(new FileReader(filename));
+		}
+		PositionFile.read(filename, reference.size(), filenames, positions);
+		init();
 	}
 	
 	/**
@@ -175,13 +293,37 @@ public class ScoreReader {
 	}
 	
 	/**
-	 * Return the generated PositionMatcher
+	 * Return the generated Matcher
 	 * @return
 	 */
-	public PositionMatcher getMatcher() { 
+	public Matcher getMatcher() { 
 		return matcher; 
 	}
 	
+	/**
+	 * Returns the reference pyramid, null if none was built
+	 * @return
+	 */
+	public ReferencePyramid getPyramid() {
+		return pyramid;
+	}
+	
+	/**
+	 * Returns the reference index, null if none was built
+	 * @return
+	 */
+	public ShingleIndex getIndex() {
+		return index;
+	}
+	
+	/**
+	 * Returns the jump graph, null if none was built
+	 * @return
+	 */
+	public JumpGraph getJumps() {
+		return jumps;
+	}
+	
 	/**
 	 * Returns the generated position pager
 	 */
@@ -189,6 +331,33 @@ public class ScoreReader {
 		return pager;
 	}
 	
+	/**
+	 * Returns the reference data
+	 * @return
+	 */
+	public List<FrameVector> getReference() {
+		return reference;
+	}
+	
+	/**
+	 * Returns the bundle the score was read from, through which
+	 * its pages can be read, or null if it wasn't read from a bundle.
+	 * @return
+	 */
+	public ScoreBundle getBundle() {
+		return bundle;
+	}
+	
+	/**
+	 * Releases the score file if the reference is read from
+	 * it on demand. The reference can't be used afterwards.
+	 */
+	public void close() {
+		if (reference instanceof PagedReference) {
+			((PagedReference)reference).close();
+		}
+	}
+	
 	/**
 	 * Returns page filenames
 	 * @return
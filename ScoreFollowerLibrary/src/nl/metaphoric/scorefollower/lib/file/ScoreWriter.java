@@ -0,0 +1,128 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import nl.metaphoric.scorefollower.lib.Position;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+
+/**
+ * Writes score data in either the text or the binary
+ * (SFT-B) format.
+ * 
+ * @author Elte Hupkes
+ */
+public class ScoreWriter {
+	/**
+	 * Extension used for binary score files
+	 */
+	public static final String BINARY_EXTENSION = ".sftb";
+	
+	/**
+	 * Enforces static usage
+	 */
+	private ScoreWriter() {}
+	
+	/**
+	 * @param filename
+	 * @return Whether the filename asks for the binary format
+	 */
+	public static boolean isBinaryName(String filename) {
+		return filename.toLowerCase().endsWith(BINARY_EXTENSION);
+	}
+	
+	/**
+	 * Writes a score, picking the format from the file extension.
+	 * Any positions file of an older version is removed.
+	 * @see #writeText
+	 */
+	public static void write(String filename, Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times) 
+			throws IOException {
+		if (isBinaryName(filename)) {
+			BinaryScore.write(filename, settings, pages, reference, positions, times);
+			PositionFile.delete(filename);
+		} else {
+			writeText(filename, settings, pages, reference, positions, times);
+		}
+	}
+	
+	/**
+	 * Writes a score in the text format.
+	 * @param filename
+	 * @param settings Settings, written in iteration order
+	 * @param pages Page filenames
+	 * @param reference The reference data
+	 * @param positions Recorded positions by reference index
+	 * @param times The time of every reference vector, can be null.
+	 * 				Negative times are not written.
+	 * @throws IOException
+	 */
+	public static void writeText(String filename, Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times) 
+			throws IOException {
+		Writer out = new FileWriter(filename);
+		try {
+			TextScore.write(out, settings, pages, reference, positions, times);
+		} finally {
+			out.close();
+		}
+		PositionFile.delete(filename);
+	}
+	
+	/**
+	 * Saves changed pages and positions of an existing score without
+	 * rewriting its reference data.
+	 * @see PositionFile#write
+	 */
+	public static void writePositions(String filename, int frames, List<String> pages,
+			Map<Integer, Position> positions) throws IOException {
+		PositionFile.write(filename, frames, pages, positions);
+	}
+	
+	/**
+	 * Converts a score file of either format to the format
+	 * given by the output filename.
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void convert(String in, String out) throws IOException {
+		convert(in, out, 0);
+	}
+	
+	/**
+	 * Converts a score file of either format to the format
+	 * given by the output filename.
+	 * @param in
+	 * @param out
+	 * @param bits Bits per quantized chroma value (8 or 16) for binary 
+	 * 				output, 0 for full precision.
+	 * @throws IOException
+	 */
+	public static void convert(String in, String out, int bits) throws IOException {
+		ScoreReader reader = new ScoreReader(in, true);
+		
+		// Leave out times if the input has none
+		List<Double> times = reader.getTimes();
+		boolean hasTimes = false;
+		for (double t : times) {
+			hasTimes |= t >= 0;
+		}
+		if (!hasTimes) {
+			times = null;
+		}
+		
+		if (isBinaryName(out)) {
+			BinaryScore.write(out, reader.getSettings().getAll(), reader.getPages(), 
+					reader.getReference(), reader.positions, times, bits);
+			PositionFile.delete(out);
+		} else {
+			write(out, reader.getSettings().getAll(), reader.getPages(), reader.getReference(),
+					reader.positions, times);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package nl.metaphoric.scorefollower.lib.file;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import nl.metaphoric.scorefollower.lib.Position;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.FrameVectorFactory;
+
+/**
+ * Reads and writes scores in the text format. Lines are tokenized
+ * straight from a character buffer and numbers are converted with
+ * the DecimalCodec, so no Strings are created for vector lines.
+ *
+ * The format consists of settings lines ("key=value"), page lines
+ * ("page=filename") and vector lines:
+ * <pre>
+ * [time:]c0 c1 ... c11 rms [page x y]
+ * </pre>
+ * Empty lines and lines starting with # are ignored. The settings
+ * include the number of vectors (FRAMES) when written by this class.
+ *
+ * @author Elte Hupkes
+ */
+public class TextScore {
+	/**
+	 * Setting holding the number of vectors, so that it is known
+	 * without reading them.
+	 */
+	public static final String FRAMES = "frames";
+
+	/**
+	 * Size of the read / write buffer in chars
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Initial buffer size when reading only the header
+	 */
+	private static final int HEADER_BUFFER_SIZE = 1 << 12;
+
+	/**
+	 * Room reserved in the write buffer per formatted number
+	 */
+	private static final int NUMBER_SIZE = 32;
+
+	/**
+	 * Containers to read into
+	 */
+	private Map<String, String> settings;
+	private List<String> pages;
+	private List<FrameVector> reference;
+	private Map<Integer, Position> positions;
+	private List<Double> times;
+
+	/**
+	 * Numbers of the current line
+	 */
+	private double[] values = new double[16];
+
+	/**
+	 * Number of vectors read
+	 */
+	private int count = 0;
+
+	/**
+	 * If true, stop at the first vector line
+	 */
+	private boolean headerOnly = false;
+
+	private TextScore(Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times) {
+		this.settings = settings;
+		this.pages = pages;
+		this.reference = reference;
+		this.positions = positions;
+		this.times = times;
+	}
+
+	/**
+	 * Reads a score in the text format. The reader is not closed.
+	 * @param in
+	 * @param settings Receives the settings
+	 * @param pages Receives page filenames
+	 * @param reference Receives the reference vectors
+	 * @param positions Receives recorded positions by reference index
+	 * @param times Receives the time of every vector, -1 if the file doesn't
+	 * 				specify it. Can be null.
+	 * @throws IOException
+	 */
+	public static void read(Reader in, Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times)
+			throws IOException {
+		new TextScore(settings, pages, reference, positions, times).parse(in, BUFFER_SIZE);
+	}
+
+	/**
+	 * Reads only the settings and page filenames of a score in the
+	 * text format, stopping at the first vector.
+	 * @param in
+	 * @param settings
+	 * @param pages
+	 * @throws IOException
+	 */
+	public static void readHeader(Reader in, Map<String, String> settings, List<String> pages)
+			throws IOException {
+		TextScore parser = new TextScore(settings, pages, null, null, null);
+		parser.headerOnly = true;
+		parser.parse(in, HEADER_BUFFER_SIZE);
+	}
+
+	/**
+	 * Parses lines from the reader until it is exhausted, or
+	 * until line() returns false.
+	 * @param in
+	 * @param bufferSize Initial buffer size
+	 * @throws IOException
+	 */
+	private void parse(Reader in, int bufferSize) throws IOException {
+		char[] buf = new char[bufferSize];
+		int start = 0, end = 0, scan = 0;
+		boolean eof = false;
+		while (true) {
+			// Look for the end of the current line
+			while (scan < end && buf[scan] != '\n' && buf[scan] != '\r') {
+				scan++;
+			}
+
+			if (scan < end) {
+				if (!line(buf, start, scan)) {
+					break;
+				}
+				start = ++scan;
+				continue;
+			}
+
+			if (eof) {
+				line(buf, start, end);
+				break;
+			}
+
+			// Move the partial line to the front and fill up the buffer
+			if (start > 0) {
+				System.arraycopy(buf, start, buf, 0, end - start);
+				end -= start;
+				scan -= start;
+				start = 0;
+			} else if (end == buf.length) {
+				char[] larger = new char[buf.length * 2];
+				System.arraycopy(buf, 0, larger, 0, end);
+				buf = larger;
+			}
+
+			int n = in.read(buf, end, buf.length - end);
+			if (n < 0) {
+				eof = true;
+			} else {
+				end += n;
+			}
+		}
+	}
+
+	/**
+	 * Parses a single line
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return False if parsing should stop
+	 */
+	private boolean line(char[] buf, int from, int to) {
+		// Trim
+		while (from < to && buf[from] <= ' ') {
+			from++;
+		}
+		while (to > from && buf[to - 1] <= ' ') {
+			to--;
+		}
+		if (from == to || buf[from] == '#') {
+			return true;
+		}
+
+		int eq = indexOf(buf, from, to, '=');
+		if (eq > from) {
+			// Setting; the value ends at a second '=', if any.
+			String key = new String(buf, from, eq - from);
+			int valueEnd = indexOf(buf, eq + 1, to, '=');
+			String value = new String(buf, eq + 1, (valueEnd < 0 ? to : valueEnd) - eq - 1);
+			if (key.equals("page")) {
+				pages.add(value);
+			} else {
+				settings.put(key, value);
+			}
+			return true;
+		}
+
+		// Must be a FrameVector, possibly with timing data
+		if (headerOnly) {
+			return false;
+		}
+
+		double time = -1;
+		int colon = indexOf(buf, from, to, ':');
+		if (colon > from) {
+			time = number(buf, from, colon);
+			from = colon + 1;
+			int next = indexOf(buf, from, to, ':');
+			if (next >= 0) {
+				to = next;
+			}
+		}
+
+		int n = 0, i = from;
+		while (true) {
+			while (i < to && buf[i] <= ' ') {
+				i++;
+			}
+			if (i == to) {
+				break;
+			}
+			int tokenStart = i;
+			while (i < to && buf[i] > ' ') {
+				i++;
+			}
+
+			if (n == values.length) {
+				double[] larger = new double[n * 2];
+				System.arraycopy(values, 0, larger, 0, n);
+				values = larger;
+			}
+			values[n++] = DecimalCodec.parse(buf, tokenStart, i);
+		}
+
+		// Only continue on "valid" vectors, this check isn't very strict right now.
+		if (n >= 13) {
+			double[] parts = new double[n];
+			System.arraycopy(values, 0, parts, 0, n);
+			reference.add(FrameVectorFactory.getVector(parts));
+
+			if (n >= 16) {
+				// Includes x/y position coordinates, add them to position reference array
+				positions.put(count, new Position((int)parts[13], parts[14], parts[15]));
+			}
+			count++;
+
+			if (times != null) {
+				times.add(time);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a number, ignoring surrounding whitespace
+	 */
+	private static double number(char[] buf, int from, int to) {
+		while (from < to && buf[from] <= ' ') {
+			from++;
+		}
+		while (to > from && buf[to - 1] <= ' ') {
+			to--;
+		}
+		return DecimalCodec.parse(buf, from, to);
+	}
+
+	/**
+	 * @return The index of c in buf[from, to), or -1
+	 */
+	private static int indexOf(char[] buf, int from, int to, char c) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes a score in the text format. The writer is flushed,
+	 * but not closed.
+	 * @param out
+	 * @param settings Settings, written in iteration order, followed by
+	 * 				   the number of vectors.
+	 * @param pages Page filenames
+	 * @param reference The reference data
+	 * @param positions Recorded positions by reference index
+	 * @param times The time of every reference vector, can be null.
+	 * 				Negative times are not written.
+	 * @throws IOException
+	 */
+	public static void write(Writer out, Map<String, String> settings, List<String> pages,
+			List<FrameVector> reference, Map<Integer, Position> positions, List<Double> times)
+			throws IOException {
+		String newLine = System.getProperty("line.separator");
+
+		for (Map.Entry<String, String> e : settings.entrySet()) {
+			if (!e.getKey().equals(FRAMES)) {
+				out.write(e.getKey()+"="+e.getValue()+newLine);
+			}
+		}
+		out.write(FRAMES+"="+reference.size()+newLine);
+		out.write(newLine);
+
+		// Write page filenames
+		for (String page : pages) {
+			out.write("page="+page+newLine);
+		}
+		out.write(newLine);
+		out.write(newLine);
+
+		char[] buf = new char[BUFFER_SIZE], nl = newLine.toCharArray();
+		int pos = 0, i = 0;
+		for (FrameVector v : reference) {
+			// Room for a full line
+			if (pos > buf.length - 20 * NUMBER_SIZE) {
+				out.write(buf, 0, pos);
+				pos = 0;
+			}
+
+			if (times != null && times.get(i) >= 0) {
+				pos = DecimalCodec.format(times.get(i), buf, pos);
+				buf[pos++] = ':';
+			}
+
+			double[] chroma = v.getChroma();
+			for (int j = 0; j < 12; j++) {
+				pos = DecimalCodec.format(chroma[j], buf, pos);
+				buf[pos++] = ' ';
+			}
+			pos = DecimalCodec.format(v.rms, buf, pos);
+
+			Position p = positions.get(i);
+			if (p != null) {
+				buf[pos++] = ' ';
+				pos = DecimalCodec.format(p.page(), buf, pos);
+				buf[pos++] = ' ';
+				pos = DecimalCodec.format(p.xFrac(), buf, pos);
+				buf[pos++] = ' ';
+				pos = DecimalCodec.format(p.yFrac(), buf, pos);
+			}
+
+			for (char c : nl) {
+				buf[pos++] = c;
+			}
+			i++;
+		}
+		out.write(buf, 0, pos);
+		out.flush();
+	}
+}
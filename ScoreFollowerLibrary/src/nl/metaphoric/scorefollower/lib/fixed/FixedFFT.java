@@ -0,0 +1,190 @@
+package nl.metaphoric.scorefollower.lib.fixed;
+
+/**
+ * Fixed-point real FFT, for devices on which double precision
+ * arithmetic is slow.
+ * 
+ * Samples and twiddle factors are Q15 values (a value of 1.0 is
+ * represented as 1 << 15). The real input of length n is packed
+ * into a complex sequence of length n / 2, which is transformed
+ * using a radix-2 FFT that scales down by two in every stage to
+ * prevent overflow. The result is therefore the DFT divided by
+ * n / 2. Only the requested range of output bins is unpacked,
+ * so no work is spent on frequencies outside the chroma band.
+ * 
+ * The twiddle factors are calculated using StrictMath, and all
+ * other calculations are integer calculations, so the output
+ * is exactly the same on every JVM.
+ * 
+ * @author Elte Hupkes
+ */
+public class FixedFFT {
+	/**
+	 * The number of fractional bits in Q15 values,
+	 * and the rounding constant for products.
+	 */
+	public static final int Q = 15, HALF = 1 << (Q - 1);
+	
+	/**
+	 * The real transform size, and the size of
+	 * the complex transform.
+	 */
+	private final int n, half;
+	
+	/**
+	 * Q15 twiddle factors, W_n^k = cos[k] - i * sin[k]
+	 * for 0 <= k < n / 2.
+	 */
+	private final int[] cos, sin;
+	
+	/**
+	 * Bit reversal permutation of the complex transform
+	 */
+	private final int[] reverse;
+	
+	/**
+	 * Creates a transform of the given size.
+	 * @param n The transform size, should be a power of two
+	 * 			of at least 4.
+	 */
+	public FixedFFT(int n) {
+		if (n < 4 || (n & (n - 1)) != 0) {
+			throw new IllegalArgumentException("FixedFFT size must be a power of two >= 4.");
+		}
+		this.n = n;
+		half = n / 2;
+		
+		cos = new int[half];
+		sin = new int[half];
+		for (int k = 0; k < half; k++) {
+			double a = 2 * StrictMath.PI * k / n;
+			cos[k] = (int)StrictMath.round(StrictMath.cos(a) * (1 << Q));
+			sin[k] = (int)StrictMath.round(StrictMath.sin(a) * (1 << Q));
+		}
+		
+		int bits = Integer.numberOfTrailingZeros(half);
+		reverse = new int[half];
+		for (int i = 0; i < half; i++) {
+			reverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+	
+	/**
+	 * Returns the smallest power of two that is at least
+	 * the given size.
+	 * @param size
+	 * @return
+	 */
+	public static int sizeFor(int size) {
+		int n = 4;
+		while (n < size) {
+			n <<= 1;
+		}
+		return n;
+	}
+	
+	/**
+	 * @return The (real) transform size
+	 */
+	public int size() {
+		return n;
+	}
+	
+	/**
+	 * Transforms real Q15 data, and writes the bins from
+	 * (including) up to to (excluding) into re / im.
+	 * @param data The input data, n values. Shorter input is
+	 * 			zero padded. The data is not modified.
+	 * @param from The first bin, at least 1
+	 * @param to The last bin (excluding), at most n / 2
+	 * @param re Output for the real parts, to - from values
+	 * @param im Output for the imaginary parts, to - from values
+	 */
+	public void realForward(int[] data, int from, int to, int[] re, int[] im) {
+		if (from < 1 || to > half || from > to) {
+			throw new IllegalArgumentException("Invalid bin range "+from+" - "+to);
+		}
+		
+		// Pack the even samples in the real, and the odd samples in the
+		// imaginary part, in bit reversed order.
+		int[] zr = new int[half], zi = new int[half];
+		int i, j, r;
+		for (i = 0; i < half; i++) {
+			r = reverse[i];
+			zr[r] = 2 * i < data.length ? data[2 * i] : 0;
+			zi[r] = 2 * i + 1 < data.length ? data[2 * i + 1] : 0;
+		}
+		
+		transform(zr, zi);
+		
+		// Unpack the requested bins of the real transform:
+		// X[k] = E[k] + W_n^k * O[k], with
+		// E[k] = (Z[k] + conj(Z[half - k])) / 2
+		// O[k] = (Z[k] - conj(Z[half - k])) / 2i
+		int m, er, ei, or, oi;
+		for (int k = from; k < to; k++) {
+			m = half - k;
+			er = (zr[k] + zr[m]) >> 1;
+			ei = (zi[k] - zi[m]) >> 1;
+			or = (zi[k] + zi[m]) >> 1;
+			oi = (zr[m] - zr[k]) >> 1;
+			
+			j = k - from;
+			re[j] = er + (int)(((long)or * cos[k] + (long)oi * sin[k] + HALF) >> Q);
+			im[j] = ei + (int)(((long)oi * cos[k] - (long)or * sin[k] + HALF) >> Q);
+		}
+	}
+	
+	/**
+	 * In-place radix-2 decimation in time FFT of bit-reversed
+	 * data, dividing by two in every stage.
+	 * @param re
+	 * @param im
+	 */
+	private void transform(int[] re, int[] im) {
+		int len, step, i, j, k, a, b, tr, ti, ur, ui;
+		for (len = 2; len <= half; len <<= 1) {
+			// Twiddle index step of this stage in the length n table
+			step = n / len;
+			for (i = 0; i < half; i += len) {
+				for (j = 0; j < len / 2; j++) {
+					a = i + j;
+					b = a + len / 2;
+					k = j * step;
+					
+					tr = (int)(((long)re[b] * cos[k] + (long)im[b] * sin[k] + HALF) >> Q);
+					ti = (int)(((long)im[b] * cos[k] - (long)re[b] * sin[k] + HALF) >> Q);
+					ur = re[a];
+					ui = im[a];
+					
+					re[a] = (ur + tr) >> 1;
+					im[a] = (ui + ti) >> 1;
+					re[b] = (ur - tr) >> 1;
+					im[b] = (ui - ti) >> 1;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Integer square root, rounded down.
+	 * @param v A non-negative value
+	 * @return
+	 */
+	public static int sqrt(long v) {
+		long result = 0, bit = 1L << 62;
+		while (bit > v) {
+			bit >>= 2;
+		}
+		while (bit != 0) {
+			if (v >= result + bit) {
+				v -= result + bit;
+				result = (result >> 1) + bit;
+			} else {
+				result >>= 1;
+			}
+			bit >>= 2;
+		}
+		return (int)result;
+	}
+}
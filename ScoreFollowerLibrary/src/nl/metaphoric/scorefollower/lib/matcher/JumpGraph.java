@@ -0,0 +1,172 @@
+package nl.metaphoric.scorefollower.lib.matcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import nl.metaphoric.scorefollower.lib.feature.ShingleIndex;
+
+/**
+ * Long-range edges between passages of the reference that sound
+ * the same, such as the two passes of a repeat, or the music
+ * before and after a D.C. or D.S. jump.
+ *
+ * The edges are found from the self-similarity of the reference:
+ * the shingle ending at every stride-th reference vector is looked
+ * up in the ShingleIndex, and matches far away that continue along
+ * the same diagonal for at least MIN_RUN seconds form a run. A
+ * performer can be in either copy of a run without the matcher
+ * noticing, until the copies diverge at the end of the run, so
+ * every run adds one edge from its last vector to the matching
+ * vector of the other copy. As runs are found from both copies,
+ * both directions are covered: skipping a repeat the reference
+ * played, and adding one it didn't.
+ *
+ * @author Elte Hupkes
+ */
+public class JumpGraph {
+	/**
+	 * The shingle similarity above which two passages
+	 * are considered the same.
+	 */
+	public static final double SIMILARITY = 0.9;
+
+	/**
+	 * The minimum duration of a run, in seconds
+	 */
+	public static final double MIN_RUN = 3.0;
+
+	/**
+	 * The number of matches looked up per shingle
+	 */
+	private static final int MATCHES = 4;
+
+	/**
+	 * Edge sources, sorted, and their targets
+	 */
+	private int[] sources, targets;
+
+	/**
+	 * A run of matches along one diagonal
+	 */
+	private static class Run {
+		int start, last, offset;
+
+		Run(int start, int offset) {
+			this.start = last = start;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * Finds the edges of the reference in the given index
+	 * @param index
+	 * @param hopSize The time between reference vectors, in seconds
+	 * @param minDistance The minimum length of an edge, in reference
+	 * 			vectors. Closer matches are left to the matcher's
+	 * 			search window.
+	 */
+	public JumpGraph(ShingleIndex index, double hopSize, int minDistance) {
+		int stride = index.stride(), minRun = (int)Math.round(MIN_RUN / hopSize);
+		double[] shingle = new double[ShingleIndex.LENGTH * 12], similarities = new double[MATCHES];
+		int[] matches = new int[MATCHES];
+
+		List<Run> active = new ArrayList<Run>(), runs = new ArrayList<Run>();
+		for (int end = index.span() - 1; end < index.size(); end += stride) {
+			index.shingle(end, shingle);
+			int n = index.query(shingle, matches, similarities);
+			for (int i = 0; i < n; i++) {
+				int offset = matches[i] - end;
+				if (similarities[i] < SIMILARITY || Math.abs(offset) <= minDistance) {
+					continue;
+				}
+
+				// Continue a run along the same diagonal, allowing one missed shingle
+				Run run = null;
+				for (Run r : active) {
+					if (r.last < end && r.last >= end - 2 * stride 
+							&& Math.abs(r.offset - offset) <= stride) {
+						run = r;
+						break;
+					}
+				}
+				if (run == null) {
+					run = new Run(end, offset);
+					active.add(run);
+				}
+				run.last = end;
+				run.offset = offset;
+			}
+
+			// Close runs that ended
+			for (int i = active.size() - 1; i >= 0; i--) {
+				Run r = active.get(i);
+				if (r.last < end - 2 * stride || end + stride >= index.size()) {
+					active.remove(i);
+					if (r.last - r.start >= minRun) {
+						runs.add(r);
+					}
+				}
+			}
+		}
+
+		Collections.sort(runs, new Comparator<Run>() {
+			@Override
+			public int compare(Run a, Run b) {
+				return a.last < b.last ? -1 : a.last > b.last ? 1 : 0;
+			}
+		});
+		sources = new int[runs.size()];
+		targets = new int[runs.size()];
+		for (int i = 0; i < runs.size(); i++) {
+			sources[i] = runs.get(i).last;
+			targets[i] = runs.get(i).last + runs.get(i).offset;
+		}
+	}
+
+	/**
+	 * Returns the number of edges
+	 * @return
+	 */
+	public int size() {
+		return sources.length;
+	}
+
+	/**
+	 * Returns the source of the given edge
+	 * @param edge
+	 * @return
+	 */
+	public int source(int edge) {
+		return sources[edge];
+	}
+
+	/**
+	 * Returns the target of the given edge
+	 * @param edge
+	 * @return
+	 */
+	public int target(int edge) {
+		return targets[edge];
+	}
+
+	/**
+	 * Returns the first edge with a source at or after the given
+	 * position, or size() if there is none.
+	 * @param position
+	 * @return
+	 */
+	public int first(int position) {
+		int low = 0, high = sources.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sources[mid] < position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,86 @@
+package nl.metaphoric.scorefollower.lib.matcher;
+
+import java.util.SortedMap;
+
+import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+
+/**
+ * A matching engine, which estimates the position in the
+ * reference data of a score from live FrameVectors.
+ * Implementations are created by the MatcherFactory.
+ * 
+ * @author Elte Hupkes
+ */
+public interface Matcher {
+	/**
+	 * Returns the position index in the reference data best
+	 * corresponding to the given FrameVector.
+	 * @param v
+	 * @return
+	 */
+	public int getPosition(FrameVector v);
+	
+	/**
+	 * Returns the position found by the last call to getPosition()
+	 * as a fractional reference index, which places it between
+	 * reference vectors.
+	 * @return
+	 */
+	public double getFractionalPosition();
+	
+	/**
+	 * Predicts the position at the given time, by moving the
+	 * fractional position ahead by the estimated tempo over the time
+	 * since the last input vector was captured (see FrameVector.time).
+	 * While the performer is not playing, this is the last position.
+	 * @param nanoTime A System.nanoTime() value, usually the current
+	 * @return The predicted fractional reference index
+	 */
+	public double predictPosition(long nanoTime);
+	
+	/**
+	 * (re)starts the matcher.
+	 */
+	public void restart();
+	
+	/**
+	 * Restarts the matcher at the specified
+	 * initial position.
+	 * @param position
+	 */
+	public void restart(int position);
+	
+	/**
+	 * Returns the hop size of the reference data
+	 * @return
+	 */
+	public double hopSize();
+	
+	/**
+	 * Returns the window size of the reference data
+	 * @return
+	 */
+	public double windowSize();
+	
+	/**
+	 * Returns whether the performer was playing at
+	 * the last call to getPosition().
+	 * @return
+	 */
+	public boolean isPlaying();
+	
+	/**
+	 * Returns the relative probabilities of the positions
+	 * currently considered, the best being 1. The map must
+	 * not be modified.
+	 * @return
+	 */
+	public SortedMap<Integer, Double> getTransitionProbabilities();
+	
+	/**
+	 * Returns the playback analyzer used by this matcher
+	 * @return
+	 */
+	public PlaybackAnalyzer getPlaybackAnalyzer();
+}
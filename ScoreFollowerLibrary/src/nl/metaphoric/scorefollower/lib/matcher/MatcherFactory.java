@@ -0,0 +1,161 @@
+package nl.metaphoric.scorefollower.lib.matcher;
+
+import java.util.List;
+
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.ReferencePyramid;
+import nl.metaphoric.scorefollower.lib.feature.ShingleIndex;
+import nl.metaphoric.scorefollower.lib.file.ScoreReader.FileSettings;
+
+/**
+ * Creates the matching engine for a score. The engine is
+ * taken from the score's "matcher" setting if it has one,
+ * and from Parameters.matcherType otherwise.
+ * @author Elte Hupkes
+ */
+public class MatcherFactory {
+	/**
+	 * Matcher types
+	 */
+	public static final int TYPE_HMM = 0,
+							TYPE_OLTW = 1,
+							TYPE_PARTICLE = 2,
+							TYPE_TEMPO = 3;
+	
+	/**
+	 * Type names, by type
+	 */
+	private static final String[] NAMES = {"hmm", "oltw", "particle", "tempo"};
+	
+	/**
+	 * The score setting that selects the matcher, holding
+	 * a type name or number.
+	 */
+	public static final String SETTING = "matcher";
+	
+	/**
+	 * Enforces static usage
+	 */
+	private MatcherFactory() {}
+	
+	/**
+	 * Returns the matcher for a score
+	 * @param reference
+	 * @param settings
+	 * @return
+	 */
+	public static Matcher getMatcher(List<FrameVector> reference, FileSettings settings) {
+		return getMatcher(reference, null, null, null, settings);
+	}
+	
+	/**
+	 * Returns the matcher for a score, using the given pyramid,
+	 * index and jump graph of the reference if the matcher
+	 * supports them.
+	 * @param reference
+	 * @param pyramid The reference pyramid, can be null
+	 * @param index The reference index, can be null
+	 * @param jumps The jump graph, can be null
+	 * @param settings
+	 * @return
+	 */
+	public static Matcher getMatcher(List<FrameVector> reference, ReferencePyramid pyramid,
+			ShingleIndex index, JumpGraph jumps, FileSettings settings) {
+		return getMatcher(type(settings), reference, pyramid, index, jumps, settings);
+	}
+	
+	/**
+	 * Returns the type of matcher that will be created for a score
+	 * @param settings
+	 * @return
+	 */
+	public static int type(FileSettings settings) {
+		String setting = settings.getString(SETTING);
+		return setting == null ? Parameters.matcherType : type(setting);
+	}
+	
+	/**
+	 * Returns whether the matcher for a score is a PositionMatcher,
+	 * the only one that uses a reference pyramid, index or jump graph.
+	 * @param settings
+	 * @return
+	 */
+	public static boolean isPositionMatcher(FileSettings settings) {
+		int type = type(settings);
+		return type != TYPE_OLTW && type != TYPE_PARTICLE && type != TYPE_TEMPO;
+	}
+	
+	/**
+	 * Returns a matcher of the given type
+	 * @param type
+	 * @param reference
+	 * @param settings
+	 * @return
+	 */
+	public static Matcher getMatcher(int type, List<FrameVector> reference, FileSettings settings) {
+		return getMatcher(type, reference, null, null, null, settings);
+	}
+	
+	/**
+	 * Returns a matcher of the given type, using the given
+	 * reference pyramid, index and jump graph if the type
+	 * supports them.
+	 * @param type
+	 * @param reference
+	 * @param pyramid The reference pyramid, can be null
+	 * @param index The reference index, can be null
+	 * @param jumps The jump graph, can be null
+	 * @param settings
+	 * @return
+	 */
+	public static Matcher getMatcher(int type, List<FrameVector> reference, ReferencePyramid pyramid,
+			ShingleIndex index, JumpGraph jumps, FileSettings settings) {
+		switch (type) {
+		case TYPE_OLTW:
+			return new OltwMatcher(reference, settings);
+		case TYPE_PARTICLE:
+			return new ParticleMatcher(reference, settings);
+		case TYPE_TEMPO:
+			return new TempoMatcher(reference, settings);
+		default:
+			return new PositionMatcher(reference, pyramid, index, jumps, settings);
+		}
+	}
+	
+	/**
+	 * Returns the number of matcher types
+	 * @return
+	 */
+	public static int types() {
+		return NAMES.length;
+	}
+	
+	/**
+	 * Returns the name of the given type
+	 * @param type
+	 * @return
+	 */
+	public static String name(int type) {
+		return type >= 0 && type < NAMES.length ? NAMES[type] : String.valueOf(type);
+	}
+	
+	/**
+	 * Returns the type with the given name or number,
+	 * the HMM if it is unknown.
+	 * @param name
+	 * @return
+	 */
+	public static int type(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name.trim())) {
+				return i;
+			}
+		}
+		try {
+			return Integer.parseInt(name.trim());
+		} catch (NumberFormatException e) {
+			return TYPE_HMM;
+		}
+	}
+}
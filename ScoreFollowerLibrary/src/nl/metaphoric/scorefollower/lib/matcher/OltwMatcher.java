@@ -0,0 +1,296 @@
+package nl.metaphoric.scorefollower.lib.matcher;
+
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer;
+import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer.Status;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.QuantizedReference;
+import nl.metaphoric.scorefollower.lib.file.ScoreReader.FileSettings;
+
+/**
+ * Matcher using online time warping (after Dixon, "Live tracking of
+ * musical performances using on-line time warping", 2005).
+ *
+ * Every input frame adds a row to a dynamic time warping matrix
+ * between the performance and the reference, but only the cells in
+ * a band around the current position are computed. The cost of a
+ * cell is the cost of matching the input with that reference vector,
+ * -log(matchProbability), plus the cheapest of the three cells it
+ * can be reached from:
+ * <pre>
+ *   D(i, j) = min(D(i-1, j-1) + d, D(i-1, j) + w d, D(i, j-1) + w d)
+ * </pre>
+ * Steps that advance only the performance or only the reference are
+ * weighted by w = STEP_WEIGHT, so that following the reference at the
+ * tempo it was recorded at is preferred. The position is the cheapest
+ * cell of the row; as every row is one input frame further along,
+ * costs within a row are comparable without normalizing by path
+ * length as Dixon does.
+ *
+ * Unlike the PositionMatcher, whose cost depends on the number of
+ * paths that survive pruning, every frame costs exactly one band
+ * of matches.
+ *
+ * @author Elte Hupkes
+ */
+public class OltwMatcher implements Matcher {
+	/**
+	 * Debug logging tag
+	 */
+	private static final String TAG = "SF_OltwMatcher";
+
+	/**
+	 * Match probabilities are clamped to this value, so
+	 * that costs stay finite.
+	 */
+	private static final double MIN_PROBABILITY = 1e-12;
+
+	/**
+	 * Weight of steps that don't advance along the diagonal
+	 */
+	public static final double STEP_WEIGHT = 1.5;
+
+	/**
+	 * The weight of a new step in the smoothed tempo
+	 */
+	private static final double TEMPO_SMOOTHING = 0.1;
+
+	/**
+	 * Reference FrameVector array.
+	 */
+	private List<FrameVector> reference;
+
+	/**
+	 * The reference if it is quantized, see PositionMatcher
+	 */
+	private QuantizedReference quantized;
+	private int[] input = new int[QuantizedReference.BINS];
+
+	/**
+	 * The difference, in seconds, between two
+	 * reference vectors, and the duration
+	 * of one window.
+	 */
+	private double hopSize, windowSize;
+
+	/**
+	 * Number of reference vectors on either side of
+	 * the expected position that are computed.
+	 */
+	private int band;
+
+	/**
+	 * Costs of the last row and the row being computed. The
+	 * first element is the cost of reference index rowStart.
+	 */
+	private double[] row, next;
+	private int rowStart, rowLength;
+
+	/**
+	 * The current position, -1 is "not started", and
+	 * the fractional position.
+	 */
+	private int position;
+	private double fractional;
+
+	/**
+	 * The smoothed number of reference vectors the position
+	 * moved per input frame, see predictPosition().
+	 */
+	private double tempo = 1;
+
+	/**
+	 * The System.nanoTime() at which the last input vector was
+	 * captured, 0 before the first.
+	 */
+	private long captured;
+
+	/**
+	 * The started amplitude analyzer
+	 */
+	private PlaybackAnalyzer status = new PlaybackAnalyzer();
+
+	/**
+	 * The active playing status
+	 */
+	private boolean playing = false;
+
+	/**
+	 * Creates a new online time warping matcher
+	 * @param ref
+	 * @param settings
+	 */
+	public OltwMatcher(List<FrameVector> ref, FileSettings settings) {
+		windowSize = settings.getDouble("windowSize");
+		hopSize = settings.getDouble("hopSize");
+		reference = ref;
+		if (ref instanceof QuantizedReference) {
+			quantized = (QuantizedReference)ref;
+		}
+
+		restart();
+	}
+
+	@Override
+	public void restart() {
+		restart(-1);
+	}
+
+	@Override
+	public void restart(int position) {
+		// The band covers the same range as the PositionMatcher search window
+		band = Math.max(1, (int)(0.5 * (Parameters.searchWindow / hopSize)));
+		row = new double[2 * band + 1];
+		next = new double[2 * band + 1];
+
+		// Start with a single free cell at the start position
+		row[0] = 0;
+		rowStart = position;
+		rowLength = 1;
+
+		status.reset();
+		this.position = position;
+		fractional = position;
+		tempo = 1;
+		captured = 0;
+	}
+
+	@Override
+	public double hopSize() {
+		return hopSize;
+	}
+
+	@Override
+	public double windowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Returns the position found by the last call to getPosition(),
+	 * interpolated between the cheapest cell and its neighbours.
+	 */
+	@Override
+	public double getFractionalPosition() {
+		return fractional;
+	}
+
+	/**
+	 * Moves the fractional position ahead by the smoothed
+	 * number of reference vectors per input frame.
+	 */
+	@Override
+	public double predictPosition(long nanoTime) {
+		if (!playing || captured == 0) {
+			return Math.max(0, fractional);
+		}
+		double age = (nanoTime - captured) / 1e9;
+		return Math.max(0, Math.min(reference.size() - 1, fractional + tempo * age / hopSize));
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	@Override
+	public int getPosition(FrameVector v) {
+		// Without a capture time, use the time matching started
+		captured = v.time != 0 ? v.time : System.nanoTime();
+		Status s = status.getStatus(v);
+
+		if (s == Status.WAITING) {
+			// Assume the player has paused
+			Log.d(TAG, "Performance waiting at "+position);
+			playing = false;
+			fractional = Math.max(0, fractional);
+			return position > 0 ? position : 0;
+		}
+
+		playing = true;
+
+		if (quantized != null) {
+			quantized.quantize(v, input);
+		}
+
+		// Center the new row on the next reference vector
+		int start = Math.max(0, Math.min(position + 1 - band, reference.size() - next.length)),
+			end = Math.min(reference.size(), start + next.length);
+
+		int best = position;
+		double bestCost = Double.POSITIVE_INFINITY, d, c;
+		for (int j = start; j < end; j++) {
+			d = -Math.log(Math.max(MIN_PROBABILITY, quantized != null ?
+					quantized.matchProbability(input, j) : v.matchProbability(reference.get(j))));
+
+			c = Math.min(cost(j - 1) + d, cost(j) + STEP_WEIGHT * d);
+			if (j > start) {
+				c = Math.min(c, next[j - 1 - start] + STEP_WEIGHT * d);
+			}
+			next[j - start] = c;
+
+			if (c < bestCost) {
+				bestCost = c;
+				best = j;
+			}
+		}
+
+		double[] swap = row;
+		row = next;
+		next = swap;
+		rowStart = start;
+		rowLength = end - start;
+
+		double last = fractional;
+		position = best;
+		fractional = best;
+		if (best > rowStart && best < rowStart + rowLength - 1) {
+			// Interpolate between the cheapest cell and its neighbours
+			fractional += PositionMatcher.vertex(cost(best - 1), cost(best), cost(best + 1));
+		}
+		if (last >= 0) {
+			tempo += TEMPO_SMOOTHING * (Math.max(0, fractional - last) - tempo);
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the cost of the given reference index in the last row,
+	 * infinite if it is outside of the band.
+	 * @param j
+	 * @return
+	 */
+	private double cost(int j) {
+		int i = j - rowStart;
+		return i >= 0 && i < rowLength ? row[i] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Returns the relative probabilities of the cells in the last row,
+	 * exp(-cost) relative to the cheapest cell. The map is created
+	 * on every call.
+	 */
+	@Override
+	public SortedMap<Integer, Double> getTransitionProbabilities() {
+		SortedMap<Integer, Double> probabilities = new TreeMap<Integer, Double>();
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < rowLength; i++) {
+			min = Math.min(min, row[i]);
+		}
+		for (int i = 0; i < rowLength; i++) {
+			if (row[i] < Double.POSITIVE_INFINITY && rowStart + i >= 0) {
+				probabilities.put(rowStart + i, Math.exp(min - row[i]));
+			}
+		}
+		return probabilities;
+	}
+
+	@Override
+	public PlaybackAnalyzer getPlaybackAnalyzer() {
+		return status;
+	}
+}
@@ -0,0 +1,311 @@
+package nl.metaphoric.scorefollower.lib.matcher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.Parameters;
+import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer;
+import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer.Status;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.QuantizedReference;
+import nl.metaphoric.scorefollower.lib.file.ScoreReader.FileSettings;
+
+/**
+ * Matcher using a particle filter. Every particle is a hypothesis of
+ * the position in the reference and the tempo relative to it. For
+ * every input frame each particle moves ahead by its tempo, with
+ * some noise on both, and its weight is multiplied by the match
+ * probability of the input with the reference vector at its position.
+ * When the weight is concentrated on too few particles, they are
+ * resampled systematically.
+ *
+ * The number of particles is fixed (Parameters.particleCount), so
+ * every frame costs exactly that many matches, however uncertain the
+ * position is.
+ *
+ * @author Elte Hupkes
+ */
+public class ParticleMatcher implements Matcher {
+	/**
+	 * Debug logging tag
+	 */
+	private static final String TAG = "SF_ParticleMatcher";
+
+	/**
+	 * Standard deviation of the position noise per frame, in seconds
+	 */
+	public static final double POSITION_NOISE = 0.05;
+
+	/**
+	 * Standard deviation of the log tempo noise per frame
+	 */
+	public static final double TEMPO_NOISE = 0.02;
+
+	/**
+	 * The tempo range, relative to the reference
+	 */
+	public static final double MIN_TEMPO = 0.5, MAX_TEMPO = 2.0;
+
+	/**
+	 * The initial tempo spread, as a factor either way
+	 */
+	private static final double START_TEMPO_SPREAD = 1.25;
+
+	/**
+	 * Reference FrameVector array.
+	 */
+	private List<FrameVector> reference;
+
+	/**
+	 * The reference if it is quantized, see PositionMatcher
+	 */
+	private QuantizedReference quantized;
+	private int[] input = new int[QuantizedReference.BINS];
+
+	/**
+	 * The difference, in seconds, between two
+	 * reference vectors, and the duration
+	 * of one window.
+	 */
+	private double hopSize, windowSize;
+
+	/**
+	 * Particle positions (in reference vectors), tempos and weights,
+	 * and the arrays they are resampled into.
+	 */
+	private double[] position, tempo, weight, newPosition, newTempo;
+
+	/**
+	 * The current position, -1 is "not started", the
+	 * fractional position and the weighted mean tempo.
+	 */
+	private int current;
+	private double fractional, meanTempo = 1;
+
+	/**
+	 * Noise source, seeded so that runs can be repeated
+	 */
+	private Random random = new Random(1);
+
+	/**
+	 * The System.nanoTime() at which the last input vector was
+	 * captured, 0 before the first.
+	 */
+	private long captured;
+
+	/**
+	 * The started amplitude analyzer
+	 */
+	private PlaybackAnalyzer status = new PlaybackAnalyzer();
+
+	/**
+	 * The active playing status
+	 */
+	private boolean playing = false;
+
+	/**
+	 * Creates a new particle filter matcher
+	 * @param ref
+	 * @param settings
+	 */
+	public ParticleMatcher(List<FrameVector> ref, FileSettings settings) {
+		windowSize = settings.getDouble("windowSize");
+		hopSize = settings.getDouble("hopSize");
+		reference = ref;
+		if (ref instanceof QuantizedReference) {
+			quantized = (QuantizedReference)ref;
+		}
+
+		restart();
+	}
+
+	@Override
+	public void restart() {
+		restart(-1);
+	}
+
+	@Override
+	public void restart(int position) {
+		int n = Math.max(1, Parameters.particleCount);
+		this.position = new double[n];
+		tempo = new double[n];
+		weight = new double[n];
+		newPosition = new double[n];
+		newTempo = new double[n];
+
+		// All particles start at the position, with tempos spread around 1
+		double logSpread = Math.log(START_TEMPO_SPREAD);
+		for (int i = 0; i < n; i++) {
+			this.position[i] = position;
+			tempo[i] = Math.exp(logSpread * (2.0 * i / Math.max(1, n - 1) - 1));
+			weight[i] = 1.0 / n;
+		}
+
+		status.reset();
+		current = position;
+		fractional = position;
+		meanTempo = 1;
+		captured = 0;
+	}
+
+	@Override
+	public double hopSize() {
+		return hopSize;
+	}
+
+	@Override
+	public double windowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Returns the weighted mean particle position
+	 */
+	@Override
+	public double getFractionalPosition() {
+		return fractional;
+	}
+
+	/**
+	 * Moves the fractional position ahead by the weighted
+	 * mean particle tempo.
+	 */
+	@Override
+	public double predictPosition(long nanoTime) {
+		if (!playing || captured == 0) {
+			return Math.max(0, fractional);
+		}
+		double age = (nanoTime - captured) / 1e9;
+		return Math.max(0, Math.min(reference.size() - 1, fractional + meanTempo * age / hopSize));
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	@Override
+	public int getPosition(FrameVector v) {
+		// Without a capture time, use the time matching started
+		captured = v.time != 0 ? v.time : System.nanoTime();
+		Status s = status.getStatus(v);
+
+		if (s == Status.WAITING) {
+			// Assume the player has paused
+			Log.d(TAG, "Performance waiting at "+current);
+			playing = false;
+			fractional = Math.max(0, fractional);
+			return current > 0 ? current : 0;
+		}
+
+		playing = true;
+
+		if (quantized != null) {
+			quantized.quantize(v, input);
+		}
+
+		int n = position.length, last = reference.size() - 1;
+		double positionNoise = POSITION_NOISE / hopSize, total = 0;
+		for (int i = 0; i < n; i++) {
+			// Move ahead
+			tempo[i] = Math.max(MIN_TEMPO, Math.min(MAX_TEMPO,
+					tempo[i] * Math.exp(random.nextGaussian() * TEMPO_NOISE)));
+			position[i] = Math.max(0, Math.min(last,
+					position[i] + tempo[i] + random.nextGaussian() * positionNoise));
+
+			// Weigh by the match at the new position
+			int j = (int)Math.round(position[i]);
+			weight[i] *= Math.max(0, quantized != null ? quantized.matchProbability(input, j) :
+				v.matchProbability(reference.get(j)));
+			total += weight[i];
+		}
+
+		if (total <= 0) {
+			// No particle matches at all, keep them as they are
+			for (int i = 0; i < n; i++) {
+				weight[i] = 1.0 / n;
+			}
+			total = 1;
+		}
+
+		// Normalize, and estimate the position as the weighted mean
+		double mean = 0, sumSquares = 0;
+		meanTempo = 0;
+		for (int i = 0; i < n; i++) {
+			weight[i] /= total;
+			mean += weight[i] * position[i];
+			meanTempo += weight[i] * tempo[i];
+			sumSquares += weight[i] * weight[i];
+		}
+
+		// Resample when the effective number of particles gets low
+		if (1 / sumSquares < n / 2.0) {
+			resample();
+		}
+
+		fractional = mean;
+		current = (int)Math.round(mean);
+		return current;
+	}
+
+	/**
+	 * Systematic resampling: one random offset, then n evenly spaced
+	 * picks along the cumulative weights.
+	 */
+	private void resample() {
+		int n = position.length, j = 0;
+		double step = 1.0 / n, u = random.nextDouble() * step, cumulative = weight[0];
+		for (int i = 0; i < n; i++) {
+			while (u > cumulative && j < n - 1) {
+				j++;
+				cumulative += weight[j];
+			}
+			newPosition[i] = position[j];
+			newTempo[i] = tempo[j];
+			u += step;
+		}
+
+		double[] swap = position;
+		position = newPosition;
+		newPosition = swap;
+		swap = tempo;
+		tempo = newTempo;
+		newTempo = swap;
+		for (int i = 0; i < n; i++) {
+			weight[i] = step;
+		}
+	}
+
+	/**
+	 * Returns the particle weight at every occupied position,
+	 * relative to the heaviest position. The map is created on
+	 * every call.
+	 */
+	@Override
+	public SortedMap<Integer, Double> getTransitionProbabilities() {
+		SortedMap<Integer, Double> probabilities = new TreeMap<Integer, Double>();
+		double max = 0;
+		for (int i = 0; i < position.length; i++) {
+			int j = (int)Math.round(position[i]);
+			Double p = probabilities.get(j);
+			double w = (p == null ? 0 : p) + weight[i];
+			probabilities.put(j, w);
+			max = Math.max(max, w);
+		}
+		if (max > 0) {
+			for (Map.Entry<Integer, Double> e : probabilities.entrySet()) {
+				e.setValue(e.getValue() / max);
+			}
+		}
+		return probabilities;
+	}
+
+	@Override
+	public PlaybackAnalyzer getPlaybackAnalyzer() {
+		return status;
+	}
+}
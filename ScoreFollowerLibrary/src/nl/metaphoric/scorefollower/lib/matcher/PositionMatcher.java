@@ -3,14 +3,62 @@
  * file from reference data. This uses a Hidden Markov
  * Model around frame vectors. 
  * 
+ * When a ReferencePyramid is given, the search window of each
+ * path is first scored block by block at the coarsest level. Only
+ * the children of the best Parameters.pyramidCandidates blocks are
+ * scored at the next level, and so on down to the reference, where
+ * just a few vectors around each remaining candidate are evaluated.
+ * Match probabilities are cached per frame, so paths with
+ * overlapping windows share them.
+ * 
+ * When a ShingleIndex is given, the last few input vectors are
+ * compared with the reference at the current position every frame.
+ * If they have matched badly for LOST_TIME seconds, the index is
+ * searched for better matching positions anywhere in the score,
+ * and those are added as new paths. This way the matcher recovers
+ * when the performer skips a section or starts halfway.
+ * 
+ * When a JumpGraph is given, paths close to the source of one of its
+ * edges can also move to the other end of the edge, with probability
+ * Parameters.jumpProbability. Paths on the other side of an edge are
+ * kept while the position is near its source, so that repeats and
+ * jumps are followed without widening the search window.
+ * 
+ * With Parameters.adaptiveWindow, the search and distance windows
+ * follow the confidence of the matcher: the fraction of the path
+ * mass within one standard deviation of the best position, scaled
+ * so that a flat distribution over the distance window gives 0 and
+ * all mass in that range gives 1, however many paths are kept.
+ * While it stays above CONFIDENT the windows shrink gradually, down
+ * to their minimum; when it drops below UNCERTAIN they're restored
+ * at once.
+ * 
+ * With Parameters.deadReckoning set to N > 1, the paths are only
+ * updated every Nth frame while the confidence is at least UNCERTAIN
+ * and the last STEADY_UPDATES updates landed where the tempo
+ * predicted. In between, the position just moves ahead by the
+ * tempo, and the next update expects paths to have moved that
+ * many frames. A frame whose loudness or chroma differs clearly
+ * from the last updated frame, or a position near a JumpGraph
+ * edge, forces an update.
+ * 
+ * Reference positions are tapped at the last vector whose window
+ * ended at the tap, and live vectors are matched the same way, so
+ * the window size cancels out. A position is however already the
+ * time spent analyzing and matching old by the time it's available;
+ * predictPosition() moves it ahead by the tempo over that time,
+ * using the capture time of the input vectors when AudioAnalyzer
+ * provides it.
+ * 
  * @author Elte Hupkes
  */
 package nl.metaphoric.scorefollower.lib.matcher;
 
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.Vector;
 
 import nl.metaphoric.scorefollower.lib.Log;
 import nl.metaphoric.scorefollower.lib.Parameters;
@@ -18,9 +66,12 @@ import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer;
 import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer.Status;
 import nl.metaphoric.scorefollower.lib.RunningAverage;
 import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.QuantizedReference;
+import nl.metaphoric.scorefollower.lib.feature.ReferencePyramid;
+import nl.metaphoric.scorefollower.lib.feature.ShingleIndex;
 import nl.metaphoric.scorefollower.lib.file.ScoreReader.FileSettings;
 
-public class PositionMatcher {
+public class PositionMatcher implements Matcher {
 	/**
 	 * Debug logging tag
 	 */
@@ -33,6 +84,60 @@ public class PositionMatcher {
 	 */
 	public static final double EPSILON = 0.000001;
 	
+	/**
+	 * The time in seconds the input has to match badly
+	 * before the index is searched.
+	 */
+	public static final double LOST_TIME = 0.5;
+	
+	/**
+	 * The amount by which a position found in the index has to
+	 * match the input better than the current position (in
+	 * shingle similarity) to become a new path.
+	 */
+	public static final double RELOCALIZE_MARGIN = 0.15;
+	
+	/**
+	 * Paths expected within JUMP_RADIUS seconds of the source of
+	 * an edge can take it, and end up within JUMP_BAND seconds of
+	 * the corresponding position at its target.
+	 */
+	public static final double JUMP_RADIUS = 1.0, JUMP_BAND = 0.5;
+	
+	/**
+	 * The maximum number of edges a path can take per frame
+	 */
+	private static final int MAX_JUMPS = 4;
+	
+	/**
+	 * Confidence levels above which the windows shrink, and
+	 * below which they're restored. A followed performance
+	 * stays around 0.2, a lost one mostly below 0.12.
+	 */
+	public static final double CONFIDENT = 0.16, UNCERTAIN = 0.12;
+	
+	/**
+	 * The factor the windows shrink by per confident frame, and
+	 * the weight of a new frame in the smoothed confidence.
+	 */
+	private static final double SHRINK = 0.98, SMOOTHING = 0.1;
+	
+	/**
+	 * An update is steady if it lands within STEADY_ERROR
+	 * vectors of the position predicted by the tempo. Dead
+	 * reckoning starts after STEADY_UPDATES steady updates.
+	 */
+	public static final double STEADY_ERROR = 2.5;
+	public static final int STEADY_UPDATES = 3;
+	
+	/**
+	 * Dead reckoning stops when the RMS of the input changes
+	 * by more than a factor RMS_CHANGE, or the correlation of
+	 * its chroma drops below CHROMA_CHANGE, relative to the
+	 * last updated frame.
+	 */
+	public static final double RMS_CHANGE = 2.0, CHROMA_CHANGE = 0.8;
+	
 	/**
 	 * The window in which we're trying to maintain
 	 * matching positions, in seconds. Any path
@@ -41,6 +146,38 @@ public class PositionMatcher {
 	 */
 	private double posWindow;
 	
+	/**
+	 * The bounds of posWindow and search, the current fraction
+	 * of their maximum and the smoothed confidence.
+	 */
+	private double maxPosWindow, minPosWindow;
+	private int maxSearch, minSearch;
+	private double windowFactor, minWindowFactor, confidence;
+	
+	/**
+	 * The number of cells evaluated since the matcher was created
+	 */
+	private long evaluated = 0;
+	
+	/**
+	 * The dead reckoned position, the number of frames reckoned
+	 * since the last update and the number of steady updates.
+	 */
+	private double reckoned;
+	private int skipped, steady;
+	
+	/**
+	 * The number of frames reckoned since the matcher was created
+	 */
+	private long reckonedFrames = 0;
+	
+	/**
+	 * The centered unit chroma and the RMS of the last updated
+	 * frame, and room for those of the current one.
+	 */
+	private double[] lastChroma = new double[12], chroma = new double[12];
+	private double lastRms;
+	
 	/**
 	 * Holds a list of previous positions.
 	 * The "next" map is to fill the replacement array.
@@ -61,6 +198,12 @@ public class PositionMatcher {
 	 */
 	private int position;
 	
+	/**
+	 * The current position as a fractional index
+	 * @see getFractionalPosition()
+	 */
+	private double fractional;
+	
 	/**
 	 * Vector holding previous differences
 	 * @see setPosition
@@ -69,14 +212,94 @@ public class PositionMatcher {
 	
 	/**
 	 * The mean and variance used to determine the transition
-	 * probability from the current position.
+	 * probability from the current position, and the deviation
+	 * of the current update, which grows with the frames that
+	 * were dead reckoned since the last one.
 	 */
-	private double mean, std, stdMin;
+	private double mean, std, stdMin, spread;
 	
 	/**
 	 * Reference FrameVector array.
 	 */
-	private Vector<FrameVector> reference;
+	private List<FrameVector> reference;
+	
+	/**
+	 * The reference if it is quantized, in which case matching
+	 * is done against the quantized values directly. The
+	 * quantized input vector is stored in "input".
+	 */
+	private QuantizedReference quantized;
+	private int[] input = new int[QuantizedReference.BINS];
+	
+	/**
+	 * Coarse versions of the reference, null to search
+	 * every vector in the window.
+	 */
+	private ReferencePyramid pyramid;
+	
+	/**
+	 * Match probabilities by pyramid level and index, and the
+	 * frame number they were calculated for. Only used with
+	 * a pyramid.
+	 */
+	private double[][] matches;
+	private int[][] matched;
+	private int frame = 0;
+	
+	/**
+	 * The candidates and their scores at the current pyramid level,
+	 * the blocks being scored at it, the reference indices to
+	 * evaluate for a path and the path they were last added for.
+	 */
+	private int[] candidates, blocks, cells, added;
+	private double[] candidateScores, blockScores;
+	private int path = 0;
+	
+	/**
+	 * Index of the whole reference, null to never
+	 * look beyond the current paths.
+	 */
+	private ShingleIndex index;
+	
+	/**
+	 * The chroma of the last index.history() input vectors,
+	 * with the oldest at historyNext once full, and the number
+	 * of vectors in it.
+	 */
+	private double[] history;
+	private int historyNext, historyCount;
+	
+	/**
+	 * The last input shingle, and the positions found
+	 * in the index with their similarities.
+	 */
+	private double[] shingle;
+	private int[] found;
+	private double[] foundSimilarities;
+	
+	/**
+	 * The number of frames the input has matched badly, and the
+	 * number of frames after which the index is searched.
+	 */
+	private int lost, lostFrames;
+	
+	/**
+	 * Positions added from the index in the last frame
+	 */
+	private int[] seeds;
+	private int seedCount;
+	
+	/**
+	 * Long-range edges, null for none, and their radius and
+	 * band in reference vectors.
+	 */
+	private JumpGraph jumps;
+	private int jumpRadius, jumpBand;
+	
+	/**
+	 * The expected index of every cell reached through an edge
+	 */
+	private double[] jumpMeans;
 	
 	/**
 	 * The search window size in seconds
@@ -90,6 +313,12 @@ public class PositionMatcher {
 	 */
 	private double hopSize, windowSize;
 	
+	/**
+	 * The System.nanoTime() at which the last input vector was
+	 * captured, 0 before the first.
+	 */
+	private long captured;
+	
 	/**
 	 * The started amplitude analyzer
 	 */
@@ -105,10 +334,58 @@ public class PositionMatcher {
 	 * Creates a new position matcher from the given
 	 * reference data. 
 	 */
-	public PositionMatcher(Vector<FrameVector> ref, FileSettings settings) {
+	public PositionMatcher(List<FrameVector> ref, FileSettings settings) {
+		this(ref, null, null, null, settings);
+	}
+	
+	/**
+	 * Creates a new position matcher that matches coarse-to-fine
+	 * over the given reference pyramid, searches the given index
+	 * when it loses track and follows the edges of the given graph.
+	 * @param ref
+	 * @param pyramid The pyramid of ref, can be null
+	 * @param index The index of ref, can be null
+	 * @param jumps The jump graph of ref, can be null
+	 * @param settings
+	 */
+	public PositionMatcher(List<FrameVector> ref, ReferencePyramid pyramid, ShingleIndex index,
+			JumpGraph jumps, FileSettings settings) {
 		windowSize = settings.getDouble("windowSize");
 		hopSize = settings.getDouble("hopSize");
 		reference = ref;
+		if (ref instanceof QuantizedReference) {
+			quantized = (QuantizedReference)ref;
+		}
+		
+		if (pyramid != null && pyramid.levels() > 0) {
+			this.pyramid = pyramid;
+			int levels = pyramid.levels();
+			matches = new double[levels + 1][];
+			matched = new int[levels + 1][];
+			for (int level = 0; level <= levels; level++) {
+				matches[level] = new double[pyramid.size(level)];
+				matched[level] = new int[pyramid.size(level)];
+				Arrays.fill(matched[level], -1);
+			}
+			added = new int[ref.size()];
+			Arrays.fill(added, -1);
+		}
+		
+		if (index != null) {
+			this.index = index;
+			int k = Math.max(1, Parameters.relocalizeCandidates);
+			history = new double[index.history() * 12];
+			shingle = new double[ShingleIndex.LENGTH * 12];
+			found = new int[k];
+			foundSimilarities = new double[k];
+			seeds = new int[k];
+		}
+		
+		if (jumps != null && jumps.size() > 0) {
+			this.jumps = jumps;
+			jumpRadius = (int)Math.round(JUMP_RADIUS / hopSize);
+			jumpBand = (int)Math.round(JUMP_BAND / hopSize);
+		}
 		
 		restart();
 	}
@@ -134,16 +411,61 @@ public class PositionMatcher {
 		previous.put(position, 1.0);
 		
 		// Set default search window, in seconds
-		search = (int)(0.5 * (Parameters.searchWindow / hopSize));
-		posWindow = Parameters.distWindow / hopSize;
+		search = maxSearch = (int)(0.5 * (Parameters.searchWindow / hopSize));
+		posWindow = maxPosWindow = Parameters.distWindow / hopSize;
+		minSearch = Math.min(maxSearch, Math.max(1, (int)(0.5 * (Parameters.minSearchWindow / hopSize))));
+		minPosWindow = Math.min(maxPosWindow, Parameters.minDistWindow / hopSize);
+		minWindowFactor = Math.min(minSearch / (double)Math.max(1, maxSearch), 
+				minPosWindow / Math.max(1, maxPosWindow));
+		windowFactor = 1;
+		confidence = 0;
 		
 		// Set default mean and standard deviation
 		mean = 1;
 		std = Parameters.startStdDev / hopSize;
 		stdMin = Parameters.minStdDev / hopSize;
 		
+		if (pyramid != null) {
+			int k = Math.max(1, Parameters.pyramidCandidates);
+			candidates = new int[k];
+			candidateScores = new double[k];
+			blocks = new int[2 * k + 2 * search + 2];
+			blockScores = new double[blocks.length];
+		}
+		cells = new int[Math.max(2 * search, 1) + MAX_JUMPS * (2 * jumpBand + 1)];
+		jumpMeans = new double[cells.length];
+		
+		historyNext = historyCount = 0;
+		lost = seedCount = 0;
+		reckoned = position;
+		skipped = steady = 0;
+		lostFrames = Math.max(1, (int)Math.round(LOST_TIME / hopSize));
+		
 		status.reset();
 		this.position = position;
+		fractional = position;
+		captured = 0;
+	}
+	
+	/**
+	 * Returns the position found by the last call to getPosition(),
+	 * interpolated between the best path and its neighbours. While
+	 * dead reckoning, this is the reckoned position.
+	 */
+	public double getFractionalPosition() {
+		return fractional;
+	}
+	
+	/**
+	 * Moves the fractional position ahead by the mean of the
+	 * transition distribution.
+	 */
+	public double predictPosition(long nanoTime) {
+		if (!playing || captured == 0) {
+			return Math.max(0, fractional);
+		}
+		double age = (nanoTime - captured) / 1e9;
+		return Math.max(0, Math.min(reference.size() - 1, fractional + mean * age / hopSize));
 	}
 	
 	/**
@@ -162,6 +484,15 @@ public class PositionMatcher {
 		return windowSize;
 	}
 	
+	/**
+	 * Returns whether the performer was playing at the
+	 * last call to getPosition()
+	 * @return
+	 */
+	public boolean isPlaying() {
+		return playing;
+	}
+	
 	/**
 	 * Returns the position index in the reference data best corresponding to the given
 	 * FrameVector. How well this matches with the real-time position depends on the
@@ -170,24 +501,48 @@ public class PositionMatcher {
 	 * @return
 	 */
 	public int getPosition(FrameVector v) {
+		long start = System.nanoTime();
+		int position = estimate(v);
+		
+		// Without a capture time, only the matching time is known
+		captured = v.time != 0 ? v.time : start;
+		return position;
+	}
+	
+	/**
+	 * Returns the position index in the reference data best
+	 * corresponding to the given FrameVector, see getPosition()
+	 * @param v
+	 * @return
+	 */
+	private int estimate(FrameVector v) {
 		Status s = status.getStatus(v);
 		
 		if (s == Status.WAITING) {
 			// Assume the player has paused
 			Log.d(TAG, "Performance waiting at "+this.position);
 			playing = false;
+			fractional = Math.max(0, fractional);
 			return this.position > 0 ? this.position : 0;
 		}
 		
 		playing = true;
 		
-		// The best estimate index and its probability
+		if (reckon(v)) {
+			return this.position;
+		}
+		
+		// The best estimate index and its probability, and whether
+		// it was reached from far away: a position found in the index,
+		// a path kept at the other end of an edge, or through an edge.
 		int best = 0;
 		double pBest = 0.0;
-		double[] transitions = new double[2 * search];
+		boolean jumped = false;
+		boolean remote;
 		
-		// Search window positions
-		int start, end;
+		// Search window positions, and the number of indices in it to
+		// evaluate, of which the first "near" are in the window
+		int start, end, count, near;
 		
 		// New position iterator
 		int ln;
@@ -195,16 +550,43 @@ public class PositionMatcher {
 		// Path probability, transition probability
 		double pPath, pn;
 		
+		// The expected move of a path since the last update, and its
+		// uncertainty, as the sum of skipped + 1 independent moves
+		double advance = mean * (skipped + 1);
+		spread = std * Math.sqrt(skipped + 1);
+		
+		if (quantized != null) {
+			quantized.quantize(v, input);
+		}
+		frame++;
+		
 		for (int l : previous.keySet()) {
 			// Determine search window boundaries
-			start = Math.max(0, (int)Math.round(l + mean - search));
-			end = Math.min(reference.size(), (int)Math.round(l + mean + search));
+			start = Math.max(0, (int)Math.round(l + advance - search));
+			end = Math.min(reference.size(), (int)Math.round(l + advance + search));
+			
+			if (pyramid != null && end - start >= 4 << pyramid.levels()) {
+				// Only evaluate the neighbourhood of the best coarse blocks
+				count = refine(l + advance, v, start, end);
+			} else {
+				count = 0;
+				for (ln = start; ln < end; ln++) {
+					cells[count++] = ln;
+				}
+			}
 			
-			// Get new transitions in the transitions array
-			getTransitions(l, v, start, end, transitions);
+			near = count;
+			if (jumps != null) {
+				count = addJumps(l + advance, count);
+			}
+			
+			evaluated += count;
 			pPath = previous.get(l);
-			for (ln = start; ln < end; ln++) {
-				pn = transitions[ln - start] * pPath;
+			remote = isSeed(l) || Math.abs(l - position) > posWindow;
+			for (int c = 0; c < count; c++) {
+				ln = cells[c];
+				pn = c < near ? match(v, 0, ln) * transition(ln, l + advance) * pPath :
+					match(v, 0, ln) * transition(ln, jumpMeans[c]) * Parameters.jumpProbability * pPath;
 				
 				//if (pn < 0) {
 				//	Log.d(TAG, "Probability < 0, is your vector working correctly?");
@@ -218,6 +600,7 @@ public class PositionMatcher {
 					// Store the best known value
 					best = ln;
 					pBest = pn;
+					jumped = remote || c >= near;
 				}
 			}
 		}
@@ -231,17 +614,124 @@ public class PositionMatcher {
 		
 		// Clear for the next iteration
 		next.clear();
-		normalizeTransitions(pBest);
-		setPosition(best);
+		
+		// After a jump, keep the paths around the new position
+		normalizeTransitions(pBest, jumped ? best : position, best);
+		steady = !jumped && Math.abs(best - (reckoned + mean)) <= STEADY_ERROR ? steady + 1 : 0;
+		fractional = interpolate(best);
+		reckoned = fractional;
+		skipped = 0;
+		lastRms = v.rms;
+		ShingleIndex.normalize(v.getChroma(), lastChroma, 0);
+		setPosition(best, jumped);
+		if (index != null) {
+			relocalize(v);
+		}
 		return best;
 	}
 	
+	/**
+	 * Moves the position ahead by the tempo instead of updating
+	 * the paths, if dead reckoning is enabled and nothing calls
+	 * for an update.
+	 * @param v The FrameVector of the current input signal
+	 * @return Whether the position was reckoned
+	 */
+	private boolean reckon(FrameVector v) {
+		if (Parameters.deadReckoning < 2 || skipped >= Parameters.deadReckoning - 1
+				|| steady < STEADY_UPDATES || confidence < UNCERTAIN || nearJump()) {
+			return false;
+		}
+		
+		// Update when the input changes
+		if (v.rms > lastRms * RMS_CHANGE || v.rms * RMS_CHANGE < lastRms) {
+			return false;
+		}
+		ShingleIndex.normalize(v.getChroma(), chroma, 0);
+		double correlation = 0;
+		for (int j = 0; j < 12; j++) {
+			correlation += chroma[j] * lastChroma[j];
+		}
+		if (correlation < CHROMA_CHANGE) {
+			return false;
+		}
+		
+		skipped++;
+		reckonedFrames++;
+		reckoned = Math.min(reference.size() - 1, reckoned + mean);
+		fractional = reckoned;
+		position = (int)Math.round(reckoned);
+		if (index != null) {
+			remember(v);
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns whether the source of a JumpGraph edge is close
+	 * enough to be reached before the next update.
+	 * @return
+	 */
+	private boolean nearJump() {
+		if (jumps == null) {
+			return false;
+		}
+		int e = jumps.first(position - jumpRadius);
+		return e < jumps.size() && jumps.source(e) <= 
+				position + jumpRadius + Parameters.deadReckoning * mean;
+	}
+	
+	/**
+	 * Returns the top of the parabola through the log path
+	 * probabilities at the given index and its neighbours,
+	 * which lies within half a vector of the index. Returns
+	 * the index itself if a neighbour has no path.
+	 * @param best
+	 * @return
+	 */
+	private double interpolate(int best) {
+		Double left = previous.get(best - 1), center = previous.get(best), 
+				right = previous.get(best + 1);
+		if (left == null || center == null || right == null) {
+			return best;
+		}
+		return best + vertex(Math.log(left), Math.log(center), Math.log(right));
+	}
+	
+	/**
+	 * Returns the offset of the vertex of the parabola through
+	 * (-1, a), (0, b) and (1, c), within -0.5 ... 0.5. Returns
+	 * 0 if b is not an extreme.
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @return
+	 */
+	static double vertex(double a, double b, double c) {
+		double d = a - 2 * b + c;
+		if (d == 0 || (b - a) * (b - c) <= 0) {
+			return 0;
+		}
+		return Math.max(-0.5, Math.min(0.5, (a - c) / (2 * d)));
+	}
+	
 	/**
 	 * Sets the internal position to the given position,
 	 * and updates mean / diff / variance values.
 	 * @param position
+	 * @param jumped Whether the position was found in the index,
+	 * 			in which case the jump says nothing about the tempo.
 	 */
-	private void setPosition(int position) {
+	private void setPosition(int position, boolean jumped) {
+		if (jumped) {
+			// Start over with full windows
+			Log.d(TAG, "Relocalized from "+this.position+" to "+position);
+			this.position = position;
+			resizeWindows(1);
+			confidence = 0;
+			return;
+		}
+		
 		/**
 		 * Calculate new mean and stdDev.
 		 * 
@@ -270,34 +760,237 @@ public class PositionMatcher {
 	}
 	
 	/**
-	 * Get all the transitions from position l, and their probabilities
-	 * given the specified FrameVector v.
-	 * @param l The position (index) from which the transitions must be calculated. This determines
-	 * 			the transition probabilities.
+	 * Returns the transition probability to reference index i,
+	 * as a normal distribution around the expected index with
+	 * the spread of the current update.
+	 * @param i
+	 * @param mean The expected index
+	 * @return
+	 */
+	private double transition(double i, double mean) {
+		return 1.0 / (spread * Math.sqrt(2 * Math.PI)) * 
+				 Math.exp(-Math.pow(i - mean, 2) / (2 * spread * spread));
+	}
+	
+	/**
+	 * Returns the probability of the input matching vector i of the
+	 * given pyramid level, level 0 being the reference. With a
+	 * pyramid, this is only calculated once per frame.
+	 * @param v The FrameVector of the current input signal
+	 * @param level
+	 * @param i
+	 * @return
+	 */
+	private double match(FrameVector v, int level, int i) {
+		if (matches != null && matched[level][i] == frame) {
+			return matches[level][i];
+		}
+		
+		double p = level > 0 ? v.matchProbability(pyramid.get(level, i)) :
+			quantized != null ? quantized.matchProbability(input, i) :
+			v.matchProbability(reference.get(i));
+		if (matches != null) {
+			matches[level][i] = p;
+			matched[level][i] = frame;
+		}
+		return p;
+	}
+	
+	/**
+	 * Searches the window from start to end coarse-to-fine, and puts
+	 * the reference indices worth evaluating in the cells array.
+	 * Blocks are scored by their match probability and the transition
+	 * probability at their center.
+	 * @param mean The expected index
 	 * @param v The FrameVector of the current input signal
 	 * @param start The start of the search window, including this index
 	 * @param end The end of the search window, NOT including this index
-	 * @param transitions Return array for the probabilities. Should be at least
-	 * 						start - end elements long.
+	 * @return The number of indices in cells
+	 */
+	private int refine(double mean, FrameVector v, int start, int end) {
+		int level = pyramid.levels(), n = 0, kept = 0;
+		
+		// Score every block of the top level in the window
+		for (int b = start >> level; b <= (end - 1) >> level; b++) {
+			blocks[n] = b;
+			blockScores[n++] = score(v, level, b, mean);
+		}
+		kept = keep(n);
+		
+		// Score the children of the candidates on the levels below
+		while (--level > 0) {
+			int first = start >> level, last = (end - 1) >> level;
+			n = 0;
+			for (int c = 0; c < kept; c++) {
+				for (int b = 2 * candidates[c]; b <= 2 * candidates[c] + 1; b++) {
+					if (b >= first && b <= last) {
+						blocks[n] = b;
+						blockScores[n++] = score(v, level, b, mean);
+					}
+				}
+			}
+			kept = keep(n);
+		}
+		
+		// Evaluate the reference around each level 1 candidate
+		path++;
+		n = 0;
+		for (int c = 0; c < kept; c++) {
+			int from = Math.max(start, 2 * candidates[c] - 2),
+				to = Math.min(end, 2 * candidates[c] + 4);
+			for (int i = from; i < to; i++) {
+				if (added[i] != path) {
+					added[i] = path;
+					cells[n++] = i;
+				}
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Returns the score of block b of the given pyramid level
+	 * @param v
+	 * @param level
+	 * @param b
+	 * @param mean
+	 * @return
 	 */
-	private void getTransitions(int l, FrameVector v, int start, int end, double[] transitions) {
-		double pTrans, mean = l + this.mean;
-		for (int i = start; i < end; i++) {
-			// Calculate transition probability as a normal distribution
-			pTrans = 1.0 / (std * Math.sqrt(2 * Math.PI)) * 
-					 Math.exp(-Math.pow(i - mean, 2) / (2 * std * std));
-			//pTrans = 1.0;
-			transitions[i - start] = v.matchProbability(reference.get(i)) * pTrans;
+	private double score(FrameVector v, int level, int b, double mean) {
+		double center = ((b << level) + ((b + 1) << level) - 1) / 2.0;
+		return match(v, level, b) * transition(center, mean);
+	}
+	
+	/**
+	 * Copies the best of the first n blocks to the candidates.
+	 * @param n
+	 * @return The number of candidates kept
+	 */
+	private int keep(int n) {
+		int kept = 0, i, j;
+		for (i = 0; i < n; i++) {
+			// Insert into the sorted candidates, dropping the worst
+			if (kept == candidates.length && blockScores[i] <= candidateScores[kept - 1]) {
+				continue;
+			}
+			j = kept < candidates.length ? kept++ : kept - 1;
+			for (; j > 0 && candidateScores[j - 1] < blockScores[i]; j--) {
+				candidates[j] = candidates[j - 1];
+				candidateScores[j] = candidateScores[j - 1];
+			}
+			candidates[j] = blocks[i];
+			candidateScores[j] = blockScores[i];
 		}
+		return kept;
+	}
+	
+	/**
+	 * Adds the cells reached through the edges near the expected
+	 * index of a path to the cells array.
+	 * @param mean The expected index
+	 * @param count The number of cells in the array
+	 * @return The new number of cells
+	 */
+	private int addJumps(double mean, int count) {
+		int e = jumps.first((int)Math.floor(mean) - jumpRadius), taken = 0;
+		for (; e < jumps.size() && jumps.source(e) <= mean + jumpRadius && taken < MAX_JUMPS; e++, taken++) {
+			// The expected index on the other side of the edge
+			double target = jumps.target(e) + mean - jumps.source(e);
+			int from = Math.max(0, (int)Math.round(target) - jumpBand),
+				to = Math.min(reference.size(), (int)Math.round(target) + jumpBand + 1);
+			for (int i = from; i < to; i++) {
+				jumpMeans[count] = target;
+				cells[count++] = i;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Adds the input to the history, and searches the index for the
+	 * last input shingle if it has matched the current position badly
+	 * for lostFrames frames, and every stride after that. Positions
+	 * outside the search window that match clearly better than
+	 * anything inside it become paths as likely as the best path.
+	 * @param v The FrameVector of the current input signal
+	 */
+	private void relocalize(FrameVector v) {
+		seedCount = 0;
+		if (!remember(v)) {
+			return;
+		}
+		index.shingle(history, historyNext, shingle);
+		
+		double confidence = index.similarity(shingle, position);
+		if (confidence >= Parameters.relocalizeConfidence) {
+			lost = 0;
+			return;
+		}
+		if (++lost < lostFrames || (lost - lostFrames) % index.stride() != 0) {
+			return;
+		}
+		
+		// Positions in the search window are found by the paths themselves,
+		// so only jump when the input matches clearly better elsewhere. If
+		// it matches as well nearby, a repeat is the likely explanation.
+		for (int j = Math.max(0, position - search); j <= position + search; j++) {
+			confidence = Math.max(confidence, index.similarity(shingle, j));
+		}
+		int n = index.query(shingle, found, foundSimilarities);
+		for (int i = 0; i < n; i++) {
+			if (foundSimilarities[i] >= confidence + RELOCALIZE_MARGIN 
+					&& Math.abs(found[i] - position) > search) {
+				previous.put(found[i], 1.0);
+				seeds[seedCount++] = found[i];
+			}
+		}
+	}
+	
+	/**
+	 * Adds the input to the history
+	 * @param v The FrameVector of the current input signal
+	 * @return Whether the history is full
+	 */
+	private boolean remember(FrameVector v) {
+		int length = index.history();
+		System.arraycopy(v.getChroma(), 0, history, historyNext * 12, 12);
+		historyNext = (historyNext + 1) % length;
+		return historyCount == length || ++historyCount == length;
+	}
+	
+	/**
+	 * Returns whether the given position was added from
+	 * the index in the last frame.
+	 * @param l
+	 * @return
+	 */
+	private boolean isSeed(int l) {
+		for (int i = 0; i < seedCount; i++) {
+			if (seeds[i] == l) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	/**
 	 * Normalizes all current transition probabilities to one
-	 * so they won't simply converge to zero.
-	 * @param best
+	 * so they won't simply converge to zero, and discards
+	 * paths too far from the given position, or from its
+	 * counterpart at the other end of a nearby edge. Also
+	 * updates the confidence, see CONFIDENT.
+	 * @param best The best path probability
+	 * @param position The position to keep paths around
+	 * @param center The best index, the peak of the paths
 	 */
-	private void normalizeTransitions(double best) {
+	private void normalizeTransitions(double best, int position, int center) {
 		int probDisc = 0, posDisc = 0, total = previous.size();
+		int first = 0, last = 0;
+		double mass = 0, peak = 0;
+		if (jumps != null) {
+			first = jumps.first((int)(position - posWindow));
+			last = jumps.first((int)(position + posWindow) + 1);
+		}
 		Iterator<Integer> it = previous.keySet().iterator();
 		while (it.hasNext()) {
 			int i = it.next();
@@ -305,11 +998,30 @@ public class PositionMatcher {
 			if (nw < EPSILON) {
 				probDisc++;
 				it.remove();
-			} else if (Math.abs(i - position) > posWindow) {
+			} else if (Math.abs(i - position) > posWindow && !nearEdge(i, position, first, last)) {
 				it.remove();
 				posDisc++;
 			} else {				
 				previous.put(i, nw);
+				mass += nw;
+				if (Math.abs(i - center) <= std) {
+					peak += nw;
+				}
+			}
+		}
+		
+		if (mass > 0) {
+			// Scale the peak fraction from a flat distribution over the
+			// distance window (0) to all mass in the peak (1)
+			double flat = Math.min(1, (2 * std + 1) / (2 * posWindow + 1));
+			double c = flat < 1 ? Math.max(0, (peak / mass - flat) / (1 - flat)) : 1;
+			confidence += SMOOTHING * (c - confidence);
+		}
+		if (Parameters.adaptiveWindow) {
+			if (confidence >= CONFIDENT) {
+				resizeWindows(Math.max(minWindowFactor, windowFactor * SHRINK));
+			} else if (confidence < UNCERTAIN) {
+				resizeWindows(1);
 			}
 		}
 		//Log.d(TAG, "Discarded "+probDisc+"/"+total+" elements due to low probability.");
@@ -318,6 +1030,69 @@ public class PositionMatcher {
 	
 	
 	
+	/**
+	 * Sets the search and distance windows to the given
+	 * fraction of their maximum, within their bounds.
+	 * @param factor
+	 */
+	private void resizeWindows(double factor) {
+		windowFactor = factor;
+		search = Math.max(minSearch, (int)Math.round(maxSearch * factor));
+		posWindow = Math.max(minPosWindow, maxPosWindow * factor);
+	}
+	
+	/**
+	 * Returns the smoothed confidence of the last frame
+	 * @return
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+	
+	/**
+	 * Returns the current search window in seconds
+	 * @return
+	 */
+	public double getSearchWindow() {
+		return 2 * search * hopSize;
+	}
+	
+	/**
+	 * Returns the number of reference vectors evaluated since
+	 * the matcher was created, as a measure of the work done.
+	 * @return
+	 */
+	public long getEvaluated() {
+		return evaluated;
+	}
+	
+	/**
+	 * Returns the number of frames whose position was dead
+	 * reckoned since the matcher was created.
+	 * @return
+	 */
+	public long getReckoned() {
+		return reckonedFrames;
+	}
+	
+	/**
+	 * Returns whether index i is within posWindow of the target
+	 * side of one of the given edges, relative to position.
+	 * @param i
+	 * @param position
+	 * @param first The first edge
+	 * @param last The edge after the last edge
+	 * @return
+	 */
+	private boolean nearEdge(int i, int position, int first, int last) {
+		for (int e = first; e < last; e++) {
+			if (Math.abs(i - (position + jumps.target(e) - jumps.source(e))) <= posWindow) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Returns a map with the latest transition probabilities.
 	 * Note that modifying this map will mess up the position
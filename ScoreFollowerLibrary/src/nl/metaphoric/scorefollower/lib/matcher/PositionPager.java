@@ -37,11 +37,12 @@ public class PositionPager {
 	
 	/**
 	 * Sets the latest estimated position
-	 * @param index
+	 * @param index The fractional reference index
+	 * @see Matcher#getFractionalPosition()
 	 */
-	public void setEstimate(int index) {
+	public void setEstimate(double index) {
 		// Locate the first index smaller than this position, scroll to that
-		SortedMap<Integer, Position> s = positions.headMap(index);
+		SortedMap<Integer, Position> s = positions.headMap((int)Math.ceil(index));
 		if (s.size() > 0) {
 			int newIndex = s.lastKey();
 			
@@ -0,0 +1,349 @@
+package nl.metaphoric.scorefollower.lib.matcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import nl.metaphoric.scorefollower.lib.Log;
+import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer;
+import nl.metaphoric.scorefollower.lib.PlaybackAnalyzer.Status;
+import nl.metaphoric.scorefollower.lib.feature.FrameVector;
+import nl.metaphoric.scorefollower.lib.feature.QuantizedReference;
+import nl.metaphoric.scorefollower.lib.file.ScoreReader.FileSettings;
+
+/**
+ * Hidden Markov Model matcher over joint (position, tempo) states.
+ *
+ * The PositionMatcher keeps one global tempo estimate, and has to
+ * search a wide window around every path to allow for tempo changes.
+ * Here every state instead has its own tempo from the small set
+ * TEMPOS, and moves ahead by exactly that tempo each frame. A state
+ * can only change to a neighbouring tempo, or shift a single vector
+ * to correct its position, so every state has only a few successors:
+ * <pre>
+ *   (x, k) -> (x + TEMPOS[k'] + d, k')   for |k' - k| <= 1, d in {-1, 0, 1}
+ * </pre>
+ * Positions are kept as fractions of a vector, so that tempos other
+ * than 1 accumulate correctly. States that fall more than BEAM below
+ * the best are pruned, and at most MAX_STATES states are kept.
+ *
+ * @author Elte Hupkes
+ */
+public class TempoMatcher implements Matcher {
+	/**
+	 * Debug logging tag
+	 */
+	private static final String TAG = "SF_TempoMatcher";
+
+	/**
+	 * Tempo hypotheses, relative to the reference
+	 */
+	public static final double[] TEMPOS = {0.6, 0.7, 0.8, 0.9, 1.0, 1.12, 1.25, 1.4, 1.6};
+
+	/**
+	 * Probability of moving to a neighbouring tempo, each way
+	 */
+	public static final double TEMPO_CHANGE = 0.05;
+
+	/**
+	 * Probabilities of shifting the position by -1, 0 and 1 vectors
+	 */
+	private static final double[] SHIFTS = {0.1, 0.8, 0.1};
+
+	/**
+	 * States with a probability below BEAM times the best
+	 * are discarded.
+	 */
+	public static final double BEAM = 0.0001;
+
+	/**
+	 * The maximum number of states kept
+	 */
+	public static final int MAX_STATES = 200;
+
+	/**
+	 * A (position, tempo) state
+	 */
+	private static class State {
+		double x, p;
+		int tempo;
+
+		State(double x, int tempo, double p) {
+			this.x = x;
+			this.tempo = tempo;
+			this.p = p;
+		}
+	}
+
+	/**
+	 * The active states, and the states of the next
+	 * frame by position and tempo.
+	 */
+	private List<State> states = new ArrayList<State>();
+	private Map<Integer, State> next = new HashMap<Integer, State>();
+
+	/**
+	 * Reference FrameVector array.
+	 */
+	private List<FrameVector> reference;
+
+	/**
+	 * The reference if it is quantized, see PositionMatcher
+	 */
+	private QuantizedReference quantized;
+	private int[] input = new int[QuantizedReference.BINS];
+
+	/**
+	 * Match probabilities of the current frame by reference
+	 * index, NaN if not computed yet, and the indices computed.
+	 */
+	private double[] matches;
+	private List<Integer> computed = new ArrayList<Integer>();
+
+	/**
+	 * The difference, in seconds, between two
+	 * reference vectors, and the duration
+	 * of one window.
+	 */
+	private double hopSize, windowSize;
+
+	/**
+	 * The current position, -1 is "not started", the fractional
+	 * position and the tempo of the best state.
+	 */
+	private int position;
+	private double fractional, tempo = 1;
+
+	/**
+	 * The System.nanoTime() at which the last input vector was
+	 * captured, 0 before the first.
+	 */
+	private long captured;
+
+	/**
+	 * The started amplitude analyzer
+	 */
+	private PlaybackAnalyzer status = new PlaybackAnalyzer();
+
+	/**
+	 * The active playing status
+	 */
+	private boolean playing = false;
+
+	/**
+	 * Creates a new position / tempo matcher
+	 * @param ref
+	 * @param settings
+	 */
+	public TempoMatcher(List<FrameVector> ref, FileSettings settings) {
+		windowSize = settings.getDouble("windowSize");
+		hopSize = settings.getDouble("hopSize");
+		reference = ref;
+		if (ref instanceof QuantizedReference) {
+			quantized = (QuantizedReference)ref;
+		}
+		matches = new double[ref.size()];
+		Arrays.fill(matches, Double.NaN);
+
+		restart();
+	}
+
+	@Override
+	public void restart() {
+		restart(-1);
+	}
+
+	@Override
+	public void restart(int position) {
+		// Start at the given position with every tempo
+		states.clear();
+		for (int k = 0; k < TEMPOS.length; k++) {
+			states.add(new State(position, k, 1.0));
+		}
+
+		status.reset();
+		this.position = position;
+		fractional = position;
+		tempo = 1;
+		captured = 0;
+	}
+
+	@Override
+	public double hopSize() {
+		return hopSize;
+	}
+
+	@Override
+	public double windowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Returns the fractional position of the most likely state
+	 */
+	@Override
+	public double getFractionalPosition() {
+		return fractional;
+	}
+
+	/**
+	 * Moves the fractional position ahead by the tempo of the
+	 * most likely state.
+	 */
+	@Override
+	public double predictPosition(long nanoTime) {
+		if (!playing || captured == 0) {
+			return Math.max(0, fractional);
+		}
+		double age = (nanoTime - captured) / 1e9;
+		return Math.max(0, Math.min(reference.size() - 1, fractional + tempo * age / hopSize));
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	/**
+	 * Returns the tempo of the most likely state, relative
+	 * to the reference.
+	 * @return
+	 */
+	public double getTempo() {
+		return tempo;
+	}
+
+	@Override
+	public int getPosition(FrameVector v) {
+		// Without a capture time, use the time matching started
+		captured = v.time != 0 ? v.time : System.nanoTime();
+		Status s = status.getStatus(v);
+
+		if (s == Status.WAITING) {
+			// Assume the player has paused
+			Log.d(TAG, "Performance waiting at "+position);
+			playing = false;
+			fractional = Math.max(0, fractional);
+			return position > 0 ? position : 0;
+		}
+
+		playing = true;
+
+		if (quantized != null) {
+			quantized.quantize(v, input);
+		}
+
+		int last = reference.size() - 1, nTempos = TEMPOS.length;
+		State best = null;
+		next.clear();
+		for (State state : states) {
+			for (int k = Math.max(0, state.tempo - 1); k <= Math.min(nTempos - 1, state.tempo + 1); k++) {
+				double pTempo = state.p * (k == state.tempo ? 1 - 2 * TEMPO_CHANGE : TEMPO_CHANGE);
+				for (int d = 0; d < SHIFTS.length; d++) {
+					double x = Math.max(0, Math.min(last, state.x + TEMPOS[k] + d - 1));
+					int j = (int)Math.round(x);
+
+					double match = matches[j];
+					if (match != match) {
+						// Not computed for this frame yet (NaN)
+						match = Math.max(0, quantized != null ? quantized.matchProbability(input, j) :
+							v.matchProbability(reference.get(j)));
+						matches[j] = match;
+						computed.add(j);
+					}
+
+					// Keep the most likely state per position and tempo
+					double p = pTempo * SHIFTS[d] * match;
+					int key = j * nTempos + k;
+					State n = next.get(key);
+					if (n == null) {
+						n = new State(x, k, p);
+						next.put(key, n);
+					} else if (p > n.p) {
+						n.x = x;
+						n.p = p;
+					} else {
+						continue;
+					}
+					if (best == null || n.p > best.p) {
+						best = n;
+					}
+				}
+			}
+		}
+		for (int j : computed) {
+			matches[j] = Double.NaN;
+		}
+		computed.clear();
+
+		if (best == null || best.p <= 0) {
+			// Nothing matches, keep the current states
+			return position > 0 ? position : 0;
+		}
+
+		prune(best.p);
+		fractional = best.x;
+		position = (int)Math.round(best.x);
+		tempo = TEMPOS[best.tempo];
+		return position;
+	}
+
+	/**
+	 * Moves the states of the next frame that are within the beam
+	 * to the active states, normalized to the best.
+	 * @param pBest
+	 */
+	private void prune(double pBest) {
+		states.clear();
+		for (State n : next.values()) {
+			n.p /= pBest;
+			if (n.p >= BEAM) {
+				states.add(n);
+			}
+		}
+
+		if (states.size() > MAX_STATES) {
+			// Keep the MAX_STATES most likely states
+			double[] ps = new double[states.size()];
+			for (int i = 0; i < ps.length; i++) {
+				ps[i] = states.get(i).p;
+			}
+			Arrays.sort(ps);
+			double min = ps[ps.length - MAX_STATES];
+			List<State> kept = new ArrayList<State>(MAX_STATES);
+			for (State n : states) {
+				if (n.p >= min && kept.size() < MAX_STATES) {
+					kept.add(n);
+				}
+			}
+			states = kept;
+		}
+	}
+
+	/**
+	 * Returns the probability of the most likely state at
+	 * every position, relative to the best state. The map is
+	 * created on every call.
+	 */
+	@Override
+	public SortedMap<Integer, Double> getTransitionProbabilities() {
+		SortedMap<Integer, Double> probabilities = new TreeMap<Integer, Double>();
+		for (State state : states) {
+			int j = (int)Math.round(state.x);
+			Double p = probabilities.get(j);
+			if (p == null || p < state.p) {
+				probabilities.put(j, state.p);
+			}
+		}
+		return probabilities;
+	}
+
+	@Override
+	public PlaybackAnalyzer getPlaybackAnalyzer() {
+		return status;
+	}
+}
@@ -19,5 +19,11 @@ public class BlackmanHarrisWindow implements WindowFunction {
 		double f = 2 * Math.PI * index / (frameSize - 1);
 		return A0 - A1 * Math.cos(f) + A2 * Math.cos(2 * f) + A3 * Math.cos(3 * f);
 	}
+	
+	@Override
+	public double strictWindow(int index, int frameSize) {
+		double f = 2 * Math.PI * index / (frameSize - 1);
+		return A0 - A1 * StrictMath.cos(f) + A2 * StrictMath.cos(2 * f) + A3 * StrictMath.cos(3 * f);
+	}
 
 }
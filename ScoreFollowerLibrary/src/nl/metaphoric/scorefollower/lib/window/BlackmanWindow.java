@@ -18,5 +18,11 @@ public class BlackmanWindow implements WindowFunction {
 		double f = 2 * Math.PI * index / (frameSize - 1);
 		return A0 - A1 * Math.cos(f) + A2 * Math.cos(2 * f);
 	}
+	
+	@Override
+	public double strictWindow(int index, int frameSize) {
+		double f = 2 * Math.PI * index / (frameSize - 1);
+		return A0 - A1 * StrictMath.cos(f) + A2 * StrictMath.cos(2 * f);
+	}
 
 }
@@ -9,4 +9,9 @@ public class HammingWindow implements WindowFunction {
 	public double window(int index, int frameSize) {
 		return (0.54 - 0.46 * Math.cos(2 * Math.PI * index / (frameSize - 1.0)));
 	}	
+	
+	@Override
+	public double strictWindow(int index, int frameSize) {
+		return (0.54 - 0.46 * StrictMath.cos(2 * Math.PI * index / (frameSize - 1.0)));
+	}
 }
@@ -9,4 +9,9 @@ public class HannWindow implements WindowFunction {
 	public double window(int index, int frameSize) {
 		return 0.5 * (1 - Math.cos(2 * Math.PI * index / (frameSize - 1)));
 	}
+	
+	@Override
+	public double strictWindow(int index, int frameSize) {
+		return 0.5 * (1 - StrictMath.cos(2 * Math.PI * index / (frameSize - 1)));
+	}
 }
@@ -9,5 +9,10 @@ public class RectangularWindow implements WindowFunction {
 	public double window(int index, int frameSize) {
 		return 1.0;
 	}
+	
+	@Override
+	public double strictWindow(int index, int frameSize) {
+		return 1.0;
+	}
 
 }
@@ -13,4 +13,13 @@ public interface WindowFunction {
 	 * @return The value transformed using this window
 	 */
 	public double window(int index, int frameSize);
+	
+	/**
+	 * Like window(), but calculated with StrictMath, so that
+	 * the result is the same on every JVM.
+	 * @param index The index in the frame
+	 * @param frameSize The total size of the frame
+	 * @return
+	 */
+	public double strictWindow(int index, int frameSize);
 }